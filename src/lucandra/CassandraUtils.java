@@ -29,18 +29,29 @@ import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.cassandra.config.ConfigurationException;
 import org.apache.cassandra.config.DatabaseDescriptor;
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.ColumnFamilyStore;
+import org.apache.cassandra.db.IColumn;
 import org.apache.cassandra.db.ReadCommand;
 import org.apache.cassandra.db.Row;
 import org.apache.cassandra.db.RowMutation;
 import org.apache.cassandra.db.SliceByNamesReadCommand;
+import org.apache.cassandra.db.SuperColumn;
+import org.apache.cassandra.db.Table;
+import org.apache.cassandra.db.columniterator.IColumnIterator;
 import org.apache.cassandra.db.filter.QueryPath;
+import org.apache.cassandra.io.sstable.SSTableReader;
+import org.apache.cassandra.io.sstable.SSTableScanner;
 import org.apache.cassandra.service.StorageProxy;
 import org.apache.cassandra.service.StorageService;
 import org.apache.cassandra.thrift.ConsistencyLevel;
@@ -60,6 +71,7 @@ public class CassandraUtils
     public static final String               docColumnFamily        = "Docs";
     public static final String               metaInfoColumnFamily   = "TL";
     public static final String               schemaInfoColumnFamily = "SI";
+    public static final String               docValuesColumnFamily  = "DV";
 
     public static final String               positionVectorKey      = "P";
     public static final String               offsetVectorKey        = "O";
@@ -91,9 +103,24 @@ public class CassandraUtils
     public static final String               documentMetaField      = delimeter + "META" + delimeter;
     public static final ByteBuffer           documentMetaFieldBytes;
 
+    // column of a sub-index's docFreq row counting its live docs
+    public static final String               numDocsField           = delimeter + "DOCS" + delimeter;
+    public static final ByteBuffer           numDocsFieldBytes;
+
+    // column of a sub-index's docFreq row, there if counting began with its first doc
+    public static final String               countedField           = delimeter + "COUNTED" + delimeter;
+    public static final ByteBuffer           countedFieldBytes;
+
     public static final boolean              indexHashingEnabled    = Boolean.valueOf(System.getProperty(
             "index.hashing", "true"));
     
+    // comma separated fields to also store as doc-values, see DocValues
+    public static final Set<String>          docValuesFields        = new HashSet<String>();
+
+    // consistency of doc writes, reads that must see the latest write use it too
+    public static final ConsistencyLevel     writeConsistency       = ConsistencyLevel.valueOf(System.getProperty(
+            "lucandra.write.consistency", "ONE"));
+
     //how often to check for cache invalidation
     public static int   cacheInvalidationInterval = 1000;//ms
   
@@ -107,8 +134,16 @@ public class CassandraUtils
         {
             delimeterBytes = delimeter.getBytes("UTF-8");
             documentMetaFieldBytes = ByteBuffer.wrap(documentMetaField.getBytes("UTF-8"));
+            numDocsFieldBytes = ByteBuffer.wrap(numDocsField.getBytes("UTF-8"));
+            countedFieldBytes = ByteBuffer.wrap(countedField.getBytes("UTF-8"));
             finalTokenBytes = ByteBuffer.wrap(finalToken.getBytes("UTF-8"));
             metaColumnPath = new QueryPath(CassandraUtils.docColumnFamily);
+
+            for (String field : System.getProperty("lucandra.docvalues.fields", "").split(","))
+            {
+                if (field.trim().length() > 0)
+                    docValuesFields.add(field.trim().intern());
+            }
         }
         catch (UnsupportedEncodingException e)
         {
@@ -122,6 +157,11 @@ public class CassandraUtils
 
     private static boolean                   cassandraStarted       = false;
 
+    private static final AtomicLong          lastTimestamp          = new AtomicLong();
+
+    // added to every write timestamp, see setTimestampFloor
+    private static volatile long             timestampFloor         = 0;
+
     
     public static synchronized void setStartup(){
     	if(cassandraStarted){
@@ -173,6 +213,84 @@ public class CassandraUtils
             logger.error("Cassandra not started after 1 hour");
             System.exit(3);
         }       
+
+        setTimestampFloor(System.getProperty("lucandra.timestamp.floor", "0"));
+    }
+
+    // Releases before this one stamped writes with System.nanoTime(), which on
+    // a host with long uptime is larger than wall-clock microseconds. Deletes and
+    // overwrites of those columns would lose, so an upgraded cluster gives every
+    // node the same floor, at least the largest timestamp any node holds. "scan"
+    // finds the largest held locally and logs it.
+    public static void setTimestampFloor(String floor)
+    {
+        if (floor.equals("scan"))
+        {
+            timestampFloor = getMaxLocalTimestamp();
+
+            logger.warn("Largest timestamp in local data is " + timestampFloor
+                    + ", set lucandra.timestamp.floor to the largest of these on every node");
+        }
+        else
+        {
+            timestampFloor = Long.valueOf(floor);
+        }
+    }
+
+    // Largest column or tombstone timestamp in this node's data for the keyspace
+    public static long getMaxLocalTimestamp()
+    {
+        long max = 0;
+
+        for (ColumnFamilyStore cfs : Table.open(keySpace).getColumnFamilyStores())
+        {
+            try
+            {
+                cfs.forceBlockingFlush();
+
+                for (SSTableReader sstable : cfs.getSSTables())
+                {
+                    SSTableScanner scanner = sstable.getScanner(64 * 1024);
+
+                    try
+                    {
+                        while (scanner.hasNext())
+                        {
+                            IColumnIterator row = scanner.next();
+                            ColumnFamily cf = row.getColumnFamily();
+
+                            max = Math.max(max, cf.getMarkedForDeleteAt());
+
+                            while (row.hasNext())
+                                max = Math.max(max, getMaxTimestamp(row.next()));
+                        }
+                    }
+                    finally
+                    {
+                        scanner.close();
+                    }
+                }
+            }
+            catch (Exception e)
+            {
+                throw new RuntimeException("Failed to scan " + cfs.getColumnFamilyName(), e);
+            }
+        }
+
+        return max;
+    }
+
+    private static long getMaxTimestamp(IColumn column)
+    {
+        if (!(column instanceof SuperColumn))
+            return column.timestamp();
+
+        long max = ((SuperColumn) column).getMarkedForDeleteAt();
+
+        for (IColumn subColumn : column.getSubColumns())
+            max = Math.max(max, subColumn.timestamp());
+
+        return max;
     }
 
     public static ByteBuffer createColumnName(Fieldable field)
@@ -273,9 +391,24 @@ public class CassandraUtils
         return intArray;
     }
 
-   
+    /**
+     * @return a column timestamp in microseconds of wall-clock time, rising
+     *         with every call, so writes from different nodes and restarts
+     *         order by when they happened
+     */
+    public static long createTimestamp()
+    {
+        long now = System.currentTimeMillis() * 1000 + timestampFloor;
+
+        while (true)
+        {
+            long last = lastTimestamp.get();
+            long next = Math.max(now, last + 1);
 
- 
+            if (lastTimestamp.compareAndSet(last, next))
+                return next;
+        }
+    }
 
     public static void addMutations(Map<ByteBuffer, RowMutation> mutationList, String columnFamily, byte[] column,
             ByteBuffer key, byte[] value)
@@ -306,18 +439,18 @@ public class CassandraUtils
 
             if (column != null)
             {
-                rm.delete(new QueryPath(columnFamily, null, column), System.nanoTime());
+                rm.delete(new QueryPath(columnFamily, null, column), createTimestamp());
             }
             else
             {
-                rm.delete(new QueryPath(columnFamily), System.nanoTime());
+                rm.delete(new QueryPath(columnFamily), createTimestamp());
             }
 
         }
         else
         { // insert
 
-            rm.add(new QueryPath(columnFamily, null, column), value, System.nanoTime());
+            rm.add(new QueryPath(columnFamily, null, column), value, createTimestamp());
     
         }
     }
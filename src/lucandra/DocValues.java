@@ -0,0 +1,175 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import org.apache.cassandra.db.*;
+import org.apache.cassandra.thrift.ColumnParent;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.FBUtilities;
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.Term;
+
+import lucandra.cluster.IndexManagerService;
+
+/**
+ * The values of one field across a sub-index, loaded from the doc-values rows
+ * written by IndexWriter.
+ *
+ * Each row holds a block of docIds for a field, with one column per doc
+ * containing all of its indexed terms. The whole field is read back in one
+ * multiget and exposed as a term to postings mapping so FieldCache and
+ * UnInvertedField can uninvert it without walking the TI rows.
+ */
+public class DocValues
+{
+    public static final int            blockSize = 4096;
+
+    public final String                field;
+    public final Term[]                terms;
+    public final LucandraTermInfo[][]  docs;
+
+    private static final ColumnParent  docValuesColumnFamily = new ColumnParent(CassandraUtils.docValuesColumnFamily);
+    private static final Logger        logger                = Logger.getLogger(DocValues.class);
+
+    private DocValues(String field, Term[] terms, LucandraTermInfo[][] docs)
+    {
+        this.field = field;
+        this.terms = terms;
+        this.docs = docs;
+    }
+
+    public static ByteBuffer getBlockKey(String indexName, String field, int docNumber)
+    {
+        try
+        {
+            return CassandraUtils.hashKeyBytes(indexName.getBytes(), CassandraUtils.delimeterBytes, field.getBytes(),
+                    CassandraUtils.delimeterBytes, Integer.toHexString(docNumber / blockSize).getBytes("UTF-8"));
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new RuntimeException("JVM doesn't support UTF-8", e);
+        }
+    }
+
+    public static ByteBuffer encode(SortedSet<String> values)
+    {
+        StringBuilder sb = new StringBuilder();
+
+        for (String value : values)
+        {
+            if (sb.length() > 0)
+                sb.append(CassandraUtils.delimeter);
+
+            sb.append(value);
+        }
+
+        return ByteBuffer.wrap(sb.toString().getBytes(CassandraUtils.UTF_8));
+    }
+
+    public static DocValues load(String indexName, String field) throws IOException
+    {
+        long start = System.currentTimeMillis();
+
+        int blocks = (IndexManagerService.instance.getShardSize(indexName) + blockSize - 1) / blockSize;
+
+        ReadCommand[] reads = new ReadCommand[blocks];
+        for (int i = 0; i < blocks; i++)
+        {
+            reads[i] = new SliceFromReadCommand(CassandraUtils.keySpace, getBlockKey(indexName, field, i * blockSize),
+                    docValuesColumnFamily, FBUtilities.EMPTY_BYTE_BUFFER, FBUtilities.EMPTY_BYTE_BUFFER, false,
+                    Integer.MAX_VALUE);
+        }
+
+        List<Row> rows = CassandraUtils.robustRead(ConsistencyLevel.ONE, reads);
+
+        // blocks come back in any order
+        field = field.intern();
+        SortedMap<Term, List<Integer>> postings = new TreeMap<Term, List<Integer>>();
+
+        for (Row row : rows)
+        {
+            if (row.cf == null)
+                continue;
+
+            for (IColumn col : row.cf.getSortedColumns())
+            {
+                if (!col.isLive())
+                    continue;
+
+                int docId = CassandraUtils.byteArrayToInt(col.name());
+
+                for (String text : ByteBufferUtil.string(col.value(), CassandraUtils.UTF_8).split(
+                        CassandraUtils.delimeter))
+                {
+                    Term term = new Term(field, text);
+
+                    List<Integer> docIds = postings.get(term);
+                    if (docIds == null)
+                    {
+                        docIds = new ArrayList<Integer>();
+                        postings.put(term, docIds);
+                    }
+
+                    docIds.add(docId);
+                }
+            }
+        }
+
+        Term[] terms = new Term[postings.size()];
+        LucandraTermInfo[][] docs = new LucandraTermInfo[postings.size()][];
+
+        int i = 0;
+        for (Map.Entry<Term, List<Integer>> e : postings.entrySet())
+        {
+            List<Integer> docIds = e.getValue();
+            Collections.sort(docIds);
+
+            terms[i] = e.getKey();
+            docs[i] = new LucandraTermInfo[docIds.size()];
+
+            for (int j = 0; j < docs[i].length; j++)
+                docs[i][j] = new LucandraTermInfo(docIds.get(j));
+
+            i++;
+        }
+
+        if (logger.isDebugEnabled())
+            logger.debug("Loaded " + terms.length + " doc-values for " + indexName + "/" + field + " in "
+                    + (System.currentTimeMillis() - start) + "ms");
+
+        return new DocValues(field, terms, docs);
+    }
+
+    /**
+     * @return the position of the first term >= the given term
+     */
+    public int seek(Term term)
+    {
+        int idx = Arrays.binarySearch(terms, term);
+
+        return idx < 0 ? -(idx + 1) : idx;
+    }
+}
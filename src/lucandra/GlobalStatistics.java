@@ -0,0 +1,192 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import lucandra.cluster.CassandraIndexManager;
+import lucandra.cluster.IndexManagerService;
+
+import org.apache.cassandra.db.*;
+import org.apache.cassandra.db.filter.QueryPath;
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.Term;
+
+import com.google.common.collect.MapMaker;
+
+/**
+ * The docFreq of terms and the live doc count summed over all the
+ * sub-indexes of an index, so every sub-index can score with the same idf.
+ *
+ * They are read from the docFreq row each sub-index keeps, every sub-index in
+ * one multiget, and cached for lucandra.idf.ttl.ms so repeat queries don't
+ * read them again.
+ */
+public class GlobalStatistics
+{
+    private static final Logger             logger  = Logger.getLogger(GlobalStatistics.class);
+
+    private static final long               ttl     = Long.valueOf(System.getProperty("lucandra.idf.ttl.ms",
+                                                            "60000"));
+
+    private static final Map<String, Stats> indexes = new MapMaker().makeMap();
+
+    private static class Stats
+    {
+        final List<ByteBuffer>   docFreqKeys;
+        final long               expires = System.currentTimeMillis() + ttl;
+        final Map<Term, Integer> docFreqs = new MapMaker().makeMap();
+        volatile long            numDocs  = -1;
+
+        Stats(List<ByteBuffer> docFreqKeys)
+        {
+            this.docFreqKeys = docFreqKeys;
+        }
+    }
+
+    /**
+     * @return the number of live docs across the index, or 0 if a sub-index
+     *         wasn't counted from its first doc
+     */
+    public static long numDocs(String indexName) throws IOException
+    {
+        Stats stats = getStats(indexName);
+
+        synchronized (stats)
+        {
+            if (stats.numDocs < 0)
+                read(indexName, stats, Collections.<Term> emptyList());
+        }
+
+        return stats.numDocs;
+    }
+
+    /**
+     * @return the docFreq of each term across the index
+     */
+    public static int[] docFreqs(String indexName, List<Term> terms) throws IOException
+    {
+        Stats stats = getStats(indexName);
+
+        // sub-indexes searched in parallel ask for the same terms at once
+        synchronized (stats)
+        {
+            List<Term> missing = new ArrayList<Term>();
+            for (Term term : terms)
+                if (!stats.docFreqs.containsKey(term))
+                    missing.add(term);
+
+            if (!missing.isEmpty() || stats.numDocs < 0)
+                read(indexName, stats, missing);
+        }
+
+        int[] docFreqs = new int[terms.size()];
+        for (int i = 0; i < docFreqs.length; i++)
+        {
+            Integer docFreq = stats.docFreqs.get(terms.get(i));
+
+            docFreqs[i] = docFreq == null ? 0 : docFreq;
+        }
+
+        return docFreqs;
+    }
+
+    private static Stats getStats(String indexName) throws IOException
+    {
+        Stats stats = indexes.get(indexName);
+
+        if (stats != null && stats.expires > System.currentTimeMillis())
+            return stats;
+
+        int numShards = CassandraIndexManager.getShardFromDocId(IndexManagerService.instance.getMaxId(indexName));
+
+        List<ByteBuffer> docFreqKeys = new ArrayList<ByteBuffer>(numShards + 1);
+        for (int i = 0; i <= numShards; i++)
+            docFreqKeys.add(CassandraUtils.hashKeyBytes((indexName + "~" + i).getBytes(),
+                    CassandraUtils.delimeterBytes, "freqs".getBytes()));
+
+        stats = new Stats(docFreqKeys);
+        indexes.put(indexName, stats);
+
+        return stats;
+    }
+
+    private static void read(String indexName, Stats stats, List<Term> terms) throws IOException
+    {
+        long start = System.currentTimeMillis();
+
+        List<ByteBuffer> columns = new ArrayList<ByteBuffer>(terms.size() + 1);
+        for (Term term : terms)
+            columns.add(CassandraUtils.createColumnName(term));
+
+        columns.add(CassandraUtils.numDocsFieldBytes);
+        columns.add(CassandraUtils.countedFieldBytes);
+
+        ReadCommand[] reads = new ReadCommand[stats.docFreqKeys.size()];
+        for (int i = 0; i < reads.length; i++)
+            reads[i] = new SliceByNamesReadCommand(CassandraUtils.keySpace, stats.docFreqKeys.get(i), new QueryPath(
+                    CassandraUtils.metaInfoColumnFamily), columns);
+
+        List<Row> rows = CassandraUtils.robustRead(ConsistencyLevel.ONE, reads);
+
+        int[] docFreqs = new int[terms.size()];
+        long numDocs = 0;
+        int counted = 0;
+
+        for (Row row : rows)
+        {
+            if (row.cf == null)
+                continue;
+
+            for (int i = 0; i < docFreqs.length; i++)
+                docFreqs[i] += getCount(row.cf, columns.get(i));
+
+            numDocs += getCount(row.cf, CassandraUtils.numDocsFieldBytes);
+
+            IColumn col = row.cf.getColumn(CassandraUtils.countedFieldBytes);
+            if (col != null && col.isLive())
+                counted++;
+        }
+
+        for (int i = 0; i < docFreqs.length; i++)
+            stats.docFreqs.put(terms.get(i), docFreqs[i]);
+
+        // a sub-index that took docs before it was counted would make the
+        // sums far too low
+        stats.numDocs = counted == reads.length ? numDocs : 0;
+
+        if (logger.isDebugEnabled())
+            logger.debug("Read global stats of " + terms.size() + " terms over " + reads.length + " sub-indexes of "
+                    + indexName + " (" + numDocs + " docs) in " + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    private static int getCount(ColumnFamily cf, ByteBuffer column)
+    {
+        IColumn col = cf.getColumn(column);
+
+        if (col == null || !col.isLive() || col.value().remaining() != 4)
+            return 0;
+
+        return CassandraUtils.byteArrayToInt(col.value());
+    }
+}
@@ -20,9 +20,11 @@
 package lucandra;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.collect.MapMaker;
 
@@ -32,6 +34,7 @@ import org.apache.cassandra.thrift.ColumnParent;
 import org.apache.cassandra.thrift.ConsistencyLevel;
 import org.apache.cassandra.utils.ByteBufferUtil;
 import org.apache.cassandra.utils.FBUtilities;
+import org.apache.cassandra.utils.Pair;
 import org.apache.log4j.Logger;
 import org.apache.lucene.analysis.SimpleAnalyzer;
 import org.apache.lucene.document.Document;
@@ -54,7 +57,6 @@ import solandra.SolandraFieldSelector;
 public class IndexReader extends org.apache.lucene.index.IndexReader
 {
 
-    private final static int                                numDocs       = CassandraUtils.maxDocsPerShard;
     private final static byte                               defaultNorm   = Similarity.encodeNorm(1.0f);
 
     private final static Directory                          mockDirectory = new RAMDirectory();
@@ -83,14 +85,58 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
     private final static ThreadLocal<ReaderCache>           activeCache   = new ThreadLocal<ReaderCache>();
     private final static ConcurrentMap<String, ReaderCache> globalCache   = new MapMaker().makeMap();
 
+    // bumped each time a sub-index is seen to change
+    private final static ConcurrentMap<String, Long>        generations   = new MapMaker().makeMap();
+    private final static AtomicLong                         lastGeneration = new AtomicLong();
+
     private static final Logger                             logger        = Logger.getLogger(IndexReader.class);
 
+    // set when this reader only ever reads one sub-index
+    private final String                                    fixedIndexName;
+    private final long                                      version;
+
     public IndexReader(String name)
     {
         super();
+        fixedIndexName = null;
+        version = 0;
         setIndexName(name);
     }
 
+    /**
+     * A reader of only this sub-index, whatever thread uses it, so several can
+     * be combined in a MultiReader. It stays current until the sub-index moves
+     * past the given generation.
+     */
+    public IndexReader(String name, long generation)
+    {
+        super();
+        fixedIndexName = name;
+        version = generation;
+    }
+
+    /**
+     * Marks a sub-index as changed, readers opened at an earlier generation
+     * are no longer current
+     * 
+     * @return the new generation
+     */
+    public static long nextGeneration(String indexName)
+    {
+        long generation = lastGeneration.incrementAndGet();
+
+        generations.put(indexName, generation);
+
+        return generation;
+    }
+
+    public static long getGeneration(String indexName)
+    {
+        Long generation = generations.get(indexName);
+
+        return generation == null ? 0 : generation;
+    }
+
     public synchronized IndexReader reopen() throws CorruptIndexException, IOException
     {
         clearCache();
@@ -120,7 +166,8 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
             globalCache.remove(activeIndex);
         }
 
-        activeCache.remove();
+        if (fixedIndexName == null)
+            activeCache.remove();
     }
 
     public ReaderCache getCache()
@@ -130,27 +177,30 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
         if (activeIndex == null)
             throw new IllegalStateException();
 
-        ReaderCache cache = activeCache.get();
+        // the thread's cache may belong to another reader's sub-index
+        ReaderCache cache = fixedIndexName == null ? activeCache.get() : null;
 
         if (cache != null)
             return cache;
         else
             cache = globalCache.get(activeIndex);
 
-        if (cache == null)
+        // a reader of a newer generation starts from a fresh cache
+        if (cache == null || cache.generation < version)
         {
             synchronized (activeIndex.intern())
             {
                 cache = globalCache.get(activeIndex);
-                if (cache == null)
+                if (cache == null || cache.generation < version)
                 {
-                    cache = new ReaderCache(activeIndex);
+                    cache = new ReaderCache(activeIndex, getVersion());
                     globalCache.put(activeIndex, cache);
                 }
             }
         }
 
-        activeCache.set(cache);
+        if (fixedIndexName == null)
+            activeCache.set(cache);
 
         return cache;
     }
@@ -183,11 +233,18 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
     public int docFreq(Term term) throws IOException
     {
 
-        LucandraTermInfo[] docs = getCache().termCache.get(term);
+        TermCache termCache = getCache().termCache;
+        LucandraTermInfo[] docs = termCache.get(term);
 
         if (docs != null)
             return docs.length;
 
+        // Use the maintained count if this term has one
+        Integer docFreq = termCache.getDocFreq(term);
+
+        if (docFreq != null)
+            return docFreq;
+
         LucandraTermEnum termEnum = new LucandraTermEnum(this);
 
         if (termEnum.skipTo(term) && termEnum.term().equals(term))
@@ -286,7 +343,7 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
 
             for (Map.Entry<Integer, ByteBuffer> key : keyMap.entrySet())
             {
-                Document cacheDoc = new Document();
+                Document cacheDoc;
 
                 Row row = rowMap.get(key.getValue());
 
@@ -295,65 +352,11 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
                     logger.warn("Missing document in multiget_slice for: "
                             + ByteBufferUtil.string(key.getValue(), CassandraUtils.UTF_8) + " " + rowMap);
 
+                    cacheDoc = new Document();
                 }
                 else
                 {
-                    for (IColumn col : row.cf.getSortedColumns())
-                    {
-
-                        Field field = null;
-                        String fieldName = ByteBufferUtil.string(col.name());
-
-                        // Incase __META__ slips through
-                        if (ByteBufferUtil.compare(col.name(), CassandraUtils.documentMetaField.getBytes()) == 0)
-                        {
-                            logger.warn("Filtering out __META__ key");
-                            continue;
-                        }
-
-                        byte[] value;
-                        ByteBuffer v = col.value();
-                        int vlimit = v.limit() + v.arrayOffset();
-
-                        if (v.array()[vlimit - 1] != Byte.MAX_VALUE && v.array()[vlimit - 1] != Byte.MIN_VALUE)
-                        {
-                            throw new CorruptIndexException("Lucandra field is not properly encoded: " + docNum + "("
-                                    + fieldName + ")");
-
-                        }
-                        else if (v.array()[vlimit - 1] == Byte.MAX_VALUE)
-                        { // Binary
-                            value = new byte[vlimit - 1];
-                            System.arraycopy(v.array(), v.position() + v.arrayOffset(), value, 0, vlimit - 1);
-
-                            field = new Field(fieldName, value, Store.YES);
-                            cacheDoc.add(field);
-                        }
-                        else if (v.array()[vlimit - 1] == Byte.MIN_VALUE)
-                        { // String
-                            value = new byte[vlimit - 1];
-                            System.arraycopy(v.array(), v.position() + v.arrayOffset(), value, 0, vlimit - 1);
-
-                            // Check for multi-fields
-                            String fieldString = new String(value, "UTF-8");
-
-                            if (fieldString.indexOf(CassandraUtils.delimeter) >= 0)
-                            {
-                                StringTokenizer tok = new StringTokenizer(fieldString, CassandraUtils.delimeter);
-                                while (tok.hasMoreTokens())
-                                {
-                                    field = new Field(fieldName, tok.nextToken(), Store.YES, Index.ANALYZED);
-                                    cacheDoc.add(field);
-                                }
-                            }
-                            else
-                            {
-
-                                field = new Field(fieldName, fieldString, Store.YES, Index.ANALYZED);
-                                cacheDoc.add(field);
-                            }
-                        }
-                    }
+                    cacheDoc = toDocument(key.getKey(), row.cf);
                 }
 
                 // Mark the required doc
@@ -381,6 +384,126 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
 
     }
 
+    // decodes the stored fields of a doc row
+    private static Document toDocument(int docNum, ColumnFamily cf) throws CorruptIndexException,
+            UnsupportedEncodingException
+    {
+        Document cacheDoc = new Document();
+
+        for (IColumn col : cf.getSortedColumns())
+        {
+
+            Field field = null;
+            String fieldName = ByteBufferUtil.string(col.name());
+
+            // Incase __META__ slips through
+            if (ByteBufferUtil.compare(col.name(), CassandraUtils.documentMetaField.getBytes()) == 0)
+            {
+                logger.warn("Filtering out __META__ key");
+                continue;
+            }
+
+            byte[] value;
+            ByteBuffer v = col.value();
+            int vlimit = v.limit() + v.arrayOffset();
+
+            if (v.array()[vlimit - 1] != Byte.MAX_VALUE && v.array()[vlimit - 1] != Byte.MIN_VALUE)
+            {
+                throw new CorruptIndexException("Lucandra field is not properly encoded: " + docNum + "("
+                        + fieldName + ")");
+
+            }
+            else if (v.array()[vlimit - 1] == Byte.MAX_VALUE)
+            { // Binary
+                value = new byte[vlimit - 1];
+                System.arraycopy(v.array(), v.position() + v.arrayOffset(), value, 0, vlimit - 1);
+
+                field = new Field(fieldName, value, Store.YES);
+                cacheDoc.add(field);
+            }
+            else if (v.array()[vlimit - 1] == Byte.MIN_VALUE)
+            { // String
+                value = new byte[vlimit - 1];
+                System.arraycopy(v.array(), v.position() + v.arrayOffset(), value, 0, vlimit - 1);
+
+                // Check for multi-fields
+                String fieldString = new String(value, "UTF-8");
+
+                if (fieldString.indexOf(CassandraUtils.delimeter) >= 0)
+                {
+                    StringTokenizer tok = new StringTokenizer(fieldString, CassandraUtils.delimeter);
+                    while (tok.hasMoreTokens())
+                    {
+                        field = new Field(fieldName, tok.nextToken(), Store.YES, Index.ANALYZED);
+                        cacheDoc.add(field);
+                    }
+                }
+                else
+                {
+
+                    field = new Field(fieldName, fieldString, Store.YES, Index.ANALYZED);
+                    cacheDoc.add(field);
+                }
+            }
+        }
+
+        return cacheDoc;
+    }
+
+    /**
+     * Reads docs straight from their rows in one multiget, bypassing every
+     * cache, for lookups that have to see the latest write. Reads at the
+     * consistency docs are written at, both QUORUM makes every write seen.
+     * 
+     * @param docs the sub-index and id within it of each doc
+     * @param fieldNames the fields to read, or null for all
+     * @return the docs in the order given, null where there is none
+     */
+    public static Document[] readDocuments(List<Pair<String, Integer>> docs, List<ByteBuffer> fieldNames)
+            throws IOException
+    {
+        ColumnParent columnParent = new ColumnParent(CassandraUtils.docColumnFamily);
+
+        ByteBuffer[] keys = new ByteBuffer[docs.size()];
+        ReadCommand[] readCommands = new ReadCommand[docs.size()];
+
+        for (int i = 0; i < keys.length; i++)
+        {
+            Pair<String, Integer> doc = docs.get(i);
+
+            keys[i] = CassandraUtils.hashKeyBytes(doc.left.getBytes(), CassandraUtils.delimeterBytes, Integer
+                    .toHexString(doc.right).getBytes());
+
+            if (fieldNames == null || fieldNames.isEmpty())
+                readCommands[i] = new SliceFromReadCommand(CassandraUtils.keySpace, keys[i], columnParent,
+                        FBUtilities.EMPTY_BYTE_BUFFER, CassandraUtils.finalTokenBytes, false, Integer.MAX_VALUE);
+            else
+                readCommands[i] = new SliceByNamesReadCommand(CassandraUtils.keySpace, keys[i], columnParent,
+                        fieldNames);
+        }
+
+        Document[] found = new Document[keys.length];
+
+        if (keys.length == 0)
+            return found;
+
+        Map<ByteBuffer, Row> rowMap = new HashMap<ByteBuffer, Row>(keys.length);
+        for (Row row : CassandraUtils.robustRead(CassandraUtils.writeConsistency, readCommands))
+            rowMap.put(row.key.key, row);
+
+        for (int i = 0; i < keys.length; i++)
+        {
+            Row row = rowMap.get(keys[i]);
+
+            if (row == null || row.cf == null || row.cf.getSortedColumns().isEmpty())
+                continue;
+
+            found[i] = toDocument(docs.get(i).right, row.cf);
+        }
+
+        return found;
+    }
+
     @Override
     public Object getFieldCacheKey()
     {
@@ -398,10 +521,48 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
     @Override
     public TermFreqVector getTermFreqVector(int docNum, String field) throws IOException
     {
+        Map<String, lucandra.TermFreqVector> termVectors = getCache().termVectors;
+        String key = lucandra.TermFreqVector.getKey(docNum, field);
+
+        TermFreqVector termVector = termVectors.get(key);
+
+        if (termVector != null)
+            return termVector;
 
-        TermFreqVector termVector = new lucandra.TermFreqVector(getIndexName(), field, docNum);
+        Map<String, lucandra.TermFreqVector> loaded = lucandra.TermFreqVector.load(getIndexName(), Arrays
+                .asList(docNum), Arrays.asList(field));
+        termVectors.putAll(loaded);
 
-        return termVector;
+        // soft values, so don't count on the cache still holding it
+        return loaded.get(key);
+    }
+
+    /**
+     * Loads the term vectors of these fields for a page of docs in one batch,
+     * so highlighting them doesn't read each doc and field in turn
+     */
+    public void loadTermFreqVectors(Collection<Integer> docNums, Collection<String> fields) throws IOException
+    {
+        Map<String, lucandra.TermFreqVector> termVectors = getCache().termVectors;
+
+        List<Integer> missing = new ArrayList<Integer>(docNums.size());
+
+        for (Integer docNum : docNums)
+        {
+            for (String field : fields)
+            {
+                if (!termVectors.containsKey(lucandra.TermFreqVector.getKey(docNum, field)))
+                {
+                    missing.add(docNum);
+                    break;
+                }
+            }
+        }
+
+        if (missing.isEmpty())
+            return;
+
+        termVectors.putAll(lucandra.TermFreqVector.load(getIndexName(), missing, fields));
     }
 
     @Override
@@ -441,7 +602,7 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
     @Override
     public int maxDoc()
     {
-        return numDocs + 1;
+        return numDocs() + 1;
     }
 
     @Override
@@ -461,8 +622,10 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
     @Override
     public int numDocs()
     {
+        if (getIndexName().length() == 0)
+            return CassandraUtils.maxDocsPerShard;
 
-        return numDocs;
+        return getCache().shardSize;
     }
 
     @Override
@@ -496,6 +659,9 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
     @Override
     public TermEnum terms(Term term) throws IOException
     {
+        // Whole field walks (FieldCache, UnInvertedField) read the doc-values
+        if (term != null && term.text().length() == 0 && CassandraUtils.docValuesFields.contains(term.field()))
+            return new LucandraDocValuesTermEnum(getDocValues(term.field()), term);
 
         TermEnum termEnum = new LucandraTermEnum(this);
 
@@ -504,6 +670,20 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
         return termEnum;
     }
 
+    public DocValues getDocValues(String field) throws IOException
+    {
+        ReaderCache cache = getCache();
+        DocValues values = cache.docValues.get(field);
+
+        if (values == null)
+        {
+            values = DocValues.load(getIndexName(), field);
+            cache.docValues.put(field, values);
+        }
+
+        return values;
+    }
+
     public void addDocumentNormalizations(LucandraTermInfo[] allDocs, String field, ReaderCache cache)
     {
 
@@ -515,7 +695,7 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
 
             int idx = docInfo.docId;
 
-            if (idx > numDocs)
+            if (idx >= cache.shardSize)
                 throw new IllegalStateException("numDocs reached");
 
             Byte norm = docInfo.norm;
@@ -530,7 +710,7 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
             docHits.fastSet(idx);
 
             if (norms == null)
-                norms = new byte[numDocs];
+                norms = new byte[cache.shardSize];
 
             norms[idx] = norm;
         }
@@ -540,6 +720,9 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
 
     public String getIndexName()
     {
+        if (fixedIndexName != null)
+            return fixedIndexName;
+
         String name = indexName.get();
 
         return name == null ? "" : name;
@@ -547,6 +730,9 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
 
     public void setIndexName(String name)
     {
+        if (fixedIndexName != null)
+            throw new IllegalStateException("Reader is fixed to " + fixedIndexName);
+
         activeCache.remove();
 
         indexName.set(name);
@@ -561,7 +747,7 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
     @Override
     public long getVersion()
     {
-        return Long.MAX_VALUE;
+        return fixedIndexName == null ? getGeneration(getIndexName()) : version;
     }
 
     @Override
@@ -573,7 +759,7 @@ public class IndexReader extends org.apache.lucene.index.IndexReader
     @Override
     public boolean isCurrent()
     {
-        return true;
+        return fixedIndexName == null || version >= getGeneration(fixedIndexName);
     }
 
     public OpenBitSet getDocsHit()
@@ -30,6 +30,7 @@ import java.util.concurrent.atomic.AtomicInteger;
 import com.google.common.collect.MapMaker;
 
 import org.apache.cassandra.db.*;
+import org.apache.cassandra.db.filter.QueryPath;
 import org.apache.cassandra.service.StorageProxy;
 import org.apache.cassandra.thrift.*;
 import org.apache.cassandra.utils.FBUtilities;
@@ -50,11 +51,19 @@ public class IndexWriter
 {
     private static final ConcurrentMap<String, Pair<AtomicInteger, LinkedBlockingQueue<RowMutation>>> mutationList = new MapMaker()
                                                                                                                            .makeMap();
+    private static final ConcurrentMap<String, LinkedBlockingQueue<Pair<Collection<Term>, Integer>>>   docFreqList  = new MapMaker()
+                                                                                                                           .makeMap();
     private Similarity                                                                                similarity   = Similarity
                                                                                                                            .getDefault();
     private static final Logger                                                                       logger       = Logger
                                                                                                                            .getLogger(IndexWriter.class);
 
+    // the docFreq lock, named for this jvm
+    private static final ByteBuffer lockOwner       = ByteBuffer.wrap(UUID.randomUUID().toString().getBytes());
+    private static final ByteBuffer docFreqLockCol  = ByteBuffer.wrap("lock".getBytes());
+    private static final int        docFreqLockTtl  = 60;    // seconds
+    private static final long       docFreqLockWait = 10000; // ms
+
     public IndexWriter()
     {
 
@@ -72,6 +81,7 @@ public class IndexWriter
                 .getBytes());
 
         List<Term> allIndexedTerms = new ArrayList<Term>();
+        Map<String, SortedSet<String>> docValues = new HashMap<String, SortedSet<String>>();
         Map<String, byte[]> fieldCache = new HashMap<String, byte[]>(1024);
 
         // By default we don't handle indexSharding
@@ -134,6 +144,7 @@ public class IndexWriter
                     Term term = new Term(field.name(), termAttribute.term());
 
                     allIndexedTerms.add(term);
+                    addDocValue(docValues, term);
 
                     // fetch all collected information for this term
                     Map<ByteBuffer, List<Number>> termInfo = allTermInformation.get(term);
@@ -236,6 +247,7 @@ public class IndexWriter
             {
                 Term term = new Term(field.name(), field.stringValue());
                 allIndexedTerms.add(term);
+                addDocValue(docValues, term);
 
                 ByteBuffer key = CassandraUtils.hashKeyBytes(indexName.getBytes(), CassandraUtils.delimeterBytes, field
                         .name().getBytes(), CassandraUtils.delimeterBytes, field.stringValue().getBytes("UTF-8"));
@@ -297,10 +309,21 @@ public class IndexWriter
                     "UTF-8"), key, field.getValue());
         }
 
+        // Doc-values get one column per doc in the field's block row
+        for (Map.Entry<String, SortedSet<String>> values : docValues.entrySet())
+        {
+            CassandraUtils.addMutations(workingMutations, CassandraUtils.docValuesColumnFamily, CassandraUtils
+                    .intToByteArray(docNumber), DocValues.getBlockKey(indexName, values.getKey(), docNumber),
+                    DocValues.encode(values.getValue()));
+        }
+
         // Finally, Store meta-data so we can delete this document
         CassandraUtils.addMutations(workingMutations, CassandraUtils.docColumnFamily,
                 CassandraUtils.documentMetaFieldBytes, key, CassandraUtils.toBytes(allIndexedTerms));
 
+        // Count each term once towards its docFreq
+        appendDocFreqs(indexName, new HashSet<Term>(allIndexedTerms), 1);
+
         if (rms != null)
         {
             Pair<AtomicInteger, LinkedBlockingQueue<RowMutation>> mutationQ = getMutationQueue(indexName);
@@ -433,6 +456,19 @@ public class IndexWriter
                     .writeVInt(docNumber), key, (ByteBuffer) null);
         }
 
+        appendDocFreqs(indexName, new HashSet<Term>(terms), -1);
+
+        Set<String> docValueFields = new HashSet<String>();
+        for (Term term : terms)
+        {
+            if (CassandraUtils.docValuesFields.contains(term.field()) && docValueFields.add(term.field()))
+            {
+                CassandraUtils.addMutations(workingMutations, CassandraUtils.docValuesColumnFamily, CassandraUtils
+                        .intToByteArray(docNumber), DocValues.getBlockKey(indexName, term.field(), docNumber),
+                        (ByteBuffer) null);
+            }
+        }
+
         // finally delete ourselves
         ByteBuffer selfKey = CassandraUtils.hashKeyBytes(indexNameBytes, CassandraUtils.delimeterBytes, docId);
         CassandraUtils.addMutations(workingMutations, CassandraUtils.docColumnFamily, (ByteBuffer) null, selfKey,
@@ -493,9 +529,11 @@ public class IndexWriter
                 return;
             }
 
-            CassandraUtils.robustInsert(ConsistencyLevel.ONE, rows.toArray(new RowMutation[] {}));
+            CassandraUtils.robustInsert(CassandraUtils.writeConsistency, rows.toArray(new RowMutation[] {}));
 
             success = true;
+
+            writeDocFreqs(indexName);
         }
         catch (InterruptedException e)
         {
@@ -522,6 +560,21 @@ public class IndexWriter
 
     }
 
+    private void addDocValue(Map<String, SortedSet<String>> docValues, Term term)
+    {
+        if (!CassandraUtils.docValuesFields.contains(term.field()))
+            return;
+
+        SortedSet<String> values = docValues.get(term.field());
+        if (values == null)
+        {
+            values = new TreeSet<String>();
+            docValues.put(term.field(), values);
+        }
+
+        values.add(term.text());
+    }
+
     // append complete mutations to the list
     private void appendMutations(String indexName, Map<ByteBuffer, RowMutation> mutations)
     {
@@ -531,6 +584,214 @@ public class IndexWriter
         mutationQ.right.addAll(mutations.values());
     }
 
+    // track the change in docFreq of each term, applied on commit
+    private void appendDocFreqs(String indexName, Collection<Term> terms, int delta)
+    {
+        if (terms.isEmpty())
+            return;
+
+        getDocFreqQueue(indexName).add(new Pair<Collection<Term>, Integer>(terms, delta));
+    }
+
+    /**
+     * Marks a new sub-index as counted from its first doc, so its docFreqs can
+     * be trusted. One that took docs before it was counted never gets the mark.
+     */
+    public static RowMutation markCounted(String indexName)
+    {
+        RowMutation rm = new RowMutation(CassandraUtils.keySpace, getDocFreqKey(indexName));
+        rm.add(new QueryPath(CassandraUtils.metaInfoColumnFamily, null, CassandraUtils.countedFieldBytes),
+                FBUtilities.EMPTY_BYTE_BUFFER, CassandraUtils.createTimestamp());
+
+        return rm;
+    }
+
+    /**
+     * Folds the pending docFreq changes for this index into the stored counts,
+     * along with its count of live docs.
+     * 
+     * There are no atomic increments, so the read and write happen under a
+     * lock on the index held at QUORUM, which every node writing to it takes.
+     * If the lock can't be had the changes wait for the next commit.
+     */
+    private void writeDocFreqs(String indexName)
+    {
+        LinkedBlockingQueue<Pair<Collection<Term>, Integer>> docFreqQ = getDocFreqQueue(indexName);
+
+        synchronized (docFreqQ)
+        {
+            List<Pair<Collection<Term>, Integer>> changes = new ArrayList<Pair<Collection<Term>, Integer>>();
+            docFreqQ.drainTo(changes);
+
+            if (changes.isEmpty())
+                return;
+
+            // each change is one doc added or removed
+            int numDocs = 0;
+
+            Map<ByteBuffer, Integer> deltas = new HashMap<ByteBuffer, Integer>();
+            for (Pair<Collection<Term>, Integer> change : changes)
+            {
+                numDocs += change.right;
+
+                for (Term term : change.left)
+                {
+                    ByteBuffer column = CassandraUtils.createColumnName(term);
+                    Integer delta = deltas.get(column);
+
+                    deltas.put(column, delta == null ? change.right : delta + change.right);
+                }
+            }
+
+            if (numDocs != 0)
+                deltas.put(CassandraUtils.numDocsFieldBytes, numDocs);
+
+            ByteBuffer docFreqKey = getDocFreqKey(indexName);
+
+            if (!lockDocFreqs(indexName))
+            {
+                logger.warn("Unable to lock docFreqs of " + indexName + ", will retry on next commit");
+                docFreqQ.addAll(changes);
+                return;
+            }
+
+            try
+            {
+                List<Row> rows = CassandraUtils.robustRead(docFreqKey, new QueryPath(
+                        CassandraUtils.metaInfoColumnFamily), new ArrayList<ByteBuffer>(deltas.keySet()),
+                        ConsistencyLevel.QUORUM);
+
+                ColumnFamily current = rows.isEmpty() ? null : rows.get(0).cf;
+
+                RowMutation rm = new RowMutation(CassandraUtils.keySpace, docFreqKey);
+                for (Map.Entry<ByteBuffer, Integer> delta : deltas.entrySet())
+                {
+                    IColumn col = current == null ? null : current.getColumn(delta.getKey());
+
+                    int docFreq = delta.getValue();
+                    if (col != null && col.isLive() && col.value().remaining() == 4)
+                        docFreq += CassandraUtils.byteArrayToInt(col.value());
+
+                    rm.add(new QueryPath(CassandraUtils.metaInfoColumnFamily, null, delta.getKey()), ByteBuffer
+                            .wrap(CassandraUtils.intToByteArray(Math.max(0, docFreq))), CassandraUtils
+                            .createTimestamp());
+                }
+
+                CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rm);
+            }
+            catch (IOException e)
+            {
+                logger.error("Unable to read docFreqs for " + indexName + ", will retry on next commit", e);
+                docFreqQ.addAll(changes);
+            }
+            finally
+            {
+                unlockDocFreqs(indexName);
+            }
+        }
+    }
+
+    /**
+     * Takes the docFreq lock of an index. A node holds it when its column is
+     * the only live one, so of two nodes racing for it at least one backs off.
+     * The column expires in case its node dies holding it.
+     * 
+     * @return false if it couldn't be had in time
+     */
+    private boolean lockDocFreqs(String indexName)
+    {
+        ByteBuffer lockKey = getDocFreqLockKey(indexName);
+        long giveUp = System.currentTimeMillis() + docFreqLockWait;
+
+        Random random = new Random();
+
+        while (true)
+        {
+            RowMutation rm = new RowMutation(CassandraUtils.keySpace, lockKey);
+            rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, docFreqLockCol, lockOwner),
+                    FBUtilities.EMPTY_BYTE_BUFFER, CassandraUtils.createTimestamp(), docFreqLockTtl);
+
+            CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rm);
+
+            try
+            {
+                List<Row> rows = CassandraUtils.robustRead(lockKey, new QueryPath(
+                        CassandraUtils.schemaInfoColumnFamily), Arrays.asList(docFreqLockCol),
+                        ConsistencyLevel.QUORUM);
+
+                IColumn lock = rows.isEmpty() || rows.get(0).cf == null ? null : rows.get(0).cf
+                        .getColumn(docFreqLockCol);
+
+                boolean held = lock != null;
+                if (lock != null)
+                {
+                    for (IColumn holder : lock.getSubColumns())
+                    {
+                        if (!holder.isMarkedForDelete() && !holder.name().equals(lockOwner))
+                            held = false;
+                    }
+                }
+
+                if (held)
+                    return true;
+            }
+            catch (IOException e)
+            {
+                // back off and try again
+            }
+
+            unlockDocFreqs(indexName);
+
+            if (System.currentTimeMillis() > giveUp)
+                return false;
+
+            try
+            {
+                Thread.sleep(10 + random.nextInt(90));
+            }
+            catch (InterruptedException e)
+            {
+                return false;
+            }
+        }
+    }
+
+    private void unlockDocFreqs(String indexName)
+    {
+        RowMutation rm = new RowMutation(CassandraUtils.keySpace, getDocFreqLockKey(indexName));
+        rm.delete(new QueryPath(CassandraUtils.schemaInfoColumnFamily, docFreqLockCol, lockOwner), CassandraUtils
+                .createTimestamp());
+
+        CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rm);
+    }
+
+    private static ByteBuffer getDocFreqKey(String indexName)
+    {
+        return CassandraUtils.hashKeyBytes(indexName.getBytes(), CassandraUtils.delimeterBytes, "freqs".getBytes());
+    }
+
+    private static ByteBuffer getDocFreqLockKey(String indexName)
+    {
+        return CassandraUtils.hashKeyBytes(indexName.getBytes(), CassandraUtils.delimeterBytes, "freqlock"
+                .getBytes());
+    }
+
+    private LinkedBlockingQueue<Pair<Collection<Term>, Integer>> getDocFreqQueue(String indexName)
+    {
+        LinkedBlockingQueue<Pair<Collection<Term>, Integer>> docFreqQ = docFreqList.get(indexName);
+
+        if (docFreqQ == null)
+        {
+            docFreqQ = new LinkedBlockingQueue<Pair<Collection<Term>, Integer>>();
+            LinkedBlockingQueue<Pair<Collection<Term>, Integer>> liveQ = docFreqList.putIfAbsent(indexName, docFreqQ);
+
+            if (liveQ != null)
+                docFreqQ = liveQ;
+        }
+
+        return docFreqQ;
+    }
+
     private Pair<AtomicInteger, LinkedBlockingQueue<RowMutation>> getMutationQueue(String indexName)
     {
 
@@ -23,7 +23,6 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import org.apache.cassandra.db.ExpiringColumn;
@@ -47,7 +46,7 @@ public class LucandraAllTermDocs implements TermDocs
     private String        indexName;
     private int           idx;      // tracks where we are in the doc buffer
     private int           fillSize; // tracks how much the buffer was filled with docs from cassandra
-    private int[]         docBuffer = new int[CassandraUtils.maxDocsPerShard+1]; // max number of docs we pull
+    private int[]         docBuffer; // max number of docs we pull
     private int           doc       = -1;
     private int           maxDoc;
 
@@ -55,7 +54,7 @@ public class LucandraAllTermDocs implements TermDocs
     {
         indexName = indexReader.getIndexName();
         maxDoc = indexReader.maxDoc();
-        Arrays.fill(docBuffer, 0);
+        docBuffer = new int[maxDoc];
         
         idx = 0;
         fillSize = 0;
@@ -0,0 +1,74 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermEnum;
+
+/**
+ * Enumerates a single field from its DocValues, ends at the last term of the
+ * field.
+ */
+public class LucandraDocValuesTermEnum extends TermEnum
+{
+    private final DocValues values;
+    private int             position;
+
+    public LucandraDocValuesTermEnum(DocValues values, Term term)
+    {
+        this.values = values;
+
+        position = values.seek(term);
+    }
+
+    @Override
+    public boolean next() throws IOException
+    {
+        if (position < values.terms.length)
+            position++;
+
+        return position < values.terms.length;
+    }
+
+    @Override
+    public Term term()
+    {
+        return position < values.terms.length ? values.terms[position] : null;
+    }
+
+    @Override
+    public int docFreq()
+    {
+        return position < values.terms.length ? values.docs[position].length : 0;
+    }
+
+    public LucandraTermInfo[] getTermDocFreq()
+    {
+        return position < values.terms.length ? values.docs[position] : null;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+
+    }
+}
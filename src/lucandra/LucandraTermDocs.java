@@ -89,8 +89,17 @@ public class LucandraTermDocs implements TermDocs, TermPositions
 
     public void seek(Term term) throws IOException
     {
+        ReaderCache cache = indexReader.getCache();
 
-        if (termEnum.skipTo(term))
+        // Use any prefetched postings first
+        LucandraTermInfo[] cachedDocs = cache.termCache.get(term);
+
+        if (cachedDocs != null)
+        {
+            indexReader.addDocumentNormalizations(cachedDocs, term.field(), cache);
+            termDocs = cachedDocs;
+        }
+        else if (termEnum.skipTo(term))
         {
             if (termEnum.term().equals(term))
             {
@@ -107,6 +116,13 @@ public class LucandraTermDocs implements TermDocs, TermPositions
 
     public void seek(TermEnum termEnum) throws IOException
     {
+        if (termEnum instanceof LucandraDocValuesTermEnum)
+        {
+            termDocs = ((LucandraDocValuesTermEnum) termEnum).getTermDocFreq();
+            docPosition = -1;
+            return;
+        }
+
         if (termEnum instanceof LucandraTermEnum)
         {
             this.termEnum = (LucandraTermEnum) termEnum;
@@ -141,7 +157,9 @@ public class LucandraTermDocs implements TermDocs, TermPositions
         if (termDocs == null)
             return false;
 
-        docPosition = 0;
+        // read() leaves the position past the docs it returned, so scan from
+        // the start rather than skip the first doc
+        docPosition = -1;
 
         do
         {
@@ -23,12 +23,13 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.concurrent.ConcurrentNavigableMap;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.apache.cassandra.db.*;
 import org.apache.cassandra.thrift.ColumnParent;
 import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.cassandra.utils.FBUtilities;
 import org.apache.log4j.Logger;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermEnum;
@@ -42,8 +43,10 @@ public class LucandraTermEnum extends TermEnum
     private final TermCache          termCache;
     
     //Local info this enum 
-    private Map.Entry<Term, LucandraTermInfo[]>      currentTermEntry;
-    private ConcurrentNavigableMap<Term, LucandraTermInfo[]> termView;
+    private TermBlock                currentBlock;
+    private TermBlock.Cursor         cursor;
+    private Term                     currentTerm;
+    private Future<TermBlock>        nextBlock;
     
     
  
@@ -62,10 +65,10 @@ public class LucandraTermEnum extends TermEnum
         if (term == null)
             return false;
         
-        termView         = termCache.skipTo(term);            
-        currentTermEntry = termView.firstEntry();
+        currentBlock = termCache.skipTo(term);
+        nextBlock    = null;
         
-        return currentTermEntry != null;
+        return seek(term, false);
     }
     
     @Override
@@ -77,54 +80,45 @@ public class LucandraTermEnum extends TermEnum
     @Override
     public int docFreq()
     {
-        
-        int freq = currentTermEntry == null ? 0 : currentTermEntry.getValue().length;
-        return freq;
+        return hasTerm() ? cursor.docs().length : 0;
     }
 
     @Override
     public boolean next() throws IOException
     {
-        //current term is in tree
-        if(termView.size() < 2)
-        {
-            currentTermEntry = null;
+        if (!hasTerm())
             return false;
-        }
-        
-        termView = termView.tailMap(currentTermEntry.getKey(), false);
-        currentTermEntry = termView.firstEntry();
         
-        //rebuffer on last key
-        if(termView.size() == 1)
+        if (cursor.next())
         {
-           termView = termCache.skipTo(currentTermEntry.getKey());
-        
-           if(termView.size() < 2 && termView.firstEntry().getKey().equals(currentTermEntry))
-           {
-               currentTermEntry = null;
-               return false;
-           }
+            currentTerm = cursor.term();
+            
+            // fetch the following block while this one is walked
+            if (nextBlock == null && !currentBlock.last && cursor.position() >= currentBlock.size() / 2)
+                nextBlock = termCache.readAhead(currentBlock.endTerm());
+            
+            return true;
         }
         
-        return true;      
+        //rebuffer from the end of the block
+        return seek(currentTerm, true);      
     }
 
     @Override
     public Term term()
     {
-        return currentTermEntry == null ? null : currentTermEntry.getKey();
+        return hasTerm() ? currentTerm : null;
     }
 
    
-    public final LucandraTermInfo[] getTermDocFreq()
+    public LucandraTermInfo[] getTermDocFreq()
     {
-        if(currentTermEntry == null)
+        if(!hasTerm())
             return null;
 
-        Term term = currentTermEntry.getKey();
+        Term term = currentTerm;
 
-        LucandraTermInfo[] docIds = currentTermEntry.getValue();
+        LucandraTermInfo[] docIds = cursor.docs();
 
         
         // set normalizations
@@ -133,6 +127,63 @@ public class LucandraTermEnum extends TermEnum
         return docIds;
     }
     
+    /**
+     * Positions on the first term >= term, or > term if exclusive. Blocks
+     * whose remaining terms were all deleted are walked past until a live
+     * term turns up or the term list ends.
+     */
+    private boolean seek(Term term, boolean exclusive) throws IOException
+    {
+        ByteBuffer name = CassandraUtils.createColumnName(term);
+        
+        while (true)
+        {
+            cursor = currentBlock.seek(name);
+            
+            if (exclusive && cursor.hasTerm() && cursor.term().equals(term))
+                cursor.next();
+            
+            if (cursor.hasTerm())
+            {
+                currentTerm = cursor.term();
+                return true;
+            }
+            
+            if (currentBlock.last)
+            {
+                currentTerm = null;
+                return false;
+            }
+            
+            currentBlock = nextBlock == null ? termCache.skipTo(currentBlock.endTerm()) : getNextBlock();
+            nextBlock    = null;
+        }
+    }
+    
+    private boolean hasTerm()
+    {
+        return cursor != null && cursor.hasTerm();
+    }
+    
+    private TermBlock getNextBlock() throws IOException
+    {
+        try
+        {
+            return nextBlock.get();
+        }
+        catch (InterruptedException e)
+        {
+            throw new IOException(e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            
+            throw new RuntimeException(e.getCause());
+        }
+    }
+    
     
     public LucandraTermInfo[] loadFilteredTerms(Term term, List<ByteBuffer> docNums) throws IOException
     {
@@ -170,4 +221,70 @@ public class LucandraTermEnum extends TermEnum
         return termInfo;
     }
 
+    /**
+     * Reads up to count postings of a term, newest first.
+     * 
+     * @param before only read docs lower than this, or null to start from the
+     *            newest
+     */
+    public LucandraTermInfo[] loadRecentTerms(Term term, Integer before, int count) throws IOException
+    {
+        ColumnParent parent = new ColumnParent();
+        parent.setColumn_family(CassandraUtils.termVecColumnFamily);
+
+        ByteBuffer key;
+        try
+        {
+            key = CassandraUtils.hashKeyBytes(indexName.getBytes(), CassandraUtils.delimeterBytes, term.field()
+                    .getBytes(), CassandraUtils.delimeterBytes, term.text().getBytes("UTF-8"));
+        }
+        catch (UnsupportedEncodingException e2)
+        {
+            throw new RuntimeException("JVM doesn't support UTF-8", e2);
+        }
+
+        List<LucandraTermInfo> recent = new ArrayList<LucandraTermInfo>(count);
+
+        // deleted docs use up a slice too, so read on until there are enough
+        while (recent.size() < count)
+        {
+            int wanted = count - recent.size();
+
+            // the slice start is inclusive
+            ByteBuffer start = before == null ? FBUtilities.EMPTY_BYTE_BUFFER : ByteBuffer.wrap(CassandraUtils
+                    .writeVInt(before));
+
+            ReadCommand rc = new SliceFromReadCommand(CassandraUtils.keySpace, key, parent, start,
+                    FBUtilities.EMPTY_BYTE_BUFFER, true, before == null ? wanted : wanted + 1);
+
+            List<Row> rows = CassandraUtils.robustRead(ConsistencyLevel.ONE, rc);
+
+            if (rows == null || rows.isEmpty() || rows.get(0) == null || rows.get(0).cf == null)
+                break;
+
+            // columns come back in ascending order
+            List<IColumn> columns = new ArrayList<IColumn>(rows.get(0).cf.getSortedColumns());
+            int read = 0;
+
+            for (int i = columns.size() - 1; i >= 0; i--)
+            {
+                IColumn col = columns.get(i);
+                int docId = CassandraUtils.readVInt(col.name());
+
+                if (before != null && docId >= before)
+                    continue;
+
+                read++;
+                before = docId;
+
+                if (col.isLive())
+                    recent.add(new LucandraTermInfo(docId, col.value()));
+            }
+
+            if (read < wanted)
+                break;
+        }
+
+        return recent.toArray(new LucandraTermInfo[recent.size()]);
+    }
 }
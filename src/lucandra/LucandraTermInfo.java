@@ -40,6 +40,19 @@ public class LucandraTermInfo implements Comparable<LucandraTermInfo>
     public final Byte    norm;
     
     
+    // A posting with no positions or norm, used for doc-values
+    public LucandraTermInfo(int docId)
+    {
+        this.docId   = docId;
+        freq         = 1;
+        hasNorm      = false;
+        norm         = null;
+        hasPositions = false;
+        positions    = null;
+        hasOffsets   = false;
+        offsets      = null;
+    }
+    
     public LucandraTermInfo(int docId, Map<ByteBuffer, List<Number>> data)
     {
         this.docId = docId;
@@ -24,6 +24,8 @@ import java.util.UUID;
 
 import com.google.common.collect.MapMaker;
 
+import lucandra.cluster.IndexManagerService;
+
 import org.apache.lucene.document.Document;
 import org.apache.lucene.util.OpenBitSet;
 
@@ -34,16 +36,24 @@ public class ReaderCache
     public final TermCache termCache;
     public final Map<String, byte[]>  fieldNorms;
     public final OpenBitSet docHits;
+    public final Map<String, DocValues> docValues;
+    public final Map<String, TermFreqVector> termVectors;
     public final Object fieldCacheKey;
+    public final int shardSize;
+    public final long generation;
     
-    public ReaderCache(String indexName)
+    public ReaderCache(String indexName, long generation)
     {
         this.indexName = indexName;
+        this.generation = generation;
         
         documents           = new MapMaker().makeMap();
         termCache           = new TermCache(indexName);
         fieldNorms          = new MapMaker().makeMap();
-        docHits             = new OpenBitSet(CassandraUtils.maxDocsPerShard);
+        shardSize           = IndexManagerService.instance.getShardSize(indexName);
+        docHits             = new OpenBitSet(shardSize);
+        docValues           = new MapMaker().makeMap();
+        termVectors         = new MapMaker().softValues().makeMap();
         
         fieldCacheKey = UUID.randomUUID();
     }
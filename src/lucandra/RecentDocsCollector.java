@@ -0,0 +1,153 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TopDocs;
+
+/**
+ * Collects the newest docs of an index whose docIds rise with time, see
+ * CassandraIndexManager.setTimeOrdered.
+ *
+ * As a regular Collector it keeps the highest docIds it is handed. For a
+ * single term collectTerm reads the postings newest first, a slice at a time,
+ * and stops as soon as no older doc could make it in.
+ */
+public class RecentDocsCollector extends Collector
+{
+    private final int                     numHits;
+
+    // lowest doc first, so it's the one to drop
+    private final PriorityQueue<ScoreDoc> hits;
+    private int                           totalHits = 0;
+
+    private Scorer                        scorer;
+    private int                           docBase;
+
+    public RecentDocsCollector(int numHits)
+    {
+        if (numHits <= 0)
+            throw new IllegalArgumentException("numHits must be > 0");
+
+        this.numHits = numHits;
+
+        hits = new PriorityQueue<ScoreDoc>(numHits, new Comparator<ScoreDoc>() {
+            public int compare(ScoreDoc o1, ScoreDoc o2)
+            {
+                return o1.doc < o2.doc ? -1 : (o1.doc == o2.doc ? 0 : 1);
+            }
+        });
+    }
+
+    @Override
+    public void setScorer(Scorer scorer) throws IOException
+    {
+        this.scorer = scorer;
+    }
+
+    @Override
+    public void collect(int doc) throws IOException
+    {
+        doc += docBase;
+        totalHits++;
+
+        if (hits.size() >= numHits)
+        {
+            if (doc <= hits.peek().doc)
+                return;
+
+            hits.poll();
+        }
+
+        hits.add(new ScoreDoc(doc, scorer == null ? Float.NaN : scorer.score()));
+    }
+
+    @Override
+    public void setNextReader(org.apache.lucene.index.IndexReader reader, int docBase) throws IOException
+    {
+        this.docBase = docBase;
+    }
+
+    @Override
+    public boolean acceptsDocsOutOfOrder()
+    {
+        return true;
+    }
+
+    /**
+     * Collects the newest docs containing the term, reading its postings in
+     * slices of numHits.
+     */
+    public void collectTerm(IndexReader reader, Term term) throws IOException
+    {
+        LucandraTermEnum termEnum = new LucandraTermEnum(reader);
+
+        setNextReader(reader, 0);
+        scorer = null;
+
+        Integer before = null;
+
+        while (true)
+        {
+            LucandraTermInfo[] docs = termEnum.loadRecentTerms(term, before, numHits);
+
+            for (LucandraTermInfo doc : docs)
+            {
+                // the rest are older still
+                if (hits.size() >= numHits && doc.docId <= hits.peek().doc)
+                    return;
+
+                collect(doc.docId);
+            }
+
+            if (docs.length < numHits)
+                return;
+
+            before = docs[docs.length - 1].docId;
+        }
+    }
+
+    /**
+     * @return the docs collected, newest first. Only the docs looked at are
+     *         counted in totalHits when collecting a term.
+     */
+    public TopDocs topDocs()
+    {
+        ScoreDoc[] docs = new ScoreDoc[hits.size()];
+        float maxScore = Float.NaN;
+
+        for (int i = docs.length - 1; i >= 0; i--)
+        {
+            docs[i] = hits.poll();
+
+            if (!Float.isNaN(docs[i].score) && (Float.isNaN(maxScore) || docs[i].score > maxScore))
+                maxScore = docs[i].score;
+        }
+
+        return new TopDocs(totalHits, docs, maxScore);
+    }
+}
@@ -0,0 +1,259 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import org.apache.cassandra.db.marshal.BytesType;
+import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.lucene.index.Term;
+
+/**
+ * An immutable, sorted run of buffered terms and their postings, covering the
+ * term list columns from start to end. Enumerations walk it with a cursor so
+ * advancing is constant time.
+ *
+ * Terms are kept as front-coded UTF-8 column names: each entry stores the
+ * length it shares with the previous one and its remaining bytes. Every
+ * restartInterval entries is stored whole so lookups can binary search those
+ * and scan a few entries from there.
+ */
+public class TermBlock
+{
+    private static final int           restartInterval = 16;
+
+    public final ByteBuffer            start;
+    public final ByteBuffer            end;
+
+    // the read reached the end of the term list
+    public final boolean               last;
+
+    private final byte[]               termBytes;
+    private final int[]                restarts;
+    private final LucandraTermInfo[][] docs;
+
+    /**
+     * Walks the terms of a block in order, decoding each entry once
+     */
+    public class Cursor
+    {
+        private final ByteBuffer entries = ByteBuffer.wrap(termBytes);
+        private byte[]           current = new byte[] {};
+        private int              position;
+
+        // before the first entry of a restart
+        private Cursor(int restart)
+        {
+            entries.position(restarts.length == 0 ? 0 : restarts[restart]);
+            position = restart * restartInterval - 1;
+        }
+
+        public int position()
+        {
+            return position;
+        }
+
+        public boolean hasTerm()
+        {
+            return position >= 0 && position < size();
+        }
+
+        public Term term()
+        {
+            return CassandraUtils.parseTerm(new String(current, CassandraUtils.UTF_8));
+        }
+
+        public LucandraTermInfo[] docs()
+        {
+            return docs[position];
+        }
+
+        /**
+         * @return false once past the last term
+         */
+        public boolean next()
+        {
+            if (position + 1 >= size())
+            {
+                position = size();
+                return false;
+            }
+
+            current = decode(entries, current);
+            position++;
+
+            return true;
+        }
+
+        private int compareTo(ByteBuffer name)
+        {
+            return ByteBufferUtil.compare(current, name);
+        }
+    }
+
+    private TermBlock(ByteBuffer start, ByteBuffer end, boolean last, byte[] termBytes, int[] restarts,
+            LucandraTermInfo[][] docs)
+    {
+        this.start = start;
+        this.end = end;
+        this.last = last;
+        this.termBytes = termBytes;
+        this.restarts = restarts;
+        this.docs = docs;
+    }
+
+    /**
+     * @param names term list column names in order
+     * @param docs the postings of each name
+     * @param last true if nothing follows end in the term list
+     */
+    public static TermBlock create(ByteBuffer start, ByteBuffer end, List<ByteBuffer> names,
+            List<LucandraTermInfo[]> docs, boolean last)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int[] restarts = new int[(names.size() + restartInterval - 1) / restartInterval];
+
+        byte[] previous = null;
+        for (int i = 0; i < names.size(); i++)
+        {
+            ByteBuffer nameBuf = names.get(i);
+            byte[] name = new byte[nameBuf.remaining()];
+            nameBuf.duplicate().get(name);
+
+            int prefix = 0;
+            if (i % restartInterval == 0)
+            {
+                restarts[i / restartInterval] = out.size();
+            }
+            else
+            {
+                while (prefix < previous.length && prefix < name.length && previous[prefix] == name[prefix])
+                    prefix++;
+            }
+
+            byte[] prefixBytes = CassandraUtils.writeVInt(prefix);
+            byte[] suffixBytes = CassandraUtils.writeVInt(name.length - prefix);
+
+            out.write(prefixBytes, 0, prefixBytes.length);
+            out.write(suffixBytes, 0, suffixBytes.length);
+            out.write(name, prefix, name.length - prefix);
+
+            previous = name;
+        }
+
+        return new TermBlock(start, end, last, out.toByteArray(), restarts, docs
+                .toArray(new LucandraTermInfo[docs.size()][]));
+    }
+
+    public int size()
+    {
+        return docs.length;
+    }
+
+    // the last term read from the term list, live or not
+    public Term endTerm()
+    {
+        return CassandraUtils.parseTerm(ByteBufferUtil.string(end, CassandraUtils.UTF_8));
+    }
+
+    /**
+     * @return true if this block was read over the given name, the end is
+     *         exclusive so enumerations can carry on past it unless the read
+     *         reached the end of the term list
+     */
+    public boolean covers(ByteBuffer name)
+    {
+        return start != null && BytesType.instance.compare(start, name) <= 0
+                && (last || BytesType.instance.compare(name, end) < 0);
+    }
+
+    /**
+     * @return the postings of this term or null if it isn't in this block
+     */
+    public LucandraTermInfo[] get(ByteBuffer name)
+    {
+        Cursor cursor = seek(name);
+
+        if (cursor.hasTerm() && cursor.compareTo(name) == 0)
+            return cursor.docs();
+
+        return null;
+    }
+
+    /**
+     * @return a cursor on the first term >= name, past the end if there is
+     *         none
+     */
+    public Cursor seek(ByteBuffer name)
+    {
+        // find the last whole entry <= name
+        int low = 0;
+        int high = restarts.length - 1;
+        int restart = 0;
+
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+
+            if (ByteBufferUtil.compare(restartName(mid), name) <= 0)
+            {
+                restart = mid;
+                low = mid + 1;
+            }
+            else
+            {
+                high = mid - 1;
+            }
+        }
+
+        // then scan from it
+        Cursor cursor = new Cursor(restart);
+
+        while (cursor.next())
+        {
+            if (cursor.compareTo(name) >= 0)
+                break;
+        }
+
+        return cursor;
+    }
+
+    private byte[] restartName(int restart)
+    {
+        ByteBuffer entries = ByteBuffer.wrap(termBytes);
+        entries.position(restarts[restart]);
+
+        return decode(entries, new byte[] {});
+    }
+
+    private static byte[] decode(ByteBuffer entries, byte[] previous)
+    {
+        int prefix = CassandraUtils.mreadVInt(entries);
+        int suffix = CassandraUtils.mreadVInt(entries);
+
+        byte[] name = new byte[prefix + suffix];
+        System.arraycopy(previous, 0, name, 0, prefix);
+        entries.get(name, prefix, suffix);
+
+        return name;
+    }
+}
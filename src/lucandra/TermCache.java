@@ -4,10 +4,12 @@ import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
 import java.util.*;
-import java.util.concurrent.ConcurrentNavigableMap;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.*;
 
+import org.apache.cassandra.concurrent.NamedThreadFactory;
 import org.apache.cassandra.db.*;
+import org.apache.cassandra.db.filter.QueryPath;
+import org.apache.cassandra.db.marshal.BytesType;
 import org.apache.cassandra.thrift.ColumnParent;
 import org.apache.cassandra.thrift.ConsistencyLevel;
 import org.apache.cassandra.utils.ByteBufferUtil;
@@ -16,68 +18,329 @@ import org.apache.cassandra.utils.Pair;
 import org.apache.log4j.Logger;
 import org.apache.lucene.index.Term;
 
+import com.google.common.collect.MapMaker;
+
 public class TermCache
 {
     
-    private final static Term emptyTerm = new Term("");
-    private final static ConcurrentNavigableMap<Term, LucandraTermInfo[]> emptyMap = new ConcurrentSkipListMap<Term, LucandraTermInfo[]>();
+    private final static ExecutorService         readAheadPool = Executors.newFixedThreadPool(4, new NamedThreadFactory("TermReadAhead"));
     private final static ColumnParent            fieldColumnFamily = new ColumnParent(CassandraUtils.metaInfoColumnFamily);
+    private final static ColumnParent            termColumnFamily  = new ColumnParent(CassandraUtils.termVecColumnFamily);
     private final static Logger                  logger = Logger.getLogger(TermCache.class);
+    private final static int                     termPageSize = 1024;
     
     public final String                                               indexName;
     public final ByteBuffer                                           termsListKey;
-    public final ConcurrentSkipListMap<Term, LucandraTermInfo[]>      termList;
-    public final ConcurrentSkipListMap<Term, Pair<Term,Term>>         termQueryBoundries;
+    public final ByteBuffer                                           docFreqKey;
+    public final ConcurrentSkipListMap<ByteBuffer, TermBlock>         termBlocks;
+    public final Map<Term, LucandraTermInfo[]>                        loadedTerms;
+    public final Map<Term, Integer>                                   docFreqs;
+    public final Map<String, List<Term>>                              fieldTerms;
+    
+    // whether the stored docFreqs can be trusted, null until read
+    private volatile Boolean                                          counted;
+    
+    // cached for terms without a stored docFreq
+    private final static Integer                                      noDocFreq = -1;
   
 
     public TermCache(String indexName)
     {
         this.indexName = indexName;
         termsListKey   = CassandraUtils.hashKeyBytes(indexName.getBytes(), CassandraUtils.delimeterBytes, "terms".getBytes());        
-        termList       = new ConcurrentSkipListMap<Term, LucandraTermInfo[]>();
-
-        //Get the boundries of terms each term
-        termQueryBoundries    = new ConcurrentSkipListMap<Term, Pair<Term,Term>>();        
+        docFreqKey     = CassandraUtils.hashKeyBytes(indexName.getBytes(), CassandraUtils.delimeterBytes, "freqs".getBytes());
+        
+        //Buffered ranges of the term list by their first column
+        termBlocks     = new ConcurrentSkipListMap<ByteBuffer, TermBlock>(BytesType.instance);
+        loadedTerms    = new MapMaker().makeMap();
+        docFreqs       = new MapMaker().makeMap();
+        fieldTerms     = new MapMaker().makeMap();
     }
     
     //Cache check only
     public LucandraTermInfo[] get(Term term)
     {
-        return termList.get(term);      
+        LucandraTermInfo[] docs = loadedTerms.get(term);
+        
+        if (docs != null)
+            return docs;
+        
+        ByteBuffer name = CassandraUtils.createColumnName(term);
+        Map.Entry<ByteBuffer, TermBlock> block = termBlocks.floorEntry(name);
+        
+        return block == null ? null : block.getValue().get(name);
     }
     
-    public ConcurrentNavigableMap<Term, LucandraTermInfo[]> skipTo(Term skip) throws IOException
+    /**
+     * Looks up the stored document frequency of a term without loading its postings
+     * 
+     * @return the docFreq or null if none is stored for this term, or the
+     *         sub-index's counts can't be trusted
+     */
+    public Integer getDocFreq(Term term) throws IOException
     {
+        Integer docFreq = docFreqs.get(term);
         
-        Pair<Term,Term> range = null;
+        if (docFreq != null)
+            return docFreq < 0 ? null : docFreq;
         
-        int bufferSize = termList.isEmpty() ? 4 : 64;
-           
-        //verify we've buffered sufficiently        
-        Map.Entry<Term, Pair<Term,Term>> tailEntry = termQueryBoundries.ceilingEntry(skip);
-        boolean needsBuffering = true;
-         
-        if(tailEntry != null)
+        if (Boolean.FALSE.equals(counted))
+            return null;
+        
+        ByteBuffer column = CassandraUtils.createColumnName(term);
+        
+        List<Row> rows = CassandraUtils.robustRead(docFreqKey, new QueryPath(CassandraUtils.metaInfoColumnFamily),
+                Arrays.asList(column, CassandraUtils.countedFieldBytes), ConsistencyLevel.ONE);
+        
+        ColumnFamily cf = rows.isEmpty() ? null : rows.get(0).cf;
+        
+        if (!isCounted(cf))
+            return null;
+        
+        IColumn col = cf.getColumn(column);
+        
+        // remembered so the next lookup goes straight to the postings
+        if (col == null || !col.isLive() || col.value().remaining() != 4)
         {
-            range = tailEntry.getValue();
+            docFreqs.put(term, noDocFreq);
+            return null;
+        }
+        
+        docFreq = CassandraUtils.byteArrayToInt(col.value());
+        docFreqs.put(term, docFreq);
+        
+        return docFreq;
+    }
+    
+    /**
+     * @return true if the stored docFreqs of this sub-index were counted from
+     *         its first doc, so they can stand in for its postings
+     */
+    public boolean isCounted() throws IOException
+    {
+        if (counted == null)
+        {
+            List<Row> rows = CassandraUtils.robustRead(docFreqKey, new QueryPath(CassandraUtils.metaInfoColumnFamily),
+                    Arrays.asList(CassandraUtils.countedFieldBytes), ConsistencyLevel.ONE);
+            
+            isCounted(rows.isEmpty() ? null : rows.get(0).cf);
+        }
+        
+        return counted;
+    }
+    
+    private boolean isCounted(ColumnFamily cf)
+    {
+        IColumn col = cf == null ? null : cf.getColumn(CassandraUtils.countedFieldBytes);
+        
+        counted = col != null && col.isLive();
+        
+        return counted;
+    }
+    
+    /**
+     * Reads the names of a field's terms from the term list, without their postings
+     * 
+     * @return the terms in index order
+     */
+    public List<Term> getTerms(String field) throws IOException
+    {
+        List<Term> terms = fieldTerms.get(field);
+        
+        if (terms != null)
+            return terms;
+        
+        long start = System.currentTimeMillis();
+        
+        terms = new ArrayList<Term>();
+        ByteBuffer startName = CassandraUtils.createColumnName(new Term(field, ""));
+        
+        page: while (true)
+        {
+            List<Row> rows = CassandraUtils.robustRead(ConsistencyLevel.ONE,
+                    new SliceFromReadCommand(CassandraUtils.keySpace, termsListKey, fieldColumnFamily, startName,
+                            FBUtilities.EMPTY_BYTE_BUFFER, false, termPageSize));
+            
+            if (rows.isEmpty() || rows.get(0).cf == null)
+                break;
+            
+            Collection<IColumn> columns = rows.get(0).cf.getSortedColumns();
+            
+            for (IColumn column : columns)
+            {
+                // the slice starts at the last term of the previous page
+                if (!terms.isEmpty() && column.name().equals(startName))
+                    continue;
+                
+                Term term = CassandraUtils.parseTerm(ByteBufferUtil.string(column.name(), CassandraUtils.UTF_8));
+                
+                if (!term.field().equals(field))
+                    break page;
+                
+                terms.add(term);
+            }
+            
+            if (columns.size() < termPageSize)
+                break;
             
-            if(skip.compareTo(range.left) >= 0 && (!range.right.equals(emptyTerm) && skip.compareTo(range.right) < 0))
-                needsBuffering = false;                      
+            startName = CassandraUtils.createColumnName(terms.get(terms.size() - 1));
         }
         
-        ConcurrentNavigableMap<Term, LucandraTermInfo[]> subList = emptyMap;
+        if (logger.isDebugEnabled())
+            logger.debug("Read " + terms.size() + " terms of " + indexName + "/" + field + " in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        
+        fieldTerms.put(field, terms);
         
-        if(needsBuffering)
+        return terms;
+    }
+    
+    /**
+     * Looks up the stored document frequencies of many terms, a page of names at a time
+     * 
+     * @return the docFreq of each term, or -1 where none is stored or the
+     *         sub-index's counts can't be trusted
+     */
+    public int[] getDocFreqs(List<Term> terms) throws IOException
+    {
+        int[] freqs = new int[terms.size()];
+        
+        if (!isCounted())
         {
-            range = bufferTerms(skip, bufferSize);    
+            Arrays.fill(freqs, -1);
+            return freqs;
         }
         
-        if(skip.compareTo(range.left) >= 0 && (!range.right.equals(emptyTerm)) && skip.compareTo(range.right) <= 0)
+        List<Integer> unknown = new ArrayList<Integer>();
+        
+        for (int i = 0; i < freqs.length; i++)
         {
-            subList = termList.subMap(skip, true, range.right, true);            
+            Integer docFreq = docFreqs.get(terms.get(i));
+            
+            if (docFreq == null)
+                unknown.add(i);
+            else
+                freqs[i] = docFreq;
         }
         
-        return subList;
+        for (int from = 0; from < unknown.size(); from += termPageSize)
+        {
+            List<Integer> page = unknown.subList(from, Math.min(unknown.size(), from + termPageSize));
+            List<ByteBuffer> columns = new ArrayList<ByteBuffer>(page.size());
+            
+            for (Integer i : page)
+                columns.add(CassandraUtils.createColumnName(terms.get(i)));
+            
+            List<Row> rows = CassandraUtils.robustRead(docFreqKey, new QueryPath(CassandraUtils.metaInfoColumnFamily),
+                    columns, ConsistencyLevel.ONE);
+            
+            ColumnFamily cf = rows.isEmpty() ? null : rows.get(0).cf;
+            
+            for (int j = 0; j < page.size(); j++)
+            {
+                int i = page.get(j);
+                IColumn col = cf == null ? null : cf.getColumn(columns.get(j));
+                
+                if (col == null || !col.isLive() || col.value().remaining() != 4)
+                {
+                    freqs[i] = -1;
+                    docFreqs.put(terms.get(i), noDocFreq);
+                    continue;
+                }
+                
+                freqs[i] = CassandraUtils.byteArrayToInt(col.value());
+                docFreqs.put(terms.get(i), freqs[i]);
+            }
+        }
+        
+        return freqs;
+    }
+    
+    /**
+     * Loads the postings of every uncached term in one multiget, so a whole
+     * query can be primed with a single round trip before it is scored.
+     * 
+     * @return the number of terms found
+     */
+    public int loadTerms(Collection<Term> terms) throws IOException
+    {
+        Map<Term, LucandraTermInfo[]> found = readTerms(terms);
+        
+        loadedTerms.putAll(found);
+        
+        return found.size();
+    }
+    
+    /**
+     * Reads the postings of every uncached term in one multiget, without
+     * keeping them, for callers that only pass over them once.
+     * 
+     * @return the postings of the terms found
+     */
+    public Map<Term, LucandraTermInfo[]> readTerms(Collection<Term> terms) throws IOException
+    {
+        long start = System.currentTimeMillis();
+        
+        Set<Term> requested = new HashSet<Term>(terms.size());
+        List<ReadCommand> reads = new ArrayList<ReadCommand>(terms.size());
+        
+        for (Term term : terms)
+        {
+            if (get(term) != null || !requested.add(term))
+                continue;
+            
+            reads.add(new SliceFromReadCommand(CassandraUtils.keySpace, getTermKey(term), termColumnFamily,
+                    FBUtilities.EMPTY_BYTE_BUFFER, FBUtilities.EMPTY_BYTE_BUFFER, false, Integer.MAX_VALUE));
+        }
+        
+        if (reads.isEmpty())
+            return Collections.emptyMap();
+        
+        List<Row> rows = CassandraUtils.robustRead(ConsistencyLevel.ONE, reads.toArray(new ReadCommand[] {}));
+        
+        Map<Term, LucandraTermInfo[]> found = new HashMap<Term, LucandraTermInfo[]>(rows.size());
+        for (Row row : rows)
+        {
+            Pair<Term, LucandraTermInfo[]> termDocs = parseTermRow(row);
+            
+            if (termDocs != null)
+                found.put(termDocs.left, termDocs.right);
+        }
+        
+        if (logger.isDebugEnabled())
+            logger.debug("readTerms: read " + found.size() + " of " + reads.size() + " terms in "
+                    + (System.currentTimeMillis() - start) + "ms");
+        
+        return found;
+    }
+    
+    /**
+     * Buffers the block following the given term in the background
+     */
+    public Future<TermBlock> readAhead(final Term from)
+    {
+        return readAheadPool.submit(new Callable<TermBlock>() {
+            public TermBlock call() throws IOException
+            {
+                return skipTo(from);
+            }
+        });
+    }
+    
+    /**
+     * @return the buffered block holding the first term >= skip
+     */
+    public TermBlock skipTo(Term skip) throws IOException
+    {
+        ByteBuffer name = CassandraUtils.createColumnName(skip);
+        
+        //verify we've buffered sufficiently        
+        Map.Entry<ByteBuffer, TermBlock> block = termBlocks.floorEntry(name);
+        
+        if (block != null && block.getValue().covers(name))
+            return block.getValue();
+        
+        return bufferTerms(skip, termBlocks.isEmpty() ? 4 : 64);
     }
     
     
@@ -106,20 +369,19 @@ public class TermCache
         return termInfo;
     }
     
-    public Pair<Term,Term> bufferTerms(Term startTerm, int bufferSize) throws IOException
+    public TermBlock bufferTerms(Term startTerm, int bufferSize) throws IOException
     {
         assert bufferSize > 0;
         
         long start = System.currentTimeMillis();
+        
+        ByteBuffer startName = CassandraUtils.createColumnName(startTerm);
               
         // Scan range of terms in this field (reversed, so we have a exit point)
         List<Row> rows = CassandraUtils.robustRead(ConsistencyLevel.ONE,
-                new SliceFromReadCommand(CassandraUtils.keySpace, termsListKey, fieldColumnFamily, CassandraUtils.createColumnName(startTerm),
+                new SliceFromReadCommand(CassandraUtils.keySpace, termsListKey, fieldColumnFamily, startName,
                         FBUtilities.EMPTY_BYTE_BUFFER, false, bufferSize));
 
-        ColumnParent columnParent = new ColumnParent(CassandraUtils.termVecColumnFamily);
-
-        
         // Collect read commands
         Collection<IColumn> columns;
         
@@ -135,60 +397,34 @@ public class TermCache
                 logger.debug("Found "+columns.size()+" terms under field "+startTerm.field());
         }
         
-
-        Term endTerm;
-        Pair<Term,Term> queryRange;
-                
-        if(!columns.isEmpty())
-        {
-            //Yuck, need last column
-            IColumn lastColumn = null;
-            Iterator<IColumn> it = columns.iterator();
-            
-            while(it.hasNext())
-                lastColumn = it.next();
-            
-            endTerm = CassandraUtils.parseTerm(ByteBufferUtil.string(lastColumn.name(),CassandraUtils.UTF_8));
-            queryRange = new Pair<Term, Term>(startTerm, endTerm);
-        }
-        else
+        // a short read means the term list ends in this block
+        boolean last = columns.size() < bufferSize;
+        
+        if(columns.isEmpty())
         {
-            queryRange = new Pair<Term, Term>(startTerm, emptyTerm);
-            
-            termQueryBoundries.put(startTerm, queryRange);
+            // remember there is nothing past here either
+            TermBlock block = TermBlock.create(startName, startName, Collections.<ByteBuffer> emptyList(),
+                    Collections.<LucandraTermInfo[]> emptyList(), true);
+            termBlocks.put(startName, block);
             
-            return queryRange;
+            return block;
         }
         
-        
-        Map<Term,Pair<Term,Term>> localRanges = new HashMap<Term,Pair<Term,Term>>(columns.size());
-        localRanges.put(startTerm, queryRange);
-              
+        List<ByteBuffer> names = new ArrayList<ByteBuffer>(columns.size());
         List<ReadCommand> reads = new ArrayList<ReadCommand>(columns.size());
         for (IColumn column : columns)
         {           
             Term term = CassandraUtils.parseTerm(ByteBufferUtil.string(column.name(),CassandraUtils.UTF_8));
             
+            names.add(column.name());
             
-            localRanges.put(term, queryRange);
-            
-            ByteBuffer rowKey;
-            try
-            {
-                rowKey = CassandraUtils.hashKeyBytes(indexName.getBytes(),    CassandraUtils.delimeterBytes, 
-                                                                term.field().getBytes(), CassandraUtils.delimeterBytes, 
-                                                                term.text().getBytes("UTF-8"));
-            }
-            catch (UnsupportedEncodingException e)
-            {
-                throw new RuntimeException("This JVM doesn't support UTF-8");
-            }
+            ByteBuffer rowKey = getTermKey(term);
 
             if (logger.isDebugEnabled())
                 logger.debug("scanning row: " + ByteBufferUtil.string(rowKey));
             
             
-            reads.add((ReadCommand) new SliceFromReadCommand(CassandraUtils.keySpace, rowKey, columnParent,
+            reads.add((ReadCommand) new SliceFromReadCommand(CassandraUtils.keySpace, rowKey, termColumnFamily,
                     FBUtilities.EMPTY_BYTE_BUFFER, FBUtilities.EMPTY_BYTE_BUFFER, false, Integer.MAX_VALUE));
         }
 
@@ -205,72 +441,111 @@ public class TermCache
 
         }
 
-        if (actualReadSize > 0)
+        Map<ByteBuffer, LucandraTermInfo[]> termDocs = new HashMap<ByteBuffer, LucandraTermInfo[]>(actualReadSize);
+        for (Row row : rows)
         {
-            for (Row row : rows)
+            Pair<Term, LucandraTermInfo[]> termRow = parseTermRow(row);
+            
+            if (termRow != null)
+                termDocs.put(CassandraUtils.createColumnName(termRow.left), termRow.right);
+        }
+        
+        // keep the term list order, dropping terms with no live docs
+        List<ByteBuffer> liveNames = new ArrayList<ByteBuffer>(termDocs.size());
+        List<LucandraTermInfo[]> liveDocs = new ArrayList<LucandraTermInfo[]>(termDocs.size());
+        for (ByteBuffer name : names)
+        {
+            LucandraTermInfo[] docs = termDocs.get(name);
+            
+            if (docs != null)
             {
+                liveNames.add(name);
+                liveDocs.add(docs);
+            }
+        }
+        
+        TermBlock block = TermBlock.create(startName, names.get(names.size() - 1), liveNames, liveDocs, last);
+        
+        //to recall we did this query
+        termBlocks.put(startName, block);           
 
-                if (row.cf == null)
-                    continue;
+        long end = System.currentTimeMillis();
 
-                String key = ByteBufferUtil.string(row.key.key, CassandraUtils.UTF_8);
+        if (logger.isDebugEnabled())
+        {
+            logger.debug("loadTerms: " + startTerm + "(" + actualReadSize + ") took "+ (end - start) + "ms");
+        }
                
-                // term keys look like wikipedia/body/wiki
-                String termStr = key.substring(key.indexOf(CassandraUtils.delimeter) + CassandraUtils.delimeter.length());
-                Term term = CassandraUtils.parseTerm(termStr);
+        return block;
+    }  
+
+    /**
+     * Parses a TI row, dropping deleted columns
+     * 
+     * @return the term and its postings or null if it has no live docs
+     */
+    private Pair<Term, LucandraTermInfo[]> parseTermRow(Row row)
+    {
+        if (row.cf == null)
+            return null;
 
-                columns = row.cf.getSortedColumns();
+        String key = ByteBufferUtil.string(row.key.key, CassandraUtils.UTF_8);
+       
+        // term keys look like wikipedia/body/wiki
+        String termStr = key.substring(key.indexOf(CassandraUtils.delimeter) + CassandraUtils.delimeter.length());
+        Term term = CassandraUtils.parseTerm(termStr);
 
-                if(logger.isDebugEnabled())
-                    logger.debug(term + " has " + columns.size());
-           
-                // remove any deleted columns
-                Collection<IColumn> columnsToRemove = null;
+        Collection<IColumn> columns = row.cf.getSortedColumns();
 
-                for (IColumn col : columns)
-                {
-                    if (!col.isLive())
-                    {
-                        if (columnsToRemove == null)
-                            columnsToRemove = new ArrayList<IColumn>();
-                                
-                        columnsToRemove.add(col);
-                    }
-                            
-                    if(logger.isDebugEnabled())
-                        logger.debug("Kept DocId "+CassandraUtils.readVInt(col.name()));
-                }
+        if(logger.isDebugEnabled())
+            logger.debug(term + " has " + columns.size());
+   
+        // remove any deleted columns
+        Collection<IColumn> columnsToRemove = null;
 
-                if (columnsToRemove != null)
-                {
-                    columns.removeAll(columnsToRemove);
-                }
+        for (IColumn col : columns)
+        {
+            if (!col.isLive())
+            {
+                if (columnsToRemove == null)
+                    columnsToRemove = new ArrayList<IColumn>();
                         
-                if (!columns.isEmpty())
-                {
-                    if (logger.isDebugEnabled())
-                        logger.debug("saving term: " + term + " with "+columns.size()+" docs");
-
-                    termList.put(term, convertTermInfo(columns));
-                }
-                else
-                {
-                    if(logger.isDebugEnabled())
-                        logger.debug("Skipped term: "+term);
-                } 
+                columnsToRemove.add(col);
             }
-            
-            //to recall we did this query
-            termQueryBoundries.putAll(localRanges);           
+                    
+            if(logger.isDebugEnabled())
+                logger.debug("Kept DocId "+CassandraUtils.readVInt(col.name()));
         }
 
-        long end = System.currentTimeMillis();
-
+        if (columnsToRemove != null)
+        {
+            columns.removeAll(columnsToRemove);
+        }
+                
+        if (columns.isEmpty())
+        {
+            if(logger.isDebugEnabled())
+                logger.debug("Skipped term: "+term);
+            
+            return null;
+        }
+        
         if (logger.isDebugEnabled())
+            logger.debug("saving term: " + term + " with "+columns.size()+" docs");
+
+        return new Pair<Term, LucandraTermInfo[]>(term, convertTermInfo(columns));
+    }
+    
+    private ByteBuffer getTermKey(Term term)
+    {
+        try
         {
-            logger.debug("loadTerms: " + startTerm + "(" + actualReadSize + ") took "+ (end - start) + "ms");
+            return CassandraUtils.hashKeyBytes(indexName.getBytes(), CassandraUtils.delimeterBytes, term.field()
+                    .getBytes(), CassandraUtils.delimeterBytes, term.text().getBytes("UTF-8"));
         }
-               
-        return queryRange;
-    }  
+        catch (UnsupportedEncodingException e)
+        {
+            throw new RuntimeException("This JVM doesn't support UTF-8");
+        }
+    }
 }
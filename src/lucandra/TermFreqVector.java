@@ -22,143 +22,234 @@ package lucandra;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.*;
 
+import org.apache.cassandra.db.ColumnFamily;
+import org.apache.cassandra.db.IColumn;
 import org.apache.cassandra.db.ReadCommand;
 import org.apache.cassandra.db.Row;
 import org.apache.cassandra.db.SliceByNamesReadCommand;
 import org.apache.cassandra.thrift.ColumnParent;
 import org.apache.cassandra.thrift.ConsistencyLevel;
-import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.log4j.Logger;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermVectorOffsetInfo;
 
 public class TermFreqVector implements org.apache.lucene.index.TermFreqVector,
         org.apache.lucene.index.TermPositionVector
 {
+    private static final ColumnParent termColumnFamily = new ColumnParent(CassandraUtils.termVecColumnFamily);
+    private static final Logger       logger           = Logger.getLogger(TermFreqVector.class);
 
     private String                   field;
-    private byte[]                   docId;
     private String[]                 terms;
     private int[]                    freqVec;
     private int[][]                  termPositions;
     private TermVectorOffsetInfo[][] termOffsets;
 
-    public TermFreqVector(String indexName, String field, int docI)
+    private TermFreqVector(String field, int docI, SortedSet<Term> fieldTerms, Map<Term, ColumnFamily> termRows)
     {
         this.field = field;
-        this.docId = Integer.toHexString(docI).getBytes();
 
-        ByteBuffer key = CassandraUtils.hashKeyBytes(indexName.getBytes(), CassandraUtils.delimeterBytes, docId);
+        List<String> found = new ArrayList<String>(fieldTerms.size());
+        List<LucandraTermInfo> infos = new ArrayList<LucandraTermInfo>(fieldTerms.size());
 
-        ReadCommand rc = new SliceByNamesReadCommand(CassandraUtils.keySpace, key, CassandraUtils.metaColumnPath,
-                Arrays.asList(CassandraUtils.documentMetaFieldBytes));
+        ByteBuffer docColumn = ByteBuffer.wrap(CassandraUtils.writeVInt(docI));
 
-        List<Row> rows = null;
-        try
+        for (Term t : fieldTerms)
         {
+            ColumnFamily cf = termRows.get(t);
 
-            rows = CassandraUtils.robustRead(ConsistencyLevel.ONE, rc);
+            if (cf == null)
+                continue;
 
-            if (rows.isEmpty())
-            {
+            IColumn col = cf.getColumn(docColumn);
 
-                return; // this docId is missing
-            }
+            if (col == null || !col.isLive())
+                continue;
 
-            List<Term> allTerms;
+            found.add(t.text());
+            infos.add(new LucandraTermInfo(docI, col.value()));
+        }
 
-            allTerms = (List<Term>) CassandraUtils.fromBytes(rows.get(0).cf.getColumn(
-                    CassandraUtils.documentMetaFieldBytes).value());
+        terms = found.toArray(new String[found.size()]);
+        freqVec = new int[terms.length];
+        termPositions = new int[terms.length][];
+        termOffsets = new TermVectorOffsetInfo[terms.length][];
 
-            List<ReadCommand> readCommands = new ArrayList<ReadCommand>();
+        for (int i = 0; i < terms.length; i++)
+        {
+            LucandraTermInfo termInfo = infos.get(i);
 
-            for (Term t : allTerms)
-            {
+            // Find the offsets and positions
+            termPositions[i] = termInfo.positions == null ? new int[] {} : termInfo.positions;
+            freqVec[i] = termInfo.positions == null ? termInfo.freq : termPositions[i].length;
 
-                // skip the ones not of this field
-                if (!t.field().equals(field))
-                    continue;
+            if (!termInfo.hasOffsets)
+            {
+                termOffsets[i] = TermVectorOffsetInfo.EMPTY_OFFSET_INFO;
+            }
+            else
+            {
+                int[] offsets = termInfo.offsets;
 
-                // add to multiget params
-                try
-                {
-                    key = CassandraUtils.hashKeyBytes(indexName.getBytes(), CassandraUtils.delimeterBytes, t.field()
-                            .getBytes("UTF-8"), CassandraUtils.delimeterBytes, t.text().getBytes("UTF-8"));
-                }
-                catch (UnsupportedEncodingException e)
+                termOffsets[i] = new TermVectorOffsetInfo[offsets.length / 2];
+                for (int j = 0, k = 0; j < offsets.length; j += 2, k++)
                 {
-                    throw new RuntimeException("JVM doesn't support UTF-8", e);
+                    termOffsets[i][k] = new TermVectorOffsetInfo(offsets[j], offsets[j + 1]);
                 }
-
-                readCommands.add(new SliceByNamesReadCommand(CassandraUtils.keySpace, key, new ColumnParent()
-                        .setColumn_family(CassandraUtils.termVecColumnFamily), Arrays.asList(ByteBuffer
-                        .wrap(CassandraUtils.writeVInt(docI)))));
             }
+        }
+    }
 
-            rows = CassandraUtils.robustRead(ConsistencyLevel.ONE, readCommands.toArray(new ReadCommand[] {}));
+    /**
+     * @return the key a doc's vector for a field is cached under
+     */
+    public static String getKey(int docI, String field)
+    {
+        return field + CassandraUtils.delimeter + docI;
+    }
 
-        }
-        catch (IOException e)
-        {
-            throw new RuntimeException(e);
-        }
-        catch (ClassNotFoundException e)
+    /**
+     * Loads the vectors of the given fields for a batch of docs, reading all
+     * their term lists in one multiget and the postings of all their terms in
+     * another, rather than two reads per doc and field.
+     * 
+     * @return the vectors keyed by getKey, docs that are missing get empty ones
+     */
+    public static Map<String, TermFreqVector> load(String indexName, Collection<Integer> docIds,
+            Collection<String> fields) throws IOException
+    {
+        long start = System.currentTimeMillis();
+
+        List<ReadCommand> metaReads = new ArrayList<ReadCommand>(docIds.size());
+        Map<ByteBuffer, Integer> docKeys = new HashMap<ByteBuffer, Integer>(docIds.size());
+
+        for (Integer docI : docIds)
         {
-            throw new RuntimeException(e);
+            ByteBuffer key = CassandraUtils.hashKeyBytes(indexName.getBytes(), CassandraUtils.delimeterBytes, Integer
+                    .toHexString(docI).getBytes());
+
+            docKeys.put(key, docI);
+            metaReads.add(new SliceByNamesReadCommand(CassandraUtils.keySpace, key, CassandraUtils.metaColumnPath,
+                    Arrays.asList(CassandraUtils.documentMetaFieldBytes)));
         }
 
-        terms = new String[rows.size()];
-        freqVec = new int[rows.size()];
-        termPositions = new int[rows.size()][];
-        termOffsets = new TermVectorOffsetInfo[rows.size()][];
+        List<Row> rows = CassandraUtils.robustRead(ConsistencyLevel.ONE, metaReads.toArray(new ReadCommand[] {}));
 
-        int i = 0;
+        // the terms of each vector, and the docs to read from each term's row
+        Map<String, SortedSet<Term>> vectorTerms = new HashMap<String, SortedSet<Term>>();
+        Map<Term, List<ByteBuffer>> termDocs = new HashMap<Term, List<ByteBuffer>>();
 
         for (Row row : rows)
         {
-            String rowKey = ByteBufferUtil.string(row.key.key, CassandraUtils.UTF_8);
+            Integer docI = docKeys.get(row.key.key);
 
-            String termStr = rowKey.substring(rowKey.indexOf(CassandraUtils.delimeter)
-                    + CassandraUtils.delimeter.length());
+            if (docI == null || row.cf == null)
+                continue;
 
-            Term t = CassandraUtils.parseTerm(termStr);
+            IColumn meta = row.cf.getColumn(CassandraUtils.documentMetaFieldBytes);
 
-            terms[i] = t.text();
+            if (meta == null)
+                continue;
 
-            // Find the offsets and positions
-            LucandraTermInfo termInfo = null;
+            List<Term> allTerms;
+            try
+            {
+                allTerms = (List<Term>) CassandraUtils.fromBytes(meta.value());
+            }
+            catch (ClassNotFoundException e)
+            {
+                throw new RuntimeException(e);
+            }
 
-            if (row.cf != null)
+            ByteBuffer docColumn = ByteBuffer.wrap(CassandraUtils.writeVInt(docI));
+
+            for (Term t : allTerms)
             {
-                termInfo = new LucandraTermInfo(0, row.cf.getSortedColumns().iterator().next().value());
+                // skip the ones not of these fields
+                if (!fields.contains(t.field()))
+                    continue;
+
+                String vectorKey = getKey(docI, t.field());
+                SortedSet<Term> terms = vectorTerms.get(vectorKey);
+                if (terms == null)
+                {
+                    terms = new TreeSet<Term>();
+                    vectorTerms.put(vectorKey, terms);
+                }
+
+                if (!terms.add(t))
+                    continue;
+
+                List<ByteBuffer> columns = termDocs.get(t);
+                if (columns == null)
+                {
+                    columns = new ArrayList<ByteBuffer>();
+                    termDocs.put(t, columns);
+                }
 
-                termPositions[i] = termInfo.positions;
+                columns.add(docColumn);
             }
+        }
 
-            freqVec[i] = termPositions[i].length;
+        Map<Term, ColumnFamily> termRows = new HashMap<Term, ColumnFamily>(termDocs.size());
 
-            if (termInfo == null || !termInfo.hasOffsets)
+        if (!termDocs.isEmpty())
+        {
+            List<ReadCommand> termReads = new ArrayList<ReadCommand>(termDocs.size());
+            Map<ByteBuffer, Term> termKeys = new HashMap<ByteBuffer, Term>(termDocs.size());
+
+            for (Map.Entry<Term, List<ByteBuffer>> e : termDocs.entrySet())
             {
-                termOffsets[i] = TermVectorOffsetInfo.EMPTY_OFFSET_INFO;
+                ByteBuffer key = getTermKey(indexName, e.getKey());
+
+                termKeys.put(key, e.getKey());
+                termReads.add(new SliceByNamesReadCommand(CassandraUtils.keySpace, key, termColumnFamily, e
+                        .getValue()));
             }
-            else
-            {
 
-                int[] offsets = termInfo.offsets;
+            for (Row row : CassandraUtils.robustRead(ConsistencyLevel.ONE, termReads.toArray(new ReadCommand[] {})))
+            {
+                Term t = termKeys.get(row.key.key);
 
-                termOffsets[i] = new TermVectorOffsetInfo[freqVec[i]];
-                for (int j = 0, k = 0; j < offsets.length; j += 2, k++)
-                {
-                    termOffsets[i][k] = new TermVectorOffsetInfo(offsets[j], offsets[j + 1]);
-                }
+                if (t != null && row.cf != null)
+                    termRows.put(t, row.cf);
             }
+        }
 
-            i++;
+        Map<String, TermFreqVector> vectors = new HashMap<String, TermFreqVector>();
+        SortedSet<Term> none = new TreeSet<Term>();
+
+        for (Integer docI : docIds)
+        {
+            for (String field : fields)
+            {
+                String vectorKey = getKey(docI, field);
+                SortedSet<Term> terms = vectorTerms.get(vectorKey);
+
+                vectors.put(vectorKey, new TermFreqVector(field, docI, terms == null ? none : terms, termRows));
+            }
         }
 
+        if (logger.isDebugEnabled())
+            logger.debug("Loaded " + vectors.size() + " term vectors over " + termRows.size() + " terms in "
+                    + (System.currentTimeMillis() - start) + "ms");
+
+        return vectors;
+    }
+
+    private static ByteBuffer getTermKey(String indexName, Term t)
+    {
+        try
+        {
+            return CassandraUtils.hashKeyBytes(indexName.getBytes(), CassandraUtils.delimeterBytes, t.field()
+                    .getBytes("UTF-8"), CassandraUtils.delimeterBytes, t.text().getBytes("UTF-8"));
+        }
+        catch (UnsupportedEncodingException e)
+        {
+            throw new RuntimeException("JVM doesn't support UTF-8", e);
+        }
     }
 
     public String getField()
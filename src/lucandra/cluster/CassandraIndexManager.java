@@ -25,17 +25,21 @@ import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.*;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
 import lucandra.CassandraUtils;
+import lucandra.IndexWriter;
 
 import com.google.common.collect.MapMaker;
 
+import org.apache.cassandra.concurrent.NamedThreadFactory;
 import org.apache.cassandra.db.*;
 import org.apache.cassandra.db.filter.QueryPath;
+import org.apache.cassandra.dht.Token;
 import org.apache.cassandra.service.StorageService;
 import org.apache.cassandra.thrift.ColumnParent;
 import org.apache.cassandra.thrift.ConsistencyLevel;
@@ -52,14 +56,68 @@ public class CassandraIndexManager
     // The idea being different shards live on different boxes
     protected final int                                              shardsAtOnce;
 
+    // Write to shards replicated on this node when any have room
+    private final boolean                                            preferLocalShards = Boolean.valueOf(System
+                                                                                               .getProperty(
+                                                                                                       "shards.prefer.local",
+                                                                                                       "false"));
+
     private int[]                                                    randomSeq;
 
     public static final int                                          reserveSlabSize = (int) Math.pow(2, 10);
     private final int                                                offsetSlots     = CassandraUtils.maxDocsPerShard
                                                                                              / reserveSlabSize;
+
+    // Docs per shard of each index, and the part of our sequence within it
+    private final ConcurrentMap<String, Integer>                     shardSizes      = new MapMaker().makeMap();
+    private final ConcurrentMap<Integer, int[]>                      randomSeqs      = new MapMaker().makeMap();
+    private final ByteBuffer                                         shardSizeCol    = ByteBuffer.wrap("shardSize"
+                                                                                             .getBytes());
+
+    // Indexes whose ids rise with time, and the slabs of a shard in order
+    private final ConcurrentMap<String, Boolean>                     timeOrdered     = new MapMaker().makeMap();
+    private final ConcurrentMap<Integer, int[]>                      orderedSeqs     = new MapMaker().makeMap();
+    private final ByteBuffer                                         timeOrderedCol  = ByteBuffer.wrap("timeOrdered"
+                                                                                             .getBytes());
+
+    // Indexes whose docs are placed by the value of a field
+    public static final int                                          defaultRoutingShards = 16;
+    private final ConcurrentMap<String, Routing>                     routings        = new MapMaker().makeMap();
+    private final Routing                                            noRouting       = new Routing(null, 0);
+    private final ByteBuffer                                         routingCol      = ByteBuffer.wrap("routing"
+                                                                                             .getBytes());
+
+    // Settings found unset, by index~name, and when to read them again
+    private final ConcurrentMap<String, Long>                        unsetMeta       = new MapMaker().makeMap();
+    private final int                                                unsetRecheck    = 1000;                                         // ms
     private final int                                                expirationTime  = 120;                                          // seconds
 
-    private final ConcurrentMap<String, LinkedBlockingQueue<IdInfo>> indexReserves   = new MapMaker().makeMap();
+    private final ConcurrentMap<String, Reserves>                    indexReserves   = new MapMaker().makeMap();
+
+    // Start of the last slab this node reserved, by index~shard
+    private final ConcurrentMap<String, Integer>                     reservedOffsets = new MapMaker().makeMap();
+
+    // Reserve enough slabs ahead to cover this many seconds of adds
+    private final int                                                reserveAhead    = Integer.valueOf(System
+                                                                                             .getProperty(
+                                                                                                     "reserve.ahead.seconds",
+                                                                                                     "10"));
+    private final ExecutorService                                    reserveExecutor = Executors
+                                                                                             .newSingleThreadExecutor(new NamedThreadFactory(
+                                                                                                     "IdReserver"));
+
+    // ShardInfo is reloaded in the background this long before it expires
+    private final int                                                refreshAhead    = expirationTime * 1000 / 4;
+    private final ConcurrentMap<String, Boolean>                     refreshingShards = new MapMaker().makeMap();
+    private final ExecutorService                                    shardInfoExecutor = Executors
+                                                                                             .newSingleThreadExecutor(new NamedThreadFactory(
+                                                                                                     "ShardInfoRefresher"));
+
+    private final AtomicLong                                         reserveRounds   = new AtomicLong();
+    private final AtomicLong                                         reserveTime     = new AtomicLong();
+    private final AtomicLong                                         maxReserveTime  = new AtomicLong();
+    private final AtomicLong                                         reserveLosses   = new AtomicLong();
+    private final AtomicLong                                         reserveStalls   = new AtomicLong();
     private final ConcurrentMap<String, ShardInfo>                   indexShards     = new MapMaker().makeMap();
 
     private static final Logger                                      logger          = Logger
@@ -105,6 +163,128 @@ public class CassandraIndexManager
         }
     }
 
+    // Docs with the same value of the field go to shards n, n + shards, ...
+    private class Routing
+    {
+        public final String field;
+        public final int    shards;
+
+        public Routing(String field, int shards)
+        {
+            this.field = field;
+            this.shards = shards;
+        }
+    }
+
+    // The ids this node holds for an index, or one routing lane of it, and
+    // how fast they are being used
+    private class Reserves
+    {
+        public final int                                   lane;
+
+        private final ConcurrentLinkedQueue<IdInfo>        ids           = new ConcurrentLinkedQueue<IdInfo>();
+        private final AtomicInteger                        size          = new AtomicInteger();
+
+        // ids not yet handed out, by shard
+        private final ConcurrentMap<Integer, AtomicInteger> held          = new MapMaker().makeMap();
+        private final ConcurrentMap<Integer, Boolean>       expiredShards = new MapMaker().makeMap();
+
+        public final ReentrantLock                         lock          = new ReentrantLock();
+        public final AtomicBoolean                         refilling     = new AtomicBoolean(false);
+        public final AtomicLong                            taken         = new AtomicLong();
+
+        private final AtomicLong                           sampleTime    = new AtomicLong(System.currentTimeMillis());
+        private volatile long                              sampleTaken   = 0;
+        private volatile double                            rate          = 0;                                          // ids per second
+
+        public Reserves(int lane)
+        {
+            this.lane = lane;
+        }
+
+        // must hold the lock
+        public void add(IdInfo id)
+        {
+            AtomicInteger count = held.get(id.node.shard);
+            if (count == null)
+            {
+                count = new AtomicInteger();
+                held.put(id.node.shard, count);
+            }
+
+            count.incrementAndGet();
+            ids.add(id);
+            size.incrementAndGet();
+        }
+
+        public int size()
+        {
+            return size.get();
+        }
+
+        /**
+         * Every thread takes from the one queue, so an id no one takes is
+         * still there for removeExpired to let go of.
+         * 
+         * @return the next unexpired id, or null if there are none
+         */
+        public IdInfo take()
+        {
+            IdInfo id;
+            while ((id = poll()) != null)
+            {
+                if (release(id))
+                    return id;
+            }
+
+            return null;
+        }
+
+        public IdInfo poll()
+        {
+            IdInfo id = ids.poll();
+
+            if (id != null)
+                size.decrementAndGet();
+
+            return id;
+        }
+
+        // @return false if the id had expired
+        public boolean release(IdInfo id)
+        {
+            held.get(id.node.shard).decrementAndGet();
+
+            if (id.ttl > System.currentTimeMillis())
+                return true;
+
+            expiredShards.put(id.node.shard, true);
+            return false;
+        }
+
+        public void taken(int count)
+        {
+            long total = taken.addAndGet(count);
+            long now = System.currentTimeMillis();
+            long last = sampleTime.get();
+
+            // one thread per second updates the rate
+            if (now - last < 1000 || !sampleTime.compareAndSet(last, now))
+                return;
+
+            rate = (rate + (total - sampleTaken) * 1000.0 / (now - last)) / 2;
+            sampleTaken = total;
+        }
+
+        // how many ids to keep ahead of demand. The slab stays fixed since
+        // every node claims offsets by it, so the number held ahead adapts
+        // instead
+        public int wanted()
+        {
+            return Math.max(reserveSlabSize, (int) (rate * reserveAhead));
+        }
+    }
+
     public CassandraIndexManager(int shardsAtOnce)
     {
         this.shardsAtOnce = shardsAtOnce;
@@ -128,24 +308,367 @@ public class CassandraIndexManager
         randomSeq = shuffle(randomSeq, r);
     }
 
+    /**
+     * Sets how many docs each shard of an index holds, before it has any.
+     * Must be a power of two from reserveSlabSize up to
+     * CassandraUtils.maxDocsPerShard.
+     */
+    public void setShardSize(String indexName, int shardSize) throws IOException
+    {
+        if (shardSize < reserveSlabSize || shardSize > CassandraUtils.maxDocsPerShard
+                || Integer.bitCount(shardSize) != 1)
+            throw new IllegalArgumentException("shard size must be a power of two from " + reserveSlabSize + " to "
+                    + CassandraUtils.maxDocsPerShard);
+
+        String value = readMeta(indexName, shardSizeCol);
+        Integer current = value == null ? null : Integer.valueOf(value);
+
+        if (current != null && current != shardSize)
+            throw new IllegalStateException(indexName + " already has a shard size of " + current);
+
+        if (current == null && !getShardInfo(indexName, true).shards.isEmpty())
+            throw new IllegalStateException(indexName + " already has documents");
+
+        RowMutation rm = new RowMutation(CassandraUtils.keySpace, getShardSizeKey(indexName));
+        rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, shardSizeCol, shardSizeCol), ByteBuffer
+                .wrap(String.valueOf(shardSize).getBytes()), CassandraUtils.createTimestamp());
+
+        CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rm);
+
+        shardSizes.put(indexName, shardSize);
+    }
+
+    /**
+     * @param indexName an index or one of its sub-indexes
+     * @return how many docs each shard of the index holds
+     */
+    public int getShardSize(String indexName)
+    {
+        indexName = getIndexName(indexName);
+
+        Integer shardSize = shardSizes.get(indexName);
+
+        if (shardSize != null)
+            return shardSize;
+
+        try
+        {
+            String value = readSetting(indexName, shardSizeCol);
+
+            if (value != null)
+            {
+                shardSize = Integer.valueOf(value);
+            }
+            else
+            {
+                // Not set, keep checking until the index has docs
+                if (getShardInfo(indexName, false).shards.isEmpty())
+                    return CassandraUtils.maxDocsPerShard;
+
+                shardSize = CassandraUtils.maxDocsPerShard;
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+
+        shardSizes.put(indexName, shardSize);
+
+        return shardSize;
+    }
+
+    /**
+     * Hands out the docIds of an index in rising order, filling one shard
+     * after another, so newer docs have higher ids. Like the shard size it
+     * can only be set before the index has docs. Deleted ids aren't reused.
+     */
+    public void setTimeOrdered(String indexName) throws IOException
+    {
+        if (readMeta(indexName, timeOrderedCol) == null && !getShardInfo(indexName, true).shards.isEmpty())
+            throw new IllegalStateException(indexName + " already has documents");
+
+        RowMutation rm = new RowMutation(CassandraUtils.keySpace, getShardSizeKey(indexName));
+        rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, timeOrderedCol, timeOrderedCol), ByteBuffer
+                .wrap(Boolean.TRUE.toString().getBytes()), CassandraUtils.createTimestamp());
+
+        CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rm);
+
+        timeOrdered.put(indexName, true);
+    }
+
+    /**
+     * @param indexName an index or one of its sub-indexes
+     * @return true if the docIds of the index rise with time
+     */
+    public boolean isTimeOrdered(String indexName)
+    {
+        indexName = getIndexName(indexName);
+
+        Boolean ordered = timeOrdered.get(indexName);
+
+        if (ordered != null)
+            return ordered;
+
+        try
+        {
+            ordered = readSetting(indexName, timeOrderedCol) != null;
+
+            // Not set, keep checking until the index has docs
+            if (!ordered && getShardInfo(indexName, false).shards.isEmpty())
+                return false;
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+
+        timeOrdered.put(indexName, ordered);
+
+        return ordered;
+    }
+
+    /**
+     * Places the docs of an index by the value of a field, so docs with the
+     * same value share shards and a query for one value only needs those.
+     * Can only be set before the index has docs.
+     * 
+     * @param shards how many ways to split the values
+     */
+    public void setRouting(String indexName, String field, int shards) throws IOException
+    {
+        if (shards < 1)
+            throw new IllegalArgumentException("routing shards must be > 0");
+
+        if (readMeta(indexName, routingCol) == null && !getShardInfo(indexName, true).shards.isEmpty())
+            throw new IllegalStateException(indexName + " already has documents");
+
+        RowMutation rm = new RowMutation(CassandraUtils.keySpace, getShardSizeKey(indexName));
+        rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, routingCol, routingCol), ByteBuffer
+                .wrap((shards + ":" + field).getBytes()), CassandraUtils.createTimestamp());
+
+        CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rm);
+
+        routings.put(indexName, new Routing(field, shards));
+    }
+
+    /**
+     * @return the field docs of this index are routed by, or null
+     */
+    public String getRoutingField(String indexName)
+    {
+        return getRouting(indexName).field;
+    }
+
+    /**
+     * @return how many ways the routing values of this index are split, 0 if
+     *         it isn't routed
+     */
+    public int getRoutingShards(String indexName)
+    {
+        return getRouting(indexName).shards;
+    }
+
+    /**
+     * @return the first shard docs with this routing value go to, the rest
+     *         follow every getRoutingShards, or -1 if the index isn't routed
+     */
+    public int getRoutedShard(String indexName, String value)
+    {
+        Routing routing = getRouting(indexName);
+
+        if (routing.field == null)
+            return -1;
+
+        if (value == null)
+            value = "";
+
+        return (value.hashCode() & Integer.MAX_VALUE) % routing.shards;
+    }
+
+    private Routing getRouting(String indexName)
+    {
+        indexName = getIndexName(indexName);
+
+        Routing routing = routings.get(indexName);
+
+        if (routing != null)
+            return routing;
+
+        try
+        {
+            String value = readSetting(indexName, routingCol);
+
+            if (value == null)
+            {
+                // Not set, keep checking until the index has docs
+                if (getShardInfo(indexName, false).shards.isEmpty())
+                    return noRouting;
+
+                routing = noRouting;
+            }
+            else
+            {
+                int split = value.indexOf(':');
+                routing = new Routing(value.substring(split + 1), Integer.valueOf(value.substring(0, split)));
+            }
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+
+        routings.put(indexName, routing);
+
+        return routing;
+    }
+
+    private String getIndexName(String indexName)
+    {
+        int subIndex = indexName.lastIndexOf('~');
+
+        return subIndex >= 0 ? indexName.substring(0, subIndex) : indexName;
+    }
+
+    /**
+     * Reads a setting of an index with no docs yet, which may still be set.
+     * Finding it unset is remembered for a while so lookups don't read it
+     * every time.
+     */
+    private String readSetting(String indexName, ByteBuffer name) throws IOException
+    {
+        String key = indexName + "~" + ByteBufferUtil.string(name);
+        Long recheck = unsetMeta.get(key);
+
+        if (recheck != null && recheck > System.currentTimeMillis())
+            return null;
+
+        String value = readMeta(indexName, name);
+
+        if (value == null)
+            unsetMeta.put(key, System.currentTimeMillis() + unsetRecheck);
+        else
+            unsetMeta.remove(key);
+
+        return value;
+    }
+
+    private String readMeta(String indexName, ByteBuffer name) throws IOException
+    {
+        List<Row> rows = CassandraUtils.robustRead(getShardSizeKey(indexName), new QueryPath(
+                CassandraUtils.schemaInfoColumnFamily), Arrays.asList(name), ConsistencyLevel.QUORUM);
+
+        if (rows == null || rows.isEmpty() || rows.get(0).cf == null)
+            return null;
+
+        IColumn col = rows.get(0).cf.getColumn(name);
+
+        if (col == null || col.getSubColumn(name) == null)
+            return null;
+
+        return ByteBufferUtil.string(col.getSubColumn(name).value());
+    }
+
+    private ByteBuffer getShardSizeKey(String indexName)
+    {
+        return CassandraUtils.hashKeyBytes(indexName.getBytes(), CassandraUtils.delimeterBytes, "meta".getBytes());
+    }
+
+    // The slabs of our sequence that fall within the index's shard size, in
+    // order for time ordered indexes
+    private int[] getRandomSeq(String indexName)
+    {
+        int shardSize = getShardSize(indexName);
+
+        if (isTimeOrdered(indexName))
+        {
+            int[] seq = orderedSeqs.get(shardSize);
+
+            if (seq == null)
+            {
+                seq = new int[shardSize / reserveSlabSize];
+
+                for (int i = 0; i < seq.length; i++)
+                    seq[i] = i * reserveSlabSize;
+
+                orderedSeqs.putIfAbsent(shardSize, seq);
+            }
+
+            return seq;
+        }
+
+        int[] seq = randomSeqs.get(shardSize);
+
+        if (seq == null)
+        {
+            seq = new int[shardSize / reserveSlabSize];
+
+            for (int i = 0, j = 0; i < randomSeq.length; i++)
+            {
+                if (randomSeq[i] < shardSize)
+                    seq[j++] = randomSeq[i];
+            }
+
+            randomSeqs.putIfAbsent(shardSize, seq);
+        }
+
+        return seq;
+    }
+
     private ShardInfo getShardInfo(String indexName, boolean force) throws IOException
     {
 
         ShardInfo shards = indexShards.get(indexName);
-        ShardInfo currentShards = shards;
 
         if (shards != null && !force)
         {
-            if (shards.ttl > System.currentTimeMillis())
+            long now = System.currentTimeMillis();
+
+            if (shards.ttl - refreshAhead > now)
             {
                 return shards;
             }
-            else
+
+            // keep serving this copy while a fresh one loads, but never past
+            // its ttl, after that whoever asks waits for a fresh read
+            if (shards.ttl > now)
             {
-                logger.info("ShardInfo for " + indexName + " has expired");
+                refreshShardInfo(indexName);
+                return shards;
             }
+
+            logger.info("ShardInfo for " + indexName + " has expired");
         }
 
+        return loadShardInfo(indexName, shards);
+    }
+
+    private void refreshShardInfo(final String indexName)
+    {
+        if (refreshingShards.putIfAbsent(indexName, Boolean.TRUE) != null)
+            return;
+
+        shardInfoExecutor.submit(new Runnable() {
+            public void run()
+            {
+                try
+                {
+                    loadShardInfo(indexName, indexShards.get(indexName));
+                }
+                catch (Throwable t)
+                {
+                    logger.warn("Failed to refresh ShardInfo for " + indexName, t);
+                }
+                finally
+                {
+                    refreshingShards.remove(indexName);
+                }
+            }
+        });
+    }
+
+    private ShardInfo loadShardInfo(String indexName, ShardInfo currentShards) throws IOException
+    {
         ByteBuffer key = CassandraUtils.hashKeyBytes(indexName.getBytes(), CassandraUtils.delimeterBytes, "shards"
                 .getBytes());
 
@@ -155,8 +678,8 @@ public class CassandraIndexManager
 
         List<Row> rows = CassandraUtils.robustRead(ConsistencyLevel.QUORUM, cmd);
 
-        shards = new ShardInfo(indexName);
-        if (rows != null || !rows.isEmpty())
+        ShardInfo shards = new ShardInfo(indexName);
+        if (rows != null && !rows.isEmpty())
         {
             assert rows.size() == 1;
 
@@ -170,42 +693,49 @@ public class CassandraIndexManager
                 // Each column represents each shard and latest id for each
                 // node
                 // {"shard1" : {"node1" : 1234}}
+                Map<ByteBuffer, Integer> shardsByKey = new HashMap<ByteBuffer, Integer>();
+                List<ReadCommand> reads = new ArrayList<ReadCommand>();
+
                 for (IColumn c : row.cf.getSortedColumns())
                 {
                     String shardStr = ByteBufferUtil.string(c.name());
-                    Integer shardNum = Integer.valueOf(shardStr);
+                    ByteBuffer shardKey = CassandraUtils.hashKeyBytes((indexName + "~" + shardStr).getBytes(),
+                            CassandraUtils.delimeterBytes, "shards".getBytes());
 
-                    // goto each shard and get local offset
-                    cmd = new SliceFromReadCommand(CassandraUtils.keySpace, CassandraUtils.hashKeyBytes((indexName
-                            + "~" + shardStr).getBytes(), CassandraUtils.delimeterBytes, "shards".getBytes()),
-                            new ColumnParent(CassandraUtils.schemaInfoColumnFamily), FBUtilities.EMPTY_BYTE_BUFFER,
-                            FBUtilities.EMPTY_BYTE_BUFFER, false, 100);
+                    shardsByKey.put(shardKey, Integer.valueOf(shardStr));
+
+                    reads.add(new SliceFromReadCommand(CassandraUtils.keySpace, shardKey, new ColumnParent(
+                            CassandraUtils.schemaInfoColumnFamily), FBUtilities.EMPTY_BYTE_BUFFER,
+                            FBUtilities.EMPTY_BYTE_BUFFER, false, 100));
+                }
 
-                    List<Row> lrows = CassandraUtils.robustRead(ConsistencyLevel.QUORUM, cmd);
+                // get the local offsets of every shard at once
+                List<Row> lrows = reads.isEmpty() ? null : CassandraUtils.robustRead(ConsistencyLevel.QUORUM, reads
+                        .toArray(new ReadCommand[] {}));
 
-                    if (lrows != null || !lrows.isEmpty())
+                if (lrows != null)
+                {
+                    for (Row lrow : lrows)
                     {
-                        assert rows.size() == 1;
+                        if (lrow.cf == null || lrow.cf.isMarkedForDelete())
+                            continue;
 
-                        Row lrow = lrows.get(0);
+                        Integer shardNum = shardsByKey.get(lrow.key.key);
 
-                        if (lrow.cf != null && !lrow.cf.isMarkedForDelete())
+                        for (IColumn lc : lrow.cf.getSortedColumns())
                         {
-                            for (IColumn lc : lrow.cf.getSortedColumns())
-                            {
-                                NodeInfo nodes = new NodeInfo(shardNum);
+                            NodeInfo nodes = new NodeInfo(shardNum);
 
-                                for (IColumn s : lc.getSubColumns())
-                                {
-                                    String token = ByteBufferUtil.string(s.name());
-                                    AtomicInteger offset = new AtomicInteger(Integer.valueOf(ByteBufferUtil.string(s
-                                            .value())));
-
-                                    nodes.nodes.put(token, offset);
-                                }
+                            for (IColumn s : lc.getSubColumns())
+                            {
+                                String token = ByteBufferUtil.string(s.name());
+                                AtomicInteger offset = new AtomicInteger(Integer.valueOf(ByteBufferUtil.string(s
+                                        .value())));
 
-                                shards.shards.put(shardNum, nodes);
+                                nodes.nodes.put(token, offset);
                             }
+
+                            shards.shards.put(shardNum, nodes);
                         }
                     }
                 }
@@ -229,9 +759,36 @@ public class CassandraIndexManager
 
     }
 
-    public void deleteId(String indexName, long id)
+    /**
+     * Frees a deleted docId so the next reservation on any node can hand it
+     * out again.
+     * 
+     * @return the mutations to apply along with the delete
+     */
+    public RowMutation[] deleteId(String indexName, long id)
     {
+        String subIndex = indexName + "~" + getShardFromDocId(id);
+        ByteBuffer idCol = ByteBuffer.wrap(String.valueOf(getShardedDocId(id)).getBytes());
+
+        // Drop the permanent id
+        RowMutation rm = new RowMutation(CassandraUtils.keySpace, CassandraUtils.hashKeyBytes(subIndex.getBytes(),
+                CassandraUtils.delimeterBytes, "ids".getBytes()));
+        rm.delete(new QueryPath(CassandraUtils.schemaInfoColumnFamily, idCol), CassandraUtils.createTimestamp());
 
+        if (isTimeOrdered(indexName))
+            return new RowMutation[] { rm };
+
+        // and list it as free
+        RowMutation rm2 = new RowMutation(CassandraUtils.keySpace, getFreeIdsKey(subIndex));
+        rm2.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, idCol, ByteBuffer.wrap(getToken().getBytes())),
+                FBUtilities.EMPTY_BYTE_BUFFER, CassandraUtils.createTimestamp());
+
+        return new RowMutation[] { rm, rm2 };
+    }
+
+    private ByteBuffer getFreeIdsKey(String subIndex)
+    {
+        return CassandraUtils.hashKeyBytes(subIndex.getBytes(), CassandraUtils.delimeterBytes, "free".getBytes());
     }
 
     public long getMaxId(String indexName) throws IOException
@@ -265,6 +822,11 @@ public class CassandraIndexManager
         return (CassandraUtils.maxDocsPerShard * highest);
     }
 
+    /**
+     * Reads the id a key links to at QUORUM, every time. A node can't tell a
+     * key is new from what it wrote itself, any other node may have added or
+     * deleted it since, so there is no local shortcut past this read.
+     */
     public Long getId(String indexName, String key) throws IOException
     {
         return checkForUpdate(indexName, key);
@@ -280,29 +842,75 @@ public class CassandraIndexManager
                 .asList(keyCol), ConsistencyLevel.QUORUM);
 
         if (rows.size() == 1)
+            return parseId(rows.get(0), keyCol);
+
+        return null;
+    }
+
+    /**
+     * Looks up the ids of many keys at once in a single multiget
+     * 
+     * @return the id of each key, null where it has none
+     */
+    public Long[] getIds(String indexName, List<String> keys) throws IOException
+    {
+        Long[] ids = new Long[keys.size()];
+
+        List<Integer> unknown = new ArrayList<Integer>(keys.size());
+        List<ReadCommand> reads = new ArrayList<ReadCommand>(keys.size());
+
+        for (int i = 0; i < ids.length; i++)
         {
-            Row row = rows.get(0);
+            String key = keys.get(i);
 
-            if (row.cf != null)
-            {
-                IColumn col = row.cf.getColumn(keyCol);
+            ByteBuffer keyKey = CassandraUtils.hashKeyBytes((indexName + "~" + key).getBytes(),
+                    CassandraUtils.delimeterBytes, "keys".getBytes());
 
-                if (col != null)
-                {
-                    Collection<IColumn> subCols = col.getSubColumns();
+            unknown.add(i);
+            reads.add(new SliceByNamesReadCommand(CassandraUtils.keySpace, keyKey, new QueryPath(
+                    CassandraUtils.schemaInfoColumnFamily), Arrays.asList(ByteBuffer.wrap(key.getBytes()))));
+        }
 
-                    if (subCols != null && !subCols.isEmpty())
-                    {
-                        ByteBuffer idVal = col.getSubColumns().iterator().next().name();
-                        Long id = Long.valueOf(ByteBufferUtil.string(idVal));
+        if (reads.isEmpty())
+            return ids;
 
-                        return id;
-                    }
-                }
-            }
+        List<Row> rows = CassandraUtils.robustRead(ConsistencyLevel.QUORUM, reads.toArray(new ReadCommand[] {}));
+
+        Map<ByteBuffer, Row> rowMap = new HashMap<ByteBuffer, Row>(rows.size());
+        for (Row row : rows)
+            rowMap.put(row.key.key, row);
+
+        for (int j = 0; j < unknown.size(); j++)
+        {
+            int i = unknown.get(j);
+            Row row = rowMap.get(reads.get(j).key);
+
+            if (row == null)
+                continue;
+
+            ids[i] = parseId(row, ByteBuffer.wrap(keys.get(i).getBytes()));
         }
 
-        return null;
+        return ids;
+    }
+
+    // the id a key's row links it to, or null
+    private Long parseId(Row row, ByteBuffer keyCol)
+    {
+        if (row.cf == null)
+            return null;
+
+        IColumn col = row.cf.getColumn(keyCol);
+
+        if (col == null)
+            return null;
+
+        Collection<IColumn> subCols = col.getSubColumns();
+
+        if (subCols == null || subCols.isEmpty())
+            return null;
+
+        return Long.valueOf(ByteBufferUtil.string(subCols.iterator().next().name()));
     }
 
     public String getToken()
@@ -311,22 +919,199 @@ public class CassandraIndexManager
     }
 
     public long getNextId(String indexName, String key, RowMutation[] rowMutations) throws IOException
+    {
+        return getNextId(indexName, key, null, rowMutations);
+    }
+
+    /**
+     * @param route the doc's value of the routing field, if the index has one
+     */
+    public long getNextId(String indexName, String key, String route, RowMutation[] rowMutations)
+            throws IOException
     {
         if (rowMutations.length != 3)
             throw new IllegalArgumentException("rowMutations must be length 3");
 
         String myToken = getToken();
-        ShardInfo shards = null;
-        NodeInfo nodes[] = null;
-        IdInfo idInfo = null;
+        IdInfo idInfo = reserveId(indexName, getRoutedShard(indexName, route), myToken);
+
+        ByteBuffer idCol = ByteBuffer.wrap(String.valueOf(idInfo.id).getBytes());
+        ByteBuffer keyCol = ByteBuffer.wrap(key.getBytes());
+
+        // Permanently mark the id as taken
+        ByteBuffer idKey = CassandraUtils.hashKeyBytes((indexName + "~" + idInfo.node.shard).getBytes(),
+                CassandraUtils.delimeterBytes, "ids".getBytes());
+
+        RowMutation rm = new RowMutation(CassandraUtils.keySpace, idKey);
+        rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, idCol, ByteBuffer.wrap(myToken.getBytes())),
+                keyCol, CassandraUtils.createTimestamp());
+
+        // Permanently link the key to the id
+        Long val = new Long(idInfo.id + (idInfo.node.shard * CassandraUtils.maxDocsPerShard));
+        RowMutation rm2 = linkKey(indexName, key, val);
+
+        // Update last offset info for this shard, or take a reused id off
+        // the free list
+        RowMutation rm3;
+        if (idInfo.offset == null)
+        {
+            rm3 = new RowMutation(CassandraUtils.keySpace, getFreeIdsKey(indexName + "~" + idInfo.node.shard));
+            rm3.delete(new QueryPath(CassandraUtils.schemaInfoColumnFamily, idCol), CassandraUtils.createTimestamp());
+        }
+        else
+        {
+            rm3 = updateNodeOffset(indexName + "~" + idInfo.node.shard, myToken, idInfo.node, idInfo.offset);
+        }
+
+        rowMutations[0] = rm;
+        rowMutations[1] = rm2;
+        rowMutations[2] = rm3;
+
+        return val;
+    }
+
+    /**
+     * Reserves an id for each key at once. Rather than three mutations per
+     * key, the ids and offset of each shard are written with one mutation
+     * each, plus the key links.
+     * 
+     * @param rowMutations filled with the mutations to apply, by shard
+     * @return the ids in the same order as the keys
+     */
+    public long[] getNextIds(String indexName, String[] keys, Map<Integer, List<RowMutation>> rowMutations)
+            throws IOException
+    {
+        return getNextIds(indexName, keys, null, rowMutations);
+    }
+
+    /**
+     * @param routes the docs' values of the routing field, or null
+     */
+    public long[] getNextIds(String indexName, String[] keys, String[] routes,
+            Map<Integer, List<RowMutation>> rowMutations) throws IOException
+    {
+        String myToken = getToken();
+        long[] ids = new long[keys.length];
+        boolean routed = getRoutingField(indexName) != null;
+
+        Map<Integer, RowMutation> idMutations = new HashMap<Integer, RowMutation>();
+        Map<Integer, IdInfo> lastIds = new HashMap<Integer, IdInfo>();
+        Map<Integer, RowMutation> freeMutations = new HashMap<Integer, RowMutation>();
+
+        // routed docs each need an id from their own shards
+        List<IdInfo> reserved = new ArrayList<IdInfo>(keys.length);
+        if (!routed)
+            pollReservedIds(indexName, reserved, keys.length);
+
+        for (int i = 0; i < keys.length; i++)
+        {
+            IdInfo idInfo = i < reserved.size() ? reserved.get(i) : reserveId(indexName, routed
+                    ? getRoutedShard(indexName, routes == null ? null : routes[i]) : -1, myToken);
+            Integer shard = idInfo.node.shard;
+
+            RowMutation rm = idMutations.get(shard);
+            if (rm == null)
+            {
+                ByteBuffer idKey = CassandraUtils.hashKeyBytes((indexName + "~" + shard).getBytes(),
+                        CassandraUtils.delimeterBytes, "ids".getBytes());
+
+                rm = new RowMutation(CassandraUtils.keySpace, idKey);
+                idMutations.put(shard, rm);
+            }
+
+            ByteBuffer idCol = ByteBuffer.wrap(String.valueOf(idInfo.id).getBytes());
+
+            rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, idCol, ByteBuffer.wrap(myToken.getBytes())),
+                    ByteBuffer.wrap(keys[i].getBytes()), CassandraUtils.createTimestamp());
+
+            ids[i] = idInfo.id + (shard * CassandraUtils.maxDocsPerShard);
+
+            getMutations(rowMutations, shard).add(linkKey(indexName, keys[i], ids[i]));
+
+            if (idInfo.offset == null)
+            {
+                RowMutation freeRm = freeMutations.get(shard);
+                if (freeRm == null)
+                {
+                    freeRm = new RowMutation(CassandraUtils.keySpace, getFreeIdsKey(indexName + "~" + shard));
+                    freeMutations.put(shard, freeRm);
+                }
+
+                freeRm.delete(new QueryPath(CassandraUtils.schemaInfoColumnFamily, idCol), CassandraUtils
+                        .createTimestamp());
+            }
+            else
+            {
+                lastIds.put(shard, idInfo);
+            }
+        }
+
+        for (Map.Entry<Integer, RowMutation> e : idMutations.entrySet())
+        {
+            IdInfo last = lastIds.get(e.getKey());
+            RowMutation freeRm = freeMutations.get(e.getKey());
+
+            List<RowMutation> shardMutations = getMutations(rowMutations, e.getKey());
+            shardMutations.add(e.getValue());
+
+            if (last != null)
+                shardMutations.add(updateNodeOffset(indexName + "~" + e.getKey(), myToken, last.node, last.offset));
+
+            if (freeRm != null)
+                shardMutations.add(freeRm);
+        }
+
+        return ids;
+    }
+
+    private List<RowMutation> getMutations(Map<Integer, List<RowMutation>> rowMutations, Integer shard)
+    {
+        List<RowMutation> mutations = rowMutations.get(shard);
+
+        if (mutations == null)
+        {
+            mutations = new ArrayList<RowMutation>();
+            rowMutations.put(shard, mutations);
+        }
+
+        return mutations;
+    }
+
+    private RowMutation linkKey(String indexName, String key, long id)
+    {
+        ByteBuffer keyKey = CassandraUtils.hashKeyBytes((indexName + "~" + key).getBytes(),
+                CassandraUtils.delimeterBytes, "keys".getBytes());
+
+        RowMutation rm = new RowMutation(CassandraUtils.keySpace, keyKey);
+        rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, ByteBuffer.wrap(key.getBytes()), ByteBuffer
+                .wrap(String.valueOf(id).getBytes())), FBUtilities.EMPTY_BYTE_BUFFER, CassandraUtils.createTimestamp());
+
+        return rm;
+    }
+
+    // lane is the first routed shard, or -1
+    private IdInfo reserveId(String indexName, int lane, String myToken) throws IOException
+    {
+        Reserves reserves = getReserves(indexName, lane);
+
+        // Usually there is one at hand and we needn't pick shards
+        IdInfo idInfo = reserves.take();
+
+        if (idInfo != null)
+        {
+            reserves.taken(1);
+            preReserve(indexName, reserves);
+
+            return idInfo;
+        }
 
         int attempts = 0;
         while (attempts < reserveSlabSize)
         {
-            shards = getShardInfo(indexName, false);
-            nodes = pickAShard(shards);
+            ShardInfo shards = getShardInfo(indexName, false);
+            NodeInfo[] nodes = pickAShard(shards, lane);
 
-            idInfo = nextReservedId(indexName, nodes, myToken);
+            idInfo = nextReservedId(indexName, nodes, myToken, reserves);
 
             if (idInfo == null)
             {
@@ -340,35 +1125,25 @@ public class CassandraIndexManager
         if (idInfo == null)
             throw new IllegalStateException(myToken + ": Unable to reserve an id");
 
-        ByteBuffer idCol = ByteBuffer.wrap(String.valueOf(idInfo.id).getBytes());
-        ByteBuffer keyCol = ByteBuffer.wrap(key.getBytes());
-
-        // Permanently mark the id as taken
-        ByteBuffer idKey = CassandraUtils.hashKeyBytes((indexName + "~" + idInfo.node.shard).getBytes(),
-                CassandraUtils.delimeterBytes, "ids".getBytes());
-
-        RowMutation rm = new RowMutation(CassandraUtils.keySpace, idKey);
-        rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, idCol, ByteBuffer.wrap(myToken.getBytes())),
-                keyCol, System.nanoTime());
+        return idInfo;
+    }
 
-        // Permanently link the key to the id
-        ByteBuffer keyKey = CassandraUtils.hashKeyBytes((indexName + "~" + key).getBytes(),
-                CassandraUtils.delimeterBytes, "keys".getBytes());
-        Long val = new Long(idInfo.id + (idInfo.node.shard * CassandraUtils.maxDocsPerShard));
-        ByteBuffer idVal = ByteBuffer.wrap(val.toString().getBytes());
+    // Takes up to max unexpired ids already reserved for this index
+    private void pollReservedIds(String indexName, List<IdInfo> ids, int max)
+    {
+        Reserves reserves = indexReserves.get(indexName);
 
-        RowMutation rm2 = new RowMutation(CassandraUtils.keySpace, keyKey);
-        rm2.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, keyCol, idVal), FBUtilities.EMPTY_BYTE_BUFFER,
-                System.nanoTime());
+        if (reserves == null)
+            return;
 
-        // Update last offset info for this shard
-        RowMutation rm3 = updateNodeOffset(indexName + "~" + idInfo.node.shard, myToken, idInfo.node, idInfo.offset);
+        int taken = ids.size();
 
-        rowMutations[0] = rm;
-        rowMutations[1] = rm2;
-        rowMutations[2] = rm3;
+        IdInfo id;
+        while (ids.size() < max && (id = reserves.take()) != null)
+            ids.add(id);
 
-        return val;
+        reserves.taken(ids.size() - taken);
+        preReserve(indexName, reserves);
     }
 
     public long getNextId(String indexName, String key) throws IOException
@@ -385,89 +1160,241 @@ public class CassandraIndexManager
         return val;
     }
 
-    public void resetCounter(String indexName) throws IOException
-    {
-        // update all shards to 0 for all tokens
-        ShardInfo shards = getShardInfo(indexName, true);
+    public void resetCounter(String indexName) throws IOException
+    {
+        // update all shards to 0 for all tokens
+        ShardInfo shards = getShardInfo(indexName, true);
+
+        List<RowMutation> rms = new ArrayList<RowMutation>();
+
+        for (NodeInfo nodes : shards.shards.values())
+        {
+            for (String token : nodes.nodes.keySet())
+                rms.add(updateNodeOffset(indexName + "~" + nodes.shard, token, nodes, getRandomSeq(indexName)[0]));
+        }
+
+        CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rms.toArray(new RowMutation[] {}));
+    }
+
+    private IdInfo nextReservedId(String indexName, NodeInfo[] shards, String myToken, Reserves reserves)
+    {
+        if (logger.isDebugEnabled())
+            logger.debug("in reserveIds for index " + indexName);
+
+        IdInfo nextId;
+
+        // we ran dry, reserve in this thread
+        reserves.lock.lock();
+        try
+        {
+            boolean hasExpired = removeExpired(indexName, reserves);
+
+            // unless another thread just did
+            nextId = reserves.take();
+
+            if (nextId == null)
+            {
+                reserveStalls.incrementAndGet();
+
+                if (logger.isDebugEnabled())
+                    logger.debug("need more ids for " + myToken);
+
+                reserveSlabs(indexName, shards, myToken, hasExpired, reserves);
+                nextId = reserves.take();
+            }
+        }
+        finally
+        {
+            reserves.lock.unlock();
+        }
+
+        if (nextId != null)
+        {
+            reserves.taken(1);
+            preReserve(indexName, reserves);
+        }
+
+        return nextId;
+    }
+
+    private Reserves getReserves(String indexName, int lane)
+    {
+        String name = lane < 0 ? indexName : indexName + "~" + lane + "~routed";
+        Reserves reserves = indexReserves.get(name);
+
+        if (reserves == null)
+        {
+            reserves = new Reserves(lane);
+            Reserves current = indexReserves.putIfAbsent(name, reserves);
+
+            if (current != null)
+                reserves = current;
+        }
+
+        return reserves;
+    }
+
+    // must hold the reserves lock
+    private boolean removeExpired(String indexName, Reserves reserves)
+    {
+        // make sure none have timed out
+        int expired = 0;
+
+        IdInfo id;
+        while ((id = reserves.ids.peek()) != null && id.ttl <= System.currentTimeMillis())
+        {
+            if (reserves.ids.remove(id))
+            {
+                reserves.size.decrementAndGet();
+                reserves.release(id);
+                expired++;
+            }
+        }
+
+        if (expired > 0)
+            logger.info(expired + " reserved ids for " + indexName + " have expired");
 
-        List<RowMutation> rms = new ArrayList<RowMutation>();
+        if (reserves.expiredShards.isEmpty())
+            return false;
 
-        for (NodeInfo nodes : shards.shards.values())
+        // shards we no longer hold ids for can be reserved from again
+        for (Integer shard : reserves.expiredShards.keySet())
         {
-            for (String token : nodes.nodes.keySet())
-                rms.add(updateNodeOffset(indexName + "~" + nodes.shard, token, nodes, randomSeq[0]));
+            reserves.expiredShards.remove(shard);
+
+            if (reserves.held.get(shard).get() == 0)
+                reservedOffsets.remove(indexName + "~" + shard);
         }
 
-        CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rms.toArray(new RowMutation[] {}));
+        return true;
     }
 
-    private IdInfo nextReservedId(String indexName, NodeInfo[] shards, String myToken)
+    /**
+     * Reserves more slabs in the background once the ids held for an index
+     * drop below what it uses in reserveAhead seconds.
+     */
+    private void preReserve(final String indexName, final Reserves reserves)
     {
-        if (logger.isDebugEnabled())
-            logger.debug("in reserveIds for index " + indexName);
-
-        LinkedBlockingQueue<IdInfo> currentRsvpd = indexReserves.get(indexName);
-        boolean hasExpired = false;
-
-        if (currentRsvpd != null)
-        {
-            // make sure none have timed out
-            List<IdInfo> expired = null;
+        if (reserves.size() >= reserves.wanted() || !reserves.refilling.compareAndSet(false, true))
+            return;
 
-            for (IdInfo id : currentRsvpd)
+        reserveExecutor.submit(new Runnable() {
+            public void run()
             {
-                if (id.ttl <= System.currentTimeMillis())
+                try
                 {
-                    if (expired == null)
-                        expired = new ArrayList<IdInfo>();
+                    String myToken = getToken();
 
-                    expired.add(id);
+                    while (reserves.size() < reserves.wanted() && reserves.lock.tryLock())
+                    {
+                        try
+                        {
+                            NodeInfo[] nodes = pickAShard(getShardInfo(indexName, false), reserves.lane);
+
+                            if (reserveSlabs(indexName, nodes, myToken, false, reserves) == 0)
+                                break;
+                        }
+                        finally
+                        {
+                            reserves.lock.unlock();
+                        }
+                    }
                 }
-                else
+                catch (Throwable t)
                 {
-                    break;
+                    logger.warn("Failed to reserve ids ahead for " + indexName, t);
+                }
+                finally
+                {
+                    reserves.refilling.set(false);
                 }
             }
+        });
+    }
 
-            if (expired != null)
-            {
-                logger.info(expired.size() + " reserved ids for " + indexName + " have expired");
-                hasExpired = true;
-                currentRsvpd.removeAll(expired);
-            }
+    /**
+     * @return the position in our random sequence of the last slab this node
+     *         used or reserved on a shard
+     */
+    private int getReservedSequenceOffset(String indexName, NodeInfo node, String myToken)
+    {
+        int[] randomSeq = getRandomSeq(indexName);
+        int randomSequenceOffset = getRandomSequenceOffset(randomSeq, isTimeOrdered(indexName) ? getHighestOffset(node)
+                : node.nodes.get(myToken).get());
+        Integer reserved = reservedOffsets.get(indexName + "~" + node.shard);
 
-            IdInfo nextId = currentRsvpd.poll();
+        if (reserved != null)
+            randomSequenceOffset = Math.max(randomSequenceOffset, getRandomSequenceOffset(randomSeq, reserved));
 
-            if (nextId != null)
-            {
+        return randomSequenceOffset;
+    }
 
-                if (logger.isDebugEnabled() && currentRsvpd.size() == 1)
-                    logger.debug("need more ids for " + myToken);
+    // the last offset any node used on a shard
+    private int getHighestOffset(NodeInfo node)
+    {
+        int highest = 0;
 
-                return nextId;
-            }
+        for (AtomicInteger offset : node.nodes.values())
+            highest = Math.max(highest, offset.get());
+
+        return highest;
+    }
+
+    /**
+     * Reserves the next slab on each of the shards and adds them to the
+     * reserves, must hold the reserves lock.
+     * 
+     * @return the number of ids reserved
+     */
+    private int reserveSlabs(String indexName, NodeInfo[] shards, String myToken, boolean hasExpired,
+            Reserves reserves)
+    {
+        long start = System.currentTimeMillis();
+
+        // Deleted ids come first so shards stay dense
+        int numFree = isTimeOrdered(indexName) ? 0 : reserveFreeIds(indexName, myToken, reserves);
+
+        if (numFree > 0)
+        {
+            reserveRounds.incrementAndGet();
+            reserveTime.addAndGet(System.currentTimeMillis() - start);
+
+            return numFree;
         }
 
+        int[] randomSeq = getRandomSeq(indexName);
+        int offsetSlots = randomSeq.length;
+
         // Pick a new shard
         Map<NodeInfo, TreeSet<IdInfo>> rsvpdByNode = new LinkedHashMap<NodeInfo, TreeSet<IdInfo>>();
 
-        
-
         for (NodeInfo node : shards)
         {
-
-
             AtomicInteger offset = node.nodes.get(myToken);
 
             assert offset != null;
 
-            int startingOffset = offset.get();
+            String shardName = indexName + "~" + node.shard;
+            Integer reserved = reservedOffsets.get(shardName);
+
+            // carry on after the newest slab of any node
+            int startingOffset = isTimeOrdered(indexName) ? getHighestOffset(node) : offset.get();
             int nextOffset = startingOffset;
 
             // goto next offset marker (unless its the first or last)
-            int randomSequenceOffset = getRandomSequenceOffset(startingOffset);
+            int randomSequenceOffset = getRandomSequenceOffset(randomSeq, startingOffset);
+
+            if (reserved != null && getRandomSequenceOffset(randomSeq, reserved) >= randomSequenceOffset)
+            {
+                // slabs ahead of what we've used are already ours
+                randomSequenceOffset = getRandomSequenceOffset(randomSeq, reserved);
+
+                if (randomSequenceOffset == (offsetSlots - 1))
+                    continue;
 
-            if (startingOffset != randomSeq[0])
+                nextOffset = randomSeq[randomSequenceOffset + 1];
+            }
+            else if (startingOffset != randomSeq[0])
             {
                 if (randomSequenceOffset != (offsetSlots - 1))
                 {
@@ -483,175 +1410,350 @@ public class CassandraIndexManager
             // logger.info(myToken+ "  startingOffset = "+startingOffset+
             // ", nextOffset = "+nextOffset);
 
-            synchronized (node)
-            {
-                //First, make sure another thread didn't already do this work
-                LinkedBlockingQueue<IdInfo> possiblyNewRsvpd = indexReserves.get(indexName);
-                if(possiblyNewRsvpd != currentRsvpd || startingOffset != offset.get())
-                {            
-                    return possiblyNewRsvpd == null ? null : possiblyNewRsvpd.poll();
-                }
-                
-                // Used to order reserves by offset
-                TreeSet<IdInfo> rsvpd = new TreeSet<IdInfo>(new Comparator<IdInfo>() {
+            // Used to order reserves by offset
+            TreeSet<IdInfo> rsvpd = new TreeSet<IdInfo>(new Comparator<IdInfo>() {
 
-                    public int compare(IdInfo o1, IdInfo o2)
-                    {
-                        if (o1.offset == o2.offset)
-                            return 0;
+                public int compare(IdInfo o1, IdInfo o2)
+                {
+                    if (o1.offset == o2.offset)
+                        return 0;
 
-                        if (o1.offset < o2.offset)
-                            return -1;
+                    if (o1.offset < o2.offset)
+                        return -1;
 
-                        return 1;
-                    }
+                    return 1;
+                }
 
-                });                
-                ByteBuffer key = CassandraUtils.hashKeyBytes((indexName + "~" + node.shard).getBytes(),
-                        CassandraUtils.delimeterBytes, "ids".getBytes());
+            });
+            ByteBuffer key = CassandraUtils.hashKeyBytes(shardName.getBytes(), CassandraUtils.delimeterBytes, "ids"
+                    .getBytes());
 
-                // Write the reserves
-                RowMutation rm = new RowMutation(CassandraUtils.keySpace, key);
+            // Write the reserves
+            RowMutation rm = new RowMutation(CassandraUtils.keySpace, key);
 
-                ByteBuffer id = ByteBuffer.wrap(String.valueOf(nextOffset).getBytes());
-                ByteBuffer off = ByteBuffer.wrap(String.valueOf(nextOffset).getBytes());
+            ByteBuffer id = ByteBuffer.wrap(String.valueOf(nextOffset).getBytes());
+            ByteBuffer off = ByteBuffer.wrap(String.valueOf(nextOffset).getBytes());
 
-                rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, id, ByteBuffer.wrap(myToken.getBytes())),
-                        off, System.nanoTime(), expirationTime);
+            rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, id, ByteBuffer.wrap(myToken.getBytes())), off,
+                    CassandraUtils.createTimestamp(), expirationTime);
 
-                CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rm);
+            CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rm);
 
-                // Read the columns back
-                IColumn supercol = null;
-                int attempts = 0;
-                while (supercol == null && attempts < 10)
+            // Read the columns back
+            IColumn supercol = null;
+            int attempts = 0;
+            while (supercol == null && attempts < 10)
+            {
+                try
                 {
-                    try
+                    List<Row> rows = CassandraUtils.robustRead(key, new QueryPath(
+                            CassandraUtils.schemaInfoColumnFamily), Arrays.asList(id), ConsistencyLevel.QUORUM);
+
+                    if (rows == null || rows.size() == 0)
+                    {
+                        continue;
+                    }
+
+                    if (rows.size() == 1)
                     {
-                        List<Row> rows = CassandraUtils.robustRead(key, new QueryPath(
-                                CassandraUtils.schemaInfoColumnFamily), Arrays.asList(id), ConsistencyLevel.QUORUM);
+                        Row row = rows.get(0);
 
-                        if (rows == null || rows.size() == 0)
+                        if (row.cf == null || row.cf.isMarkedForDelete())
                         {
                             continue;
                         }
 
-                        if (rows.size() == 1)
-                        {
-                            Row row = rows.get(0);
+                        supercol = rows.get(0).cf.getColumn(id);
+                    }
 
-                            if (row.cf == null || row.cf.isMarkedForDelete())
-                            {
-                                continue;
-                            }
+                }
+                catch (IOException e)
+                {
+                    // let's try again...
+                }
 
-                            supercol = rows.get(0).cf.getColumn(id);
-                        }
+                attempts++;
+            }
 
-                    }
-                    catch (IOException e)
-                    {
-                        // let's try again...
-                    }
+            if (supercol == null)
+                throw new IllegalStateException("just wrote " + offset + ", but didn't read it");
 
-                    attempts++;
+            ByteBuffer winningToken = getWinningToken(supercol);
+
+            // we won!
+            if (winningToken != null && ByteBufferUtil.string(winningToken).equals(myToken))
+            {
+                int numReserved = 0;
+                for (int i = nextOffset; i == nextOffset || i % reserveSlabSize != 0; i++)
+                {
+                    rsvpd.add(new IdInfo(node, i, i));
+                    numReserved++;
                 }
 
-                if (supercol == null)
-                    throw new IllegalStateException("just wrote " + offset + ", but didn't read it");
+                logger.info("Reserved " + numReserved + " ids for " + myToken + " shard " + node.shard
+                        + " from slot " + getRandomSequenceOffset(randomSeq, nextOffset));
+            }
+            else
+            {
+                // we lost, try try again...
+                reserveLosses.incrementAndGet();
 
-                long minTtl = Long.MAX_VALUE;
-                ByteBuffer winningToken = null;
+                // secial case, otherwise we never move on
+                if (nextOffset == randomSeq[0])
+                    nextOffset += 1;
 
-                // See which ones we successfully reserved
-                for (IColumn c : supercol.getSubColumns())
-                {
+                // mark this offset as taken and move on
+                if (reserved == null)
+                    updateNodeOffset(shardName, myToken, node, nextOffset);
+                else
+                    reservedOffsets.put(shardName, nextOffset);
 
-                    // someone already took this id
-                    if (!(c instanceof ExpiringColumn) && !(c instanceof DeletedColumn))
-                    {
-                        if (logger.isDebugEnabled())
-                            logger.debug(offset + " was taken by " + ByteBufferUtil.string(c.name()));
+                continue;
+            }
 
-                        winningToken = null;
-                        break;
-                    }
+            reservedOffsets.put(shardName, nextOffset);
+            rsvpdByNode.put(node, rsvpd);
 
-                    // expired reservation
-                    if (c.isMarkedForDelete())
-                        continue;
+            if (logger.isDebugEnabled())
+                logger.debug("offset for shard " + node.shard + " " + nextOffset);
+        }
 
-                    if (c.timestamp() == minTtl && winningToken.compareTo(c.name()) <= 0)
-                    {
-                        winningToken = c.name();
-                    }
+        LinkedBlockingQueue<IdInfo> newRsvpd = interleaveByNode(rsvpdByNode);
+        int numReserved = newRsvpd.size();
 
-                    if (c.timestamp() < minTtl)
-                    {
-                        minTtl = c.timestamp();
-                        winningToken = c.name();
-                    }
-                }
+        for (IdInfo id : newRsvpd)
+            reserves.add(id);
 
-                // we won!
-                if (winningToken != null && ByteBufferUtil.string(winningToken).equals(myToken))
-                {
-                    int numReserved = 0;
-                    for (int i = nextOffset; i == nextOffset || i % reserveSlabSize != 0; i++)
-                    {
-                        rsvpd.add(new IdInfo(node, i, i));
-                        numReserved++;
-                    }
+        long time = System.currentTimeMillis() - start;
 
-                    logger.info("Reserved " + numReserved + " ids for " + myToken + " shard " + node.shard
-                            + " from slot " + getRandomSequenceOffset(nextOffset));
-                }
-                else
-                {
-                    //we lost, try try again...
-                    
-                    // secial case, otherwise we never move on
-                    if (nextOffset == randomSeq[0])
-                        nextOffset += 1;
-
-                    // mark this offset as taken and move on
-                    updateNodeOffset(indexName + "~" + node.shard, myToken, node, nextOffset);
-                    continue;
-                }
+        reserveRounds.incrementAndGet();
+        reserveTime.addAndGet(time);
+
+        long max = maxReserveTime.get();
+        while (time > max && !maxReserveTime.compareAndSet(max, time))
+            max = maxReserveTime.get();
+
+        if (logger.isDebugEnabled())
+            logger.debug("Reserved " + numReserved + " ids for " + myToken + " in " + time + "ms");
+
+        return numReserved;
+    }
+
+    /**
+     * @return the token whose reservation of this id stands, or null if the id
+     *         is already in use
+     */
+    private ByteBuffer getWinningToken(IColumn supercol)
+    {
+        long minTtl = Long.MAX_VALUE;
+        ByteBuffer winningToken = null;
 
-                rsvpdByNode.put(node, rsvpd);
+        for (IColumn c : supercol.getSubColumns())
+        {
 
+            // someone already took this id
+            if (!(c instanceof ExpiringColumn) && !(c instanceof DeletedColumn))
+            {
                 if (logger.isDebugEnabled())
-                    logger.debug("offset for shard " + node.shard + " " + nextOffset);
+                    logger.debug(ByteBufferUtil.string(supercol.name()) + " was taken by "
+                            + ByteBufferUtil.string(c.name()));
 
-                
+                return null;
+            }
+
+            // expired reservation
+            if (c.isMarkedForDelete())
+                continue;
+
+            if (c.timestamp() == minTtl && winningToken.compareTo(c.name()) <= 0)
+            {
+                winningToken = c.name();
+            }
+
+            if (c.timestamp() < minTtl)
+            {
+                minTtl = c.timestamp();
+                winningToken = c.name();
             }
         }
 
-        LinkedBlockingQueue<IdInfo> newRsvpd = interleaveByNode(rsvpdByNode);
+        return winningToken;
+    }
 
-        // check that offset is the same as when we started
-        if (currentRsvpd == null)
+    /**
+     * Reserves the ids listed as free on any shard of the index, the same way
+     * as the first id of a slab.
+     * 
+     * @return the number of ids reserved
+     */
+    private int reserveFreeIds(String indexName, String myToken, Reserves reserves)
+    {
+        try
         {
-            if (indexReserves.putIfAbsent(indexName, newRsvpd) != null)
+            ShardInfo shards = getShardInfo(indexName, false);
+
+            if (shards.shards.isEmpty())
+                return 0;
+
+            Map<ByteBuffer, NodeInfo> nodesByKey = new HashMap<ByteBuffer, NodeInfo>();
+            List<ReadCommand> reads = new ArrayList<ReadCommand>(shards.shards.size());
+
+            for (NodeInfo node : shards.shards.values())
+            {
+                if (!isInLane(indexName, node.shard, reserves.lane))
+                    continue;
+
+                ByteBuffer freeKey = getFreeIdsKey(indexName + "~" + node.shard);
+                nodesByKey.put(freeKey, node);
+
+                reads.add(new SliceFromReadCommand(CassandraUtils.keySpace, freeKey, new ColumnParent(
+                        CassandraUtils.schemaInfoColumnFamily), FBUtilities.EMPTY_BYTE_BUFFER,
+                        FBUtilities.EMPTY_BYTE_BUFFER, false, reserveSlabSize));
+            }
+
+            if (reads.isEmpty())
+                return 0;
+
+            int numReserved = 0;
+
+            for (Row row : CassandraUtils.robustRead(ConsistencyLevel.QUORUM, reads.toArray(new ReadCommand[] {})))
             {
-                logger.info("reserves changed, using those instead");
-                newRsvpd = indexReserves.get(indexName);
+                if (row.cf == null || row.cf.isMarkedForDelete())
+                    continue;
+
+                List<ByteBuffer> freeIds = new ArrayList<ByteBuffer>();
+                for (IColumn col : row.cf.getSortedColumns())
+                {
+                    for (IColumn subCol : col.getSubColumns())
+                    {
+                        if (!subCol.isMarkedForDelete())
+                        {
+                            freeIds.add(col.name());
+                            break;
+                        }
+                    }
+                }
+
+                if (!freeIds.isEmpty())
+                    numReserved += reserveFreeIds(indexName, nodesByKey.get(row.key.key), freeIds, myToken, reserves);
             }
+
+            return numReserved;
         }
-        else
+        catch (IOException e)
+        {
+            logger.warn("Unable to read free ids for " + indexName, e);
+            return 0;
+        }
+    }
+
+    private int reserveFreeIds(String indexName, NodeInfo node, List<ByteBuffer> freeIds, String myToken,
+            Reserves reserves) throws IOException
+    {
+        String subIndex = indexName + "~" + node.shard;
+        ByteBuffer key = CassandraUtils.hashKeyBytes(subIndex.getBytes(), CassandraUtils.delimeterBytes, "ids"
+                .getBytes());
+
+        // ids already back in use can be dropped from the list
+        RowMutation used = new RowMutation(CassandraUtils.keySpace, getFreeIdsKey(subIndex));
+        boolean hasUsed = false;
+
+        // skip the ones held by a live reservation, ours included
+        List<ByteBuffer> candidates = new ArrayList<ByteBuffer>();
+        List<Row> rows = CassandraUtils.robustRead(key, new QueryPath(CassandraUtils.schemaInfoColumnFamily), freeIds,
+                ConsistencyLevel.QUORUM);
+
+        for (ByteBuffer id : freeIds)
         {
-            if (!indexReserves.replace(indexName, currentRsvpd, newRsvpd))
+            IColumn supercol = getSuperColumn(rows, id);
+
+            if (supercol != null && isTaken(supercol))
+            {
+                used.delete(new QueryPath(CassandraUtils.schemaInfoColumnFamily, id), CassandraUtils.createTimestamp());
+                hasUsed = true;
+            }
+            else if (supercol == null || getWinningToken(supercol) == null)
             {
-                logger.info("already reserved by someone else, using those");
-                return indexReserves.get(indexName).poll();
+                candidates.add(id);
             }
         }
 
-        if (logger.isDebugEnabled())
-            logger.debug("Reserved " + newRsvpd.size() + " ids for " + myToken);
+        int numReserved = 0;
+
+        if (!candidates.isEmpty())
+        {
+            RowMutation rm = new RowMutation(CassandraUtils.keySpace, key);
+            for (ByteBuffer id : candidates)
+                rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, id, ByteBuffer.wrap(myToken.getBytes())),
+                        id, CassandraUtils.createTimestamp(), expirationTime);
+
+            CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rm);
+
+            rows = CassandraUtils.robustRead(key, new QueryPath(CassandraUtils.schemaInfoColumnFamily), candidates,
+                    ConsistencyLevel.QUORUM);
+
+            for (ByteBuffer id : candidates)
+            {
+                IColumn supercol = getSuperColumn(rows, id);
+                ByteBuffer winningToken = supercol == null ? null : getWinningToken(supercol);
+
+                if (winningToken != null && ByteBufferUtil.string(winningToken).equals(myToken))
+                {
+                    reserves.add(new IdInfo(node, Integer.valueOf(ByteBufferUtil.string(id)), null));
+                    numReserved++;
+                }
+                else
+                {
+                    reserveLosses.incrementAndGet();
+                }
+            }
+        }
+
+        if (hasUsed)
+            CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, used);
+
+        if (numReserved > 0)
+            logger.info("Reserved " + numReserved + " free ids for " + myToken + " shard " + node.shard);
+
+        return numReserved;
+    }
+
+    private IColumn getSuperColumn(List<Row> rows, ByteBuffer name)
+    {
+        if (rows == null || rows.size() != 1 || rows.get(0).cf == null)
+            return null;
+
+        return rows.get(0).cf.getColumn(name);
+    }
+
+    // true once a key has been permanently written under this id
+    private boolean isTaken(IColumn supercol)
+    {
+        for (IColumn c : supercol.getSubColumns())
+        {
+            if (!(c instanceof ExpiringColumn) && !(c instanceof DeletedColumn))
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return counters for id reservation: rounds run, total and max time
+     *         spent, slabs lost to other nodes and adds that had to wait for a
+     *         reservation
+     */
+    public Map<String, Long> getReserveStatistics()
+    {
+        Map<String, Long> stats = new LinkedHashMap<String, Long>();
+
+        stats.put("reserveRounds", reserveRounds.get());
+        stats.put("reserveTimeMs", reserveTime.get());
+        stats.put("maxReserveTimeMs", maxReserveTime.get());
+        stats.put("reserveLosses", reserveLosses.get());
+        stats.put("reserveStalls", reserveStalls.get());
 
-        return newRsvpd.poll();
+        return stats;
     }
 
     private LinkedBlockingQueue<IdInfo> interleaveByNode(Map<NodeInfo, TreeSet<IdInfo>> rsvpdByNode)
@@ -681,7 +1783,7 @@ public class CassandraIndexManager
         }
     }
 
-    private int getRandomSequenceOffset(int offset)
+    private int getRandomSequenceOffset(int[] randomSeq, int offset)
     {
         if (offset >= CassandraUtils.maxDocsPerShard)
             throw new IllegalArgumentException("offset can not be > " + CassandraUtils.maxDocsPerShard);
@@ -705,7 +1807,7 @@ public class CassandraIndexManager
      * @param shards
      * @return
      */
-    private NodeInfo[] pickAShard(ShardInfo shards) throws IOException
+    private NodeInfo[] pickAShard(ShardInfo shards, int lane) throws IOException
     {
 
         assert shards != null;
@@ -713,14 +1815,25 @@ public class CassandraIndexManager
         synchronized (shards)
         {
             String myToken = getToken();
+            int[] randomSeq = getRandomSeq(shards.indexName);
+            int offsetSlots = randomSeq.length;
+
+            // time ordered indexes and routing lanes fill one shard at a time
+            boolean oneAtATime = lane >= 0 || isTimeOrdered(shards.indexName);
+            int shardsAtOnce = oneAtATime ? 1 : this.shardsAtOnce;
+            boolean preferLocalShards = this.preferLocalShards && !oneAtATime;
 
             NodeInfo[] picked = new NodeInfo[shardsAtOnce];
 
             int maxShard = -1;
             int pickedShard = 0;
+            List<NodeInfo> localShards = new ArrayList<NodeInfo>();
 
             for (Map.Entry<Integer, NodeInfo> shard : shards.shards.entrySet())
             {
+                if (!isInLane(shards.indexName, shard.getKey(), lane))
+                    continue;
+
                 NodeInfo nodes = shard.getValue();
 
                 AtomicInteger offset = nodes.nodes.get(myToken);
@@ -738,7 +1851,7 @@ public class CassandraIndexManager
                     CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rm);
                 }
 
-                int randomSeqOffset = getRandomSequenceOffset(offset.get());
+                int randomSeqOffset = getReservedSequenceOffset(shards.indexName, nodes, myToken);
 
                 if (logger.isDebugEnabled())
                     logger.info(myToken + ": shard = " + shard.getKey() + ", offset = " + offset.get()
@@ -751,9 +1864,17 @@ public class CassandraIndexManager
 
                 if (randomSeqOffset + 1 < offsetSlots)
                 {
-                    picked[pickedShard] = nodes;
-                    pickedShard++;
-                    if (pickedShard >= shardsAtOnce)
+                    if (preferLocalShards && isLocalShard(shards.indexName + "~" + nodes.shard))
+                    {
+                        localShards.add(nodes);
+                    }
+                    else if (pickedShard < shardsAtOnce)
+                    {
+                        picked[pickedShard] = nodes;
+                        pickedShard++;
+                    }
+
+                    if (!preferLocalShards && pickedShard >= shardsAtOnce)
                         return picked;
                 }
 
@@ -762,56 +1883,109 @@ public class CassandraIndexManager
 
             }
 
+            // write where the sub-index lives while we can, the rest of the
+            // quota still goes elsewhere so writes aren't all on this node
+            if (!localShards.isEmpty())
+            {
+                for (int i = 0; i < pickedShard && localShards.size() < shardsAtOnce; i++)
+                    localShards.add(picked[i]);
+
+                if (localShards.size() > shardsAtOnce)
+                    localShards = localShards.subList(0, shardsAtOnce);
+
+                picked = localShards.toArray(new NodeInfo[shardsAtOnce]);
+                pickedShard = localShards.size();
+            }
+
+            if (pickedShard >= shardsAtOnce)
+                return picked;
+
             // new shards
             for (int i = pickedShard; i < shardsAtOnce; i++)
             {
-                picked[i] = addNewShard(shards.indexName);
+                picked[i] = addNewShard(shards.indexName, lane);
             }
 
             return picked;
         }
     }
 
-    private NodeInfo addNewShard(String indexName) throws IOException
+    // true if this node holds a replica of the sub-index
+    protected boolean isLocalShard(String subIndex)
+    {
+        Token<?> token = StorageService.getPartitioner().getToken(CassandraUtils.hashBytes(subIndex.getBytes()));
+
+        return Table.open(CassandraUtils.keySpace).getReplicationStrategy().getNaturalEndpoints(token).contains(
+                FBUtilities.getLocalAddress());
+    }
+
+    // true if the shard takes docs of this routing lane, any shard for -1
+    private boolean isInLane(String indexName, int shard, int lane)
+    {
+        return lane < 0 || shard % getRoutingShards(indexName) == lane;
+    }
+
+    private NodeInfo addNewShard(String indexName, int lane) throws IOException
     {
         ShardInfo shards = getShardInfo(indexName, false);
 
         // get max shard
         Integer maxShard = -1;
+        int newShard;
 
-        if (!shards.shards.isEmpty())
+        if (lane >= 0)
         {
-            Map.Entry<Integer, NodeInfo> max = shards.shards.lastEntry();
+            // the shards of a lane are lane, lane + routingShards, ...
+            newShard = lane;
 
-            Integer currentOffset = null;
-            for (Map.Entry<String, AtomicInteger> e1 : max.getValue().nodes.entrySet())
+            for (Integer shard : shards.shards.keySet())
             {
-                if (e1.getValue().get() > 0)
+                if (isInLane(indexName, shard, lane) && shard >= newShard)
+                    newShard = shard + getRoutingShards(indexName);
+            }
+        }
+        else
+        {
+            if (!shards.shards.isEmpty())
+            {
+                Map.Entry<Integer, NodeInfo> max = shards.shards.lastEntry();
+
+                Integer currentOffset = null;
+                for (Map.Entry<String, AtomicInteger> e1 : max.getValue().nodes.entrySet())
                 {
-                    currentOffset = e1.getValue().get();
-                    break;
+                    if (e1.getValue().get() > 0)
+                    {
+                        currentOffset = e1.getValue().get();
+                        break;
+                    }
                 }
-            }
 
-            if (currentOffset != null && currentOffset > 0)
-            {
-                maxShard = max.getKey();
+                if (currentOffset != null && currentOffset > 0)
+                {
+                    maxShard = max.getKey();
+                }
             }
+
+            newShard = maxShard + 1;
         }
 
-        NodeInfo nodes = new NodeInfo(maxShard + 1);
+        NodeInfo nodes = new NodeInfo(newShard);
+        int[] randomSeq = getRandomSeq(indexName);
 
         NodeInfo dupNodes = null;
-        if ((dupNodes = shards.shards.putIfAbsent(maxShard + 1, nodes)) == null)
+        if ((dupNodes = shards.shards.putIfAbsent(newShard, nodes)) == null)
         {
-            logger.info("added new shard for " + indexName + " " + (maxShard + 1) + " with offset " + randomSeq[0]);
+            logger.info("added new shard for " + indexName + " " + newShard + " with offset " + randomSeq[0]);
 
             RowMutation rm = updateNodeOffset(indexName, getToken(), nodes, randomSeq[0]); // offset
             // 0
             RowMutation rm2 = updateNodeOffset(indexName + "~" + nodes.shard, getToken(), nodes, randomSeq[0]); // offset
             // 0
 
-            CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rm, rm2);
+            // no doc can be in it yet, so its docFreqs are counted from the start
+            RowMutation rm3 = IndexWriter.markCounted(indexName + "~" + nodes.shard);
+
+            CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rm, rm2, rm3);
         }
 
         return dupNodes == null ? nodes : dupNodes;
@@ -826,7 +2000,7 @@ public class CassandraIndexManager
 
         rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, ByteBuffer.wrap(String.valueOf(node.shard)
                 .getBytes()), ByteBuffer.wrap(myToken.getBytes())), ByteBuffer.wrap(String.valueOf(offset).getBytes()),
-                System.nanoTime());
+                CassandraUtils.createTimestamp());
 
         // update locally
         AtomicInteger o = node.nodes.get(myToken);
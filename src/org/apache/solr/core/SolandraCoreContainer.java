@@ -22,9 +22,8 @@ package org.apache.solr.core;
 import java.io.*;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.*;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.xml.parsers.ParserConfigurationException;
@@ -33,7 +32,11 @@ import lucandra.CassandraUtils;
 import lucandra.cluster.CassandraIndexManager;
 import lucandra.cluster.IndexManagerService;
 
+import com.google.common.collect.MapMaker;
+
 import org.apache.cassandra.cache.InstrumentedCache;
+import org.apache.cassandra.concurrent.NamedThreadFactory;
+import org.apache.cassandra.db.IColumn;
 import org.apache.cassandra.db.Row;
 import org.apache.cassandra.db.RowMutation;
 import org.apache.cassandra.db.Table;
@@ -42,6 +45,7 @@ import org.apache.cassandra.dht.Token;
 import org.apache.cassandra.service.StorageService;
 import org.apache.cassandra.thrift.ConsistencyLevel;
 import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.FBUtilities;
 import org.apache.log4j.Logger;
 import org.apache.solr.schema.IndexSchema;
 import org.xml.sax.SAXException;
@@ -59,6 +63,17 @@ public class SolandraCoreContainer extends CoreContainer
                                                                                CassandraUtils.schemaInfoColumnFamily,
                                                                                CassandraUtils.schemaKeyBytes);
 
+    // one load per core, requests for a core being loaded wait on it
+    private final static ConcurrentMap<String, FutureTask<SolrCore>> loading = new MapMaker().makeMap();
+
+    // cores used lately anywhere, so a restarted node can load them early
+    private final static ByteBuffer                          recentKey     = ByteBuffer.wrap("cores/recent".getBytes());
+    private final static ByteBuffer                          recentCol     = ByteBuffer.wrap("recent".getBytes());
+    private final static int                                 recentTTL     = Integer.valueOf(System.getProperty(
+                                                                               "solandra.cores.recent.ttl", "604800"));
+    private final static long                                activeInterval = 60 * 60 * 1000;
+    private final static Map<String, Long>                   lastActive    = new MapMaker().makeMap();
+
     private final String                                     solrConfigFile;
     private final SolrCore                                   singleCore;
 
@@ -95,6 +110,8 @@ public class SolandraCoreContainer extends CoreContainer
             try
             {
                 core = readSchema(indexInfo.coreName);
+                
+                markActive(indexInfo.coreName);
             }
             catch (IOException e)
             {
@@ -141,10 +158,61 @@ public class SolandraCoreContainer extends CoreContainer
         return ByteBufferUtil.string(schema);
     }
 
-    public synchronized SolrCore readSchema(String indexName) throws IOException, ParserConfigurationException,
+    public SolrCore readSchema(final String indexName) throws IOException, ParserConfigurationException,
             SAXException
     {
+        SolrCore core = cache.get(indexName);
+
+        if (core != null)
+            return core;
 
+        FutureTask<SolrCore> load = new FutureTask<SolrCore>(new Callable<SolrCore>() {
+            public SolrCore call() throws Exception
+            {
+                return loadCore(indexName);
+            }
+        });
+
+        FutureTask<SolrCore> current = loading.putIfAbsent(indexName, load);
+
+        if (current == null)
+        {
+            current = load;
+            load.run();
+        }
+
+        try
+        {
+            return current.get();
+        }
+        catch (InterruptedException e)
+        {
+            throw new IOException(e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            if (cause instanceof ParserConfigurationException)
+                throw (ParserConfigurationException) cause;
+            if (cause instanceof SAXException)
+                throw (SAXException) cause;
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+
+            throw new RuntimeException(cause);
+        }
+        finally
+        {
+            // a failed load is retried by the next request
+            loading.remove(indexName, current);
+        }
+    }
+
+    private SolrCore loadCore(String indexName) throws IOException, ParserConfigurationException, SAXException
+    {
         SolrCore core = cache.get(indexName);
 
         if (core == null)
@@ -183,6 +251,78 @@ public class SolandraCoreContainer extends CoreContainer
         return core;
     }
 
+    // notes the core in the recent list, at most once an interval
+    private static void markActive(String indexName)
+    {
+        long now = System.currentTimeMillis();
+        Long last = lastActive.get(indexName);
+
+        if (last != null && last > now - activeInterval)
+            return;
+
+        lastActive.put(indexName, now);
+
+        RowMutation rm = new RowMutation(CassandraUtils.keySpace, recentKey);
+        rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, recentCol, ByteBuffer.wrap(indexName.getBytes())),
+                FBUtilities.EMPTY_BYTE_BUFFER, CassandraUtils.createTimestamp(), recentTTL);
+
+        CassandraUtils.robustInsert(ConsistencyLevel.ONE, rm);
+    }
+
+    /**
+     * Loads the cores used most recently in the background, so the first
+     * requests after a restart don't all wait on schema loads
+     * 
+     * @param count how many cores to load
+     */
+    public void preload(int count, int threads) throws IOException
+    {
+        List<Row> rows = CassandraUtils.robustRead(recentKey, new QueryPath(CassandraUtils.schemaInfoColumnFamily),
+                Arrays.asList(recentCol), ConsistencyLevel.ONE);
+
+        if (rows.isEmpty() || rows.get(0).cf == null || rows.get(0).cf.getColumn(recentCol) == null)
+            return;
+
+        List<IColumn> recent = new ArrayList<IColumn>(rows.get(0).cf.getColumn(recentCol).getSubColumns());
+
+        // newest first
+        Collections.sort(recent, new Comparator<IColumn>() {
+            public int compare(IColumn o1, IColumn o2)
+            {
+                return o1.timestamp() > o2.timestamp() ? -1 : (o1.timestamp() == o2.timestamp() ? 0 : 1);
+            }
+        });
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new NamedThreadFactory("CorePreload"));
+
+        for (IColumn col : recent.subList(0, Math.min(count, recent.size())))
+        {
+            if (!col.isLive())
+                continue;
+
+            final String indexName = ByteBufferUtil.string(col.name());
+
+            pool.submit(new Runnable() {
+                public void run()
+                {
+                    try
+                    {
+                        readSchema(indexName);
+
+                        if (logger.isDebugEnabled())
+                            logger.debug("Preloaded core " + indexName);
+                    }
+                    catch (Exception e)
+                    {
+                        logger.warn("Failed to preload core " + indexName, e);
+                    }
+                }
+            });
+        }
+
+        pool.shutdown();
+    }
+
     public static void writeSchema(String indexName, String schemaXml)
     {
         RowMutation rm = new RowMutation(CassandraUtils.keySpace, ByteBuffer.wrap((indexName + "/schema").getBytes()));
@@ -216,7 +356,7 @@ public class SolandraCoreContainer extends CoreContainer
         StringBuilder sb = new StringBuilder();
         
         sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\" ?>\n");
-        sb.append("<solandraCore name=\""+indexName+"\" numSubIndexes=\""+(numShards+1)+"\" documentsPerSubIndex=\""+CassandraUtils.maxDocsPerShard+"\">\n");
+        sb.append("<solandraCore name=\""+indexName+"\" numSubIndexes=\""+(numShards+1)+"\" documentsPerSubIndex=\""+IndexManagerService.instance.getShardSize(indexName)+"\">\n");
         for(int i=0; i<=numShards; i++)
         {
             ByteBuffer subIndex = CassandraUtils.hashBytes((info.indexName + "~" + i).getBytes());
@@ -0,0 +1,411 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.component;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.cassandra.utils.FBUtilities;
+import org.apache.commons.httpclient.HttpClient;
+import org.apache.commons.httpclient.MultiThreadedHttpConnectionManager;
+import org.apache.log4j.Logger;
+import org.apache.solr.client.solrj.SolrRequest;
+import org.apache.solr.client.solrj.SolrResponse;
+import org.apache.solr.client.solrj.SolrServer;
+import org.apache.solr.client.solrj.impl.CommonsHttpSolrServer;
+import org.apache.solr.client.solrj.request.QueryRequest;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.RTimer;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.request.BinaryResponseWriter;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrQueryResponse;
+import org.apache.solr.request.SolrRequestHandler;
+
+/**
+ * A SearchHandler that searches the sub-indexes this node holds in-process
+ * instead of over http to itself. The remote sub-indexes are still sent
+ * shard requests and the components merge both kinds of response alike.
+ *
+ * Lives in this package to get at the shard request plumbing, the request
+ * loop is the one from SearchHandler.
+ */
+public class SolandraSearchHandler extends SearchHandler
+{
+    private static final Logger logger = Logger.getLogger(SolandraSearchHandler.class);
+
+    // not final so tests can compare in-process and http shard requests
+    public static boolean       inProcess = true;
+
+    @Override
+    public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception
+    {
+        ResponseBuilder rb = new ResponseBuilder();
+        rb.req = req;
+        rb.rsp = rsp;
+        rb.components = components;
+        rb.setDebug(req.getParams().getBool(CommonParams.DEBUG_QUERY, false));
+
+        final RTimer timer = rb.isDebug() ? new RTimer() : null;
+
+        if (timer == null)
+        {
+            for (SearchComponent c : components)
+                c.prepare(rb);
+        }
+        else
+        {
+            RTimer subt = timer.sub("prepare");
+            for (SearchComponent c : components)
+            {
+                rb.setTimer(subt.sub(c.getName()));
+                c.prepare(rb);
+                rb.getTimer().stop();
+            }
+            subt.stop();
+        }
+
+        if (rb.shards == null)
+        {
+            if (timer == null)
+            {
+                for (SearchComponent c : components)
+                    c.process(rb);
+            }
+            else
+            {
+                RTimer subt = timer.sub("process");
+                for (SearchComponent c : components)
+                {
+                    rb.setTimer(subt.sub(c.getName()));
+                    c.process(rb);
+                    rb.getTimer().stop();
+                }
+                subt.stop();
+                timer.stop();
+
+                if (rb.getDebugInfo() == null)
+                    rb.setDebugInfo(new SimpleOrderedMap<Object>());
+
+                rb.getDebugInfo().add("timing", timer.asNamedList());
+            }
+
+            return;
+        }
+
+        LocalCommComponent comm = new LocalCommComponent(req.getCore());
+
+        if (rb.outgoing == null)
+            rb.outgoing = new LinkedList<ShardRequest>();
+
+        rb.finished = new ArrayList<ShardRequest>();
+
+        int nextStage = 0;
+        do
+        {
+            rb.stage = nextStage;
+            nextStage = ResponseBuilder.STAGE_DONE;
+
+            // the next stage is the earliest any component asks for
+            for (SearchComponent c : components)
+                nextStage = Math.min(nextStage, c.distributedProcess(rb));
+
+            while (rb.outgoing.size() > 0)
+            {
+                // submit all current requests at once
+                while (rb.outgoing.size() > 0)
+                {
+                    ShardRequest sreq = rb.outgoing.remove(0);
+                    sreq.actualShards = sreq.shards;
+                    if (sreq.actualShards == ShardRequest.ALL_SHARDS)
+                        sreq.actualShards = rb.shards;
+
+                    sreq.responses = new ArrayList<ShardResponse>();
+
+                    for (String shard : sreq.actualShards)
+                    {
+                        ModifiableSolrParams params = new ModifiableSolrParams(sreq.params);
+                        params.remove(ShardParams.SHARDS);
+                        params.remove("indent");
+                        params.remove(CommonParams.HEADER_ECHO_PARAMS);
+                        params.set(ShardParams.IS_SHARD, true);
+
+                        String shardHandler = req.getParams().get(ShardParams.SHARDS_QT);
+                        if (shardHandler == null)
+                            params.remove(CommonParams.QT);
+                        else
+                            params.set(CommonParams.QT, shardHandler);
+
+                        comm.submit(sreq, shard, params);
+                    }
+                }
+
+                // wait for replies, but send anything put on the outgoing
+                // queue straight away
+                while (rb.outgoing.size() == 0)
+                {
+                    ShardResponse srsp = comm.takeCompletedOrError();
+                    if (srsp == null)
+                        break;
+
+                    if (srsp.getException() != null)
+                    {
+                        comm.cancelAll();
+
+                        if (srsp.getException() instanceof SolrException)
+                            throw (SolrException) srsp.getException();
+                        else
+                            throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, srsp.getException());
+                    }
+
+                    rb.finished.add(srsp.getShardRequest());
+
+                    for (SearchComponent c : components)
+                        c.handleResponses(rb, srsp.getShardRequest());
+                }
+            }
+
+            for (SearchComponent c : components)
+                c.finishStage(rb);
+
+        } while (nextStage != Integer.MAX_VALUE);
+    }
+
+    @Override
+    public String getDescription()
+    {
+        return "Search handler running local sub-indexes in-process";
+    }
+
+    /**
+     * Sends shard requests like SearchHandler's own comm component, but runs
+     * those for shards on this node against the core directly
+     */
+    private static class LocalCommComponent
+    {
+        private static final Executor   commExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 5,
+                                                             TimeUnit.SECONDS, new SynchronousQueue<Runnable>());
+
+        private static final HttpClient client;
+
+        static
+        {
+            MultiThreadedHttpConnectionManager mgr = new MultiThreadedHttpConnectionManager();
+            mgr.getParams().setDefaultMaxConnectionsPerHost(20);
+            mgr.getParams().setMaxTotalConnections(10000);
+            mgr.getParams().setConnectionTimeout(SearchHandler.connectionTimeout);
+            mgr.getParams().setSoTimeout(SearchHandler.soTimeout);
+
+            client = new HttpClient(mgr);
+        }
+
+        private final CompletionService<ShardResponse> completionService = new ExecutorCompletionService<ShardResponse>(
+                                                                                commExecutor);
+        private final Set<Future<ShardResponse>>       pending           = new HashSet<Future<ShardResponse>>();
+
+        private final SolrCore                         core;
+        private final String                           localHost         = FBUtilities.getLocalAddress()
+                                                                                .getHostAddress();
+
+        public LocalCommComponent(SolrCore core)
+        {
+            this.core = core;
+        }
+
+        void submit(final ShardRequest sreq, final String shard, final ModifiableSolrParams params)
+        {
+            // shards look like host:port/solandra/index~n
+            final String subIndex = inProcess ? getLocalSubIndex(shard) : null;
+
+            if (subIndex != null && logger.isDebugEnabled())
+                logger.debug("Searching " + subIndex + " in-process");
+
+            Callable<ShardResponse> task = new Callable<ShardResponse>() {
+                public ShardResponse call() throws Exception
+                {
+                    ShardResponse srsp = new ShardResponse();
+                    srsp.setShardRequest(sreq);
+                    srsp.setShard(shard);
+
+                    LocalSolrResponse lsr = new LocalSolrResponse();
+                    srsp.setSolrResponse(lsr);
+
+                    long startTime = System.currentTimeMillis();
+
+                    try
+                    {
+                        if (subIndex == null)
+                            lsr.nl = requestRemote(shard, params);
+                        else
+                            lsr.nl = requestLocal(subIndex, params);
+                    }
+                    catch (Throwable th)
+                    {
+                        srsp.setException(th);
+                        if (th instanceof SolrException)
+                            srsp.setResponseCode(((SolrException) th).code());
+                        else
+                            srsp.setResponseCode(-1);
+                    }
+
+                    lsr.elapsedTime = System.currentTimeMillis() - startTime;
+
+                    return srsp;
+                }
+            };
+
+            pending.add(completionService.submit(task));
+        }
+
+        private NamedList<Object> requestLocal(String subIndex, ModifiableSolrParams params) throws Exception
+        {
+            SolrQueryRequest req = new LocalSolrQueryRequest(core, params);
+            try
+            {
+                req.getContext().put("solandra-index", subIndex);
+
+                SolrRequestHandler handler = core.getRequestHandler(params.get(CommonParams.QT));
+                if (handler == null)
+                    throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "unknown handler: "
+                            + params.get(CommonParams.QT));
+
+                SolrQueryResponse rsp = new SolrQueryResponse();
+                core.execute(handler, req, rsp);
+
+                if (rsp.getException() != null)
+                    throw rsp.getException();
+
+                // resolves the docs just as the javabin writer would
+                return BinaryResponseWriter.getParsedResponse(req, rsp);
+            }
+            finally
+            {
+                req.close();
+            }
+        }
+
+        private NamedList<Object> requestRemote(String shard, ModifiableSolrParams params) throws Exception
+        {
+            // the server picks its own
+            params.remove(CommonParams.WT);
+            params.remove(CommonParams.VERSION);
+
+            SolrServer server = new CommonsHttpSolrServer("http://" + shard, client);
+
+            QueryRequest req = new QueryRequest(params);
+            req.setMethod(SolrRequest.METHOD.POST);
+
+            return server.request(req);
+        }
+
+        // the first error, or the last response of a request once all its
+        // shards have answered, or null when nothing is left
+        ShardResponse takeCompletedOrError()
+        {
+            while (pending.size() > 0)
+            {
+                try
+                {
+                    Future<ShardResponse> future = completionService.take();
+                    pending.remove(future);
+
+                    ShardResponse rsp = future.get();
+                    if (rsp.getException() != null)
+                        return rsp;
+
+                    rsp.getShardRequest().responses.add(rsp);
+                    if (rsp.getShardRequest().responses.size() == rsp.getShardRequest().actualShards.length)
+                        return rsp;
+                }
+                catch (InterruptedException e)
+                {
+                    throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, e);
+                }
+                catch (ExecutionException e)
+                {
+                    throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, "Impossible Exception", e);
+                }
+            }
+
+            return null;
+        }
+
+        void cancelAll()
+        {
+            for (Future<ShardResponse> future : pending)
+                future.cancel(true);
+        }
+
+        // the sub-index if this shard is on this node, else null
+        private String getLocalSubIndex(String shard)
+        {
+            if (shard.startsWith("http://"))
+                shard = shard.substring("http://".length());
+
+            int port = shard.indexOf(':');
+            int slash = shard.lastIndexOf('/');
+
+            if (port < 0 || slash < port || !shard.substring(0, port).equals(localHost))
+                return null;
+
+            return shard.substring(slash + 1);
+        }
+    }
+
+    private static class LocalSolrResponse extends SolrResponse
+    {
+        private static final long serialVersionUID = 1L;
+
+        long              elapsedTime;
+        NamedList<Object> nl;
+
+        public long getElapsedTime()
+        {
+            return elapsedTime;
+        }
+
+        public NamedList<Object> getResponse()
+        {
+            return nl;
+        }
+
+        public void setResponse(NamedList<Object> nl)
+        {
+            this.nl = nl;
+        }
+    }
+}
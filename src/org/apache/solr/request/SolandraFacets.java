@@ -0,0 +1,353 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import java.io.IOException;
+import java.util.*;
+
+import lucandra.IndexReader;
+import lucandra.LucandraTermInfo;
+import lucandra.TermCache;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.Term;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.TrieField;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrIndexReader;
+
+/**
+ * Counts field facets straight from the term postings instead of uninverting
+ * the field. The field's terms and their stored docFreqs are read from the
+ * term list, then postings are loaded a batch of terms at a time and
+ * intersected with the matching docs.
+ *
+ * Sorted by count, terms are visited by descending docFreq, and the walk
+ * stops once no remaining term's docFreq could place within the limit, so
+ * only the postings of likely winners are read. A sub-index whose docFreqs
+ * weren't counted from its first doc bounds every term by its maxDoc, which
+ * prunes nothing there. Sorted by index the walk stops once the page is full.
+ * The postings are read for the count and dropped rather than cached.
+ *
+ * Lives in this package to see the docs a facet.field is counted against.
+ */
+public class SolandraFacets extends SimpleFacets
+{
+    private static final Logger  logger    = Logger.getLogger(SolandraFacets.class);
+
+    // terms whose postings are loaded per round trip
+    private static final int     batchSize = Integer.valueOf(System.getProperty("solandra.facet.batch", "128"));
+
+    // skip terms whose docFreq says they can't place
+    private static final boolean prune     = Boolean.valueOf(System.getProperty("solandra.facet.prune", "true"));
+
+    private static class Candidate
+    {
+        final Term      term;
+        final boolean[] leaves;
+        long            bound = 0;
+        int             count = 0;
+        boolean         live  = false;
+
+        Candidate(Term term, int numLeaves)
+        {
+            this.term = term;
+            leaves = new boolean[numLeaves];
+        }
+    }
+
+    // most likely first, by docFreq then index order
+    private static final Comparator<Candidate> byBound = new Comparator<Candidate>() {
+        public int compare(Candidate a, Candidate b)
+        {
+            if (a.bound != b.bound)
+                return a.bound > b.bound ? -1 : 1;
+
+            return a.term.compareTo(b.term);
+        }
+    };
+
+    // best first, by count then index order
+    private static final Comparator<Candidate> byCount = new Comparator<Candidate>() {
+        public int compare(Candidate a, Candidate b)
+        {
+            if (a.count != b.count)
+                return a.count > b.count ? -1 : 1;
+
+            return a.term.compareTo(b.term);
+        }
+    };
+
+    // postings read for the current field, for debugging
+    private int loaded;
+
+    public SolandraFacets(SolrQueryRequest req, DocSet docs, SolrParams params, ResponseBuilder rb)
+    {
+        super(req, docs, params, rb);
+    }
+
+    @Override
+    public NamedList<Integer> getTermCounts(String field) throws IOException
+    {
+        FieldType ft = searcher.getSchema().getField(field).getType();
+        SolrIndexReader[] leaves = searcher.getReader().getLeafReaders();
+
+        // leave solr's own methods to whatever this doesn't cover
+        if (params.getFieldParam(field, FacetParams.FACET_METHOD) != null
+                || params.getFieldBool(field, FacetParams.FACET_MISSING, false)
+                || TrieField.getMainValuePrefix(ft) != null)
+            return getSolrTermCounts(field);
+
+        for (SolrIndexReader leaf : leaves)
+        {
+            if (!(leaf.getWrappedReader() instanceof IndexReader))
+                return getSolrTermCounts(field);
+        }
+
+        int offset = params.getFieldInt(field, FacetParams.FACET_OFFSET, 0);
+        int limit = params.getFieldInt(field, FacetParams.FACET_LIMIT, 100);
+
+        Integer mincount = params.getFieldInt(field, FacetParams.FACET_MINCOUNT);
+        if (mincount == null)
+        {
+            Boolean zeros = params.getFieldBool(field, FacetParams.FACET_ZEROS);
+            mincount = (zeros != null && !zeros) ? 1 : 0;
+        }
+
+        String sort = params.getFieldParam(field, FacetParams.FACET_SORT, limit > 0 ? FacetParams.FACET_SORT_COUNT
+                : FacetParams.FACET_SORT_INDEX);
+        String prefix = params.getFieldParam(field, FacetParams.FACET_PREFIX);
+
+        long start = System.currentTimeMillis();
+        loaded = 0;
+
+        int[] offsets = searcher.getReader().getLeafOffsets();
+        TermCache[] termCaches = new TermCache[leaves.length];
+
+        List<Candidate> candidates = getCandidates(field, prefix, leaves, termCaches);
+
+        List<Candidate> counted;
+
+        if (sort.equals(FacetParams.FACET_SORT_COUNT) || sort.equals(FacetParams.FACET_SORT_COUNT_LEGACY))
+            counted = countByCount(candidates, offsets, termCaches, offset, limit, mincount);
+        else
+            counted = countByIndex(candidates, offsets, termCaches, offset, limit, mincount);
+
+        NamedList<Integer> res = new NamedList<Integer>();
+        for (Candidate c : counted)
+            res.add(ft.indexedToReadable(c.term.text()), c.count);
+
+        if (logger.isDebugEnabled())
+            logger.debug("Faceted " + field + " over " + candidates.size() + " terms, loading " + loaded + ", in "
+                    + (System.currentTimeMillis() - start) + "ms");
+
+        return res;
+    }
+
+    // solr 1.4 hands them back raw
+    @SuppressWarnings("unchecked")
+    private NamedList<Integer> getSolrTermCounts(String field) throws IOException
+    {
+        return super.getTermCounts(field);
+    }
+
+    // the field's terms across the leaves, each bounded by its summed docFreq
+    private List<Candidate> getCandidates(String field, String prefix, SolrIndexReader[] leaves,
+            TermCache[] termCaches) throws IOException
+    {
+        SortedMap<Term, Candidate> candidates = new TreeMap<Term, Candidate>();
+
+        for (int i = 0; i < leaves.length; i++)
+        {
+            IndexReader reader = (IndexReader) leaves[i].getWrappedReader();
+            termCaches[i] = reader.getCache().termCache;
+
+            List<Term> terms = termCaches[i].getTerms(field);
+
+            if (prefix != null && prefix.length() > 0)
+            {
+                List<Term> matching = new ArrayList<Term>();
+                for (Term term : terms)
+                    if (term.text().startsWith(prefix))
+                        matching.add(term);
+
+                terms = matching;
+            }
+
+            int[] docFreqs = termCaches[i].getDocFreqs(terms);
+
+            for (int j = 0; j < docFreqs.length; j++)
+            {
+                Candidate c = candidates.get(terms.get(j));
+
+                if (c == null)
+                {
+                    c = new Candidate(terms.get(j), leaves.length);
+                    candidates.put(c.term, c);
+                }
+
+                c.leaves[i] = true;
+
+                // a term without a stored docFreq could be in every doc
+                c.bound += docFreqs[j] < 0 ? reader.maxDoc() : docFreqs[j];
+            }
+        }
+
+        return new ArrayList<Candidate>(candidates.values());
+    }
+
+    private List<Candidate> countByCount(List<Candidate> candidates, int[] offsets, TermCache[] termCaches,
+            int offset, int limit, int mincount) throws IOException
+    {
+        Collections.sort(candidates, byBound);
+
+        int need = limit < 0 ? Integer.MAX_VALUE : offset + limit;
+
+        // the worst of the best so far on top
+        PriorityQueue<Candidate> best = new PriorityQueue<Candidate>(Math.min(need, 1024) + 1, Collections
+                .reverseOrder(byCount));
+
+        for (int from = 0; from < candidates.size(); from += batchSize)
+        {
+            long threshold = prune ? mincount : 0;
+            if (prune && best.size() >= need)
+                threshold = Math.max(threshold, best.peek().count);
+
+            // nothing from here on can place
+            List<Candidate> batch = candidates.subList(from, Math.min(candidates.size(), from + batchSize));
+            int end = 0;
+            while (end < batch.size() && batch.get(end).bound >= threshold)
+                end++;
+
+            if (end == 0)
+                break;
+
+            boolean pruned = end < batch.size();
+
+            batch = batch.subList(0, end);
+            count(batch, offsets, termCaches);
+
+            for (Candidate c : batch)
+            {
+                if (!c.live || c.count < mincount)
+                    continue;
+
+                if (best.size() < need)
+                {
+                    best.add(c);
+                }
+                else if (byCount.compare(c, best.peek()) < 0)
+                {
+                    best.poll();
+                    best.add(c);
+                }
+            }
+
+            if (pruned)
+                break;
+        }
+
+        List<Candidate> counted = new ArrayList<Candidate>(best);
+        Collections.sort(counted, byCount);
+
+        return counted.subList(Math.min(offset, counted.size()), counted.size());
+    }
+
+    private List<Candidate> countByIndex(List<Candidate> candidates, int[] offsets, TermCache[] termCaches,
+            int offset, int limit, int mincount) throws IOException
+    {
+        List<Candidate> counted = new ArrayList<Candidate>();
+
+        int skip = offset;
+        int remaining = limit < 0 ? Integer.MAX_VALUE : limit;
+
+        for (int from = 0; from < candidates.size() && remaining > 0; from += batchSize)
+        {
+            List<Candidate> batch = new ArrayList<Candidate>(batchSize);
+            for (Candidate c : candidates.subList(from, Math.min(candidates.size(), from + batchSize)))
+                if (!prune || c.bound >= mincount)
+                    batch.add(c);
+
+            count(batch, offsets, termCaches);
+
+            for (Candidate c : batch)
+            {
+                if (!c.live || c.count < mincount)
+                    continue;
+
+                if (skip > 0)
+                {
+                    skip--;
+                    continue;
+                }
+
+                counted.add(c);
+
+                if (--remaining == 0)
+                    break;
+            }
+        }
+
+        return counted;
+    }
+
+    // loads the batch's postings in each leaf and counts the matching docs
+    private void count(List<Candidate> batch, int[] offsets, TermCache[] termCaches) throws IOException
+    {
+        for (int i = 0; i < termCaches.length; i++)
+        {
+            List<Term> terms = new ArrayList<Term>(batch.size());
+            for (Candidate c : batch)
+                if (c.leaves[i])
+                    terms.add(c.term);
+
+            if (terms.isEmpty())
+                continue;
+
+            // read once and dropped, not left in the reader's cache
+            Map<Term, LucandraTermInfo[]> read = termCaches[i].readTerms(terms);
+            loaded += read.size();
+
+            for (Candidate c : batch)
+            {
+                if (!c.leaves[i])
+                    continue;
+
+                LucandraTermInfo[] postings = read.get(c.term);
+
+                if (postings == null)
+                    postings = termCaches[i].get(c.term);
+
+                if (postings == null)
+                    continue;
+
+                c.live = true;
+
+                for (LucandraTermInfo posting : postings)
+                    if (base.exists(offsets[i] + posting.docId))
+                        c.count++;
+            }
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.request;
+
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+
+/**
+ * Lives in this package to reach the searcher a request holds
+ */
+public class SolandraRequests
+{
+    /**
+     * Makes the request, and the response writer after it, use the given
+     * searcher. The request releases it when it closes.
+     *
+     * @return false if the request can't take another searcher
+     */
+    public static boolean setSearcher(SolrQueryRequest req, RefCounted<SolrIndexSearcher> searcher)
+    {
+        if (!(req instanceof SolrQueryRequestBase))
+            return false;
+
+        SolrQueryRequestBase base = (SolrQueryRequestBase) req;
+
+        if (base.searcherHolder != null)
+            base.searcherHolder.decref();
+
+        base.searcherHolder = searcher;
+
+        return true;
+    }
+}
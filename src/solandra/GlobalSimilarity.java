@@ -0,0 +1,146 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package solandra;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import lucandra.GlobalStatistics;
+import lucandra.IndexReader;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Searcher;
+import org.apache.lucene.search.Similarity;
+import org.apache.lucene.search.SimilarityDelegator;
+import org.apache.lucene.search.Explanation.IDFExplanation;
+import org.apache.solr.search.SolrIndexReader;
+
+/**
+ * Scores with the docFreq and doc count of the whole index rather than of
+ * the sub-index being searched, so hits from different sub-indexes rank
+ * alike. Everything else is left to the schema's similarity.
+ */
+public class GlobalSimilarity extends SimilarityDelegator
+{
+    private static final long serialVersionUID = 1L;
+
+    // an index with a sub-index written before the counts were kept scores
+    // each sub-index on its own, see GlobalStatistics.numDocs
+    public static final boolean enabled = Boolean.valueOf(System.getProperty("solandra.idf.global", "true"));
+
+    public GlobalSimilarity(Similarity delegee)
+    {
+        super(delegee);
+    }
+
+    @Override
+    public IDFExplanation idfExplain(Term term, Searcher searcher) throws IOException
+    {
+        List<Term> terms = new ArrayList<Term>(1);
+        terms.add(term);
+
+        return idfExplain(terms, searcher);
+    }
+
+    // raw as lucene 2.9 declares it
+    @Override
+    @SuppressWarnings("rawtypes")
+    public IDFExplanation idfExplain(Collection terms, Searcher searcher) throws IOException
+    {
+        String indexName = getIndexName(searcher);
+
+        if (indexName == null)
+            return super.idfExplain(terms, searcher);
+
+        // some sub-index wasn't counted from its first doc, score as before
+        long numDocs = GlobalStatistics.numDocs(indexName);
+
+        if (numDocs <= 0)
+            return super.idfExplain(terms, searcher);
+
+        final int max = (int) Math.min(numDocs, Integer.MAX_VALUE);
+
+        List<Term> termList = new ArrayList<Term>(terms.size());
+        for (Object term : terms)
+            termList.add((Term) term);
+
+        int[] docFreqs = GlobalStatistics.docFreqs(indexName, termList);
+
+        float idf = 0.0f;
+        final StringBuilder exp = new StringBuilder();
+
+        for (int i = 0; i < docFreqs.length; i++)
+        {
+            // a term the stored counts don't know yet still counts here
+            int df = Math.min(max, Math.max(docFreqs[i], searcher.docFreq(termList.get(i))));
+
+            idf += idf(df, max);
+
+            exp.append(" ").append(termList.get(i).text()).append("=").append(df);
+        }
+
+        final float fIdf = idf;
+
+        return new IDFExplanation() {
+            public float getIdf()
+            {
+                return fIdf;
+            }
+
+            public String explain()
+            {
+                return exp.toString().trim() + " global numDocs=" + max;
+            }
+        };
+    }
+
+    // the index the searcher's sub-indexes belong to, or null if not a lucandra one
+    private static String getIndexName(Searcher searcher)
+    {
+        if (!(searcher instanceof IndexSearcher))
+            return null;
+
+        org.apache.lucene.index.IndexReader reader = ((IndexSearcher) searcher).getIndexReader();
+
+        if (reader instanceof SolrIndexReader)
+        {
+            SolrIndexReader[] leaves = ((SolrIndexReader) reader).getLeafReaders();
+            reader = leaves.length == 0 ? null : leaves[0].getWrappedReader();
+        }
+
+        if (!(reader instanceof IndexReader))
+            return null;
+
+        return getIndexName(((IndexReader) reader).getIndexName());
+    }
+
+    /**
+     * @return the index a sub-index belongs to, or null if not a sub-index name
+     */
+    public static String getIndexName(String subIndex)
+    {
+        int split = subIndex.lastIndexOf('~');
+
+        return split < 0 ? null : subIndex.substring(0, split);
+    }
+}
@@ -0,0 +1,294 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package solandra;
+
+import java.net.InetAddress;
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.MapMaker;
+
+import org.apache.cassandra.gms.FailureDetector;
+import org.apache.cassandra.utils.FBUtilities;
+import org.apache.log4j.Logger;
+
+/**
+ * Picks which replica of a sub-index a shard request goes to, much like
+ * Cassandra's dynamic snitch. Each endpoint keeps a score of its shard
+ * response times that decays with age; a request that fails counts as a slow
+ * response. One of the replicas scoring close to the best is picked at random
+ * so healthy nodes share the load, and every so often any replica is probed
+ * so a node that was slow can earn its share back.
+ *
+ * With solandra.replica.affinity set each sub-index instead always goes to the
+ * same replica, picked by rendezvous hashing over the live ones, so only one
+ * node builds and warms its caches. When that node is down or failing its
+ * requests move to the next one in the ranking.
+ */
+public class ReplicaSelector
+{
+    private static final Logger                     logger        = Logger.getLogger(ReplicaSelector.class);
+
+    // weight of a new sample
+    private static final double                     alpha         = 0.25;
+
+    // scores halve when an endpoint isn't heard from for this long
+    private static final long                       halfLife      = Long.valueOf(System.getProperty(
+                                                                          "solandra.replica.halflife.ms", "10000"));
+
+    // how much worse than the best a replica may score and still be picked
+    private static final double                     badness       = Double.valueOf(System.getProperty(
+                                                                          "solandra.replica.badness", "0.1"));
+
+    private static final double                     probeRate     = Double.valueOf(System.getProperty(
+                                                                          "solandra.replica.probe.rate", "0.05"));
+
+    private static final long                       errorPenalty  = Long.valueOf(System.getProperty(
+                                                                          "solandra.replica.error.ms", "2000"));
+
+    // not final so tests can try both
+    public static boolean                           affinity      = Boolean.valueOf(System.getProperty(
+                                                                          "solandra.replica.affinity", "false"));
+
+    private static final ConcurrentMap<String, Score> scores      = new MapMaker().makeMap();
+    private static final AtomicLong                 preferred     = new AtomicLong();
+    private static final AtomicLong                 fallbacks     = new AtomicLong();
+    private static final Random                     random        = new Random();
+
+    // endpoints this thread's request picked that haven't answered yet
+    private static final ThreadLocal<Set<String>>   awaiting      = new ThreadLocal<Set<String>>() {
+                                                                      protected Set<String> initialValue()
+                                                                      {
+                                                                          return new HashSet<String>();
+                                                                      }
+                                                                  };
+
+    private static class Score
+    {
+        private double latency = 0; // ms
+        private long   updated = System.currentTimeMillis();
+
+        public synchronized void add(double sample)
+        {
+            long now = System.currentTimeMillis();
+
+            latency = get(now) * (1 - alpha) + sample * alpha;
+            updated = now;
+        }
+
+        public synchronized double get(long now)
+        {
+            return latency * Math.pow(0.5, (now - updated) / (double) halfLife);
+        }
+    }
+
+    /**
+     * @return the replica to send the next request for a sub-index to
+     */
+    public static InetAddress select(String subIndex, List<InetAddress> addrs)
+    {
+        InetAddress picked = affinity ? selectPreferred(subIndex, addrs) : selectFastest(addrs);
+
+        awaiting.get().add(picked.getHostAddress());
+
+        return picked;
+    }
+
+    private static InetAddress selectFastest(List<InetAddress> addrs)
+    {
+        InetAddress picked;
+
+        if (addrs.size() == 1 || random.nextDouble() < probeRate)
+        {
+            picked = addrs.get(random.nextInt(addrs.size()));
+        }
+        else
+        {
+            long now = System.currentTimeMillis();
+            double[] latencies = new double[addrs.size()];
+            double best = Double.MAX_VALUE;
+
+            for (int i = 0; i < addrs.size(); i++)
+            {
+                Score score = scores.get(addrs.get(i).getHostAddress());
+
+                latencies[i] = score == null ? 0 : score.get(now);
+                best = Math.min(best, latencies[i]);
+            }
+
+            // allow a millisecond so idle nodes aren't told apart by noise
+            List<InetAddress> candidates = new ArrayList<InetAddress>(addrs.size());
+            for (int i = 0; i < addrs.size(); i++)
+            {
+                if (latencies[i] <= best * (1 + badness) + 1)
+                    candidates.add(addrs.get(i));
+            }
+
+            picked = candidates.get(random.nextInt(candidates.size()));
+        }
+
+        return picked;
+    }
+
+    // the live replica ranking highest for this sub-index
+    private static InetAddress selectPreferred(String subIndex, List<InetAddress> addrs)
+    {
+        long now = System.currentTimeMillis();
+        InetAddress local = FBUtilities.getLocalAddress();
+
+        InetAddress first = null;
+        InetAddress picked = null;
+        long firstWeight = Long.MIN_VALUE;
+        long pickedWeight = Long.MIN_VALUE;
+
+        for (InetAddress addr : addrs)
+        {
+            long weight = weight(subIndex, addr);
+
+            if (weight > firstWeight)
+            {
+                first = addr;
+                firstWeight = weight;
+            }
+
+            if (!addr.equals(local) && !FailureDetector.instance.isAlive(addr))
+                continue;
+
+            // still answering with errors, gossip may not have noticed yet
+            Score score = scores.get(addr.getHostAddress());
+            if (score != null && score.get(now) >= errorPenalty)
+                continue;
+
+            if (weight > pickedWeight)
+            {
+                picked = addr;
+                pickedWeight = weight;
+            }
+        }
+
+        if (picked == null)
+            picked = first;
+
+        if (picked == first)
+        {
+            preferred.incrementAndGet();
+        }
+        else
+        {
+            fallbacks.incrementAndGet();
+
+            if (logger.isDebugEnabled())
+                logger.debug(subIndex + " falling back from " + first + " to " + picked);
+        }
+
+        return picked;
+    }
+
+    private static long weight(String subIndex, InetAddress addr)
+    {
+        long h = (subIndex.hashCode() * 31L) ^ Arrays.hashCode(addr.getAddress());
+
+        // mix the bits so nearby names and addresses don't rank alike
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+
+        return h;
+    }
+
+    /**
+     * @return the number of sub-index requests sent to their preferred
+     *         replica, and to another one because it was down
+     */
+    public static long[] getAffinityCounts()
+    {
+        return new long[] { preferred.get(), fallbacks.get() };
+    }
+
+    /**
+     * Records a shard response
+     *
+     * @param shard the shard address the request went to
+     * @param elapsed ms the request took
+     * @param failed true if the request failed
+     */
+    public static void received(String shard, long elapsed, boolean failed)
+    {
+        String host = getHost(shard);
+
+        awaiting.get().remove(host);
+
+        getScore(host).add(failed ? Math.max(elapsed, errorPenalty) : elapsed);
+    }
+
+    /**
+     * Charges the endpoints this thread's request is still waiting on with
+     * an error, a failed shard request aborts the rest so they never report.
+     */
+    public static void settle()
+    {
+        Set<String> hosts = awaiting.get();
+
+        if (hosts.isEmpty())
+            return;
+
+        for (String host : hosts)
+        {
+            if (logger.isDebugEnabled())
+                logger.debug("No response from " + host);
+
+            getScore(host).add(errorPenalty);
+        }
+
+        hosts.clear();
+    }
+
+    private static Score getScore(String host)
+    {
+        Score score = scores.get(host);
+
+        if (score == null)
+        {
+            score = new Score();
+            Score current = scores.putIfAbsent(host, score);
+
+            if (current != null)
+                score = current;
+        }
+
+        return score;
+    }
+
+    // shards look like [http://]host:port/solandra/index~n
+    private static String getHost(String shard)
+    {
+        if (shard.startsWith("http://"))
+            shard = shard.substring("http://".length());
+
+        int end = shard.indexOf(':');
+        if (end < 0)
+            end = shard.indexOf('/');
+
+        return end < 0 ? shard : shard.substring(0, end);
+    }
+}
@@ -23,15 +23,19 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import lucandra.CassandraUtils;
+import lucandra.GlobalStatistics;
 import lucandra.IndexReader;
 import lucandra.cluster.CassandraIndexManager;
 import lucandra.cluster.IndexManagerService;
 
 import com.google.common.collect.MapMaker;
 
+import org.apache.cassandra.concurrent.NamedThreadFactory;
 import org.apache.cassandra.config.DatabaseDescriptor;
 import org.apache.cassandra.db.Row;
 import org.apache.cassandra.db.Table;
@@ -40,29 +44,55 @@ import org.apache.cassandra.dht.Token;
 import org.apache.cassandra.service.StorageService;
 import org.apache.cassandra.thrift.ConsistencyLevel;
 import org.apache.cassandra.utils.ByteBufferUtil;
+import org.apache.cassandra.utils.FBUtilities;
 import org.apache.log4j.Logger;
 import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.util.NumericUtils;
+import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+import org.apache.solr.client.solrj.SolrResponse;
 import org.apache.solr.handler.component.ResponseBuilder;
 import org.apache.solr.handler.component.SearchComponent;
+import org.apache.solr.handler.component.ShardRequest;
+import org.apache.solr.handler.component.ShardResponse;
 import org.apache.solr.highlight.SolrHighlighter;
+import org.apache.solr.request.SolandraRequests;
+import org.apache.solr.schema.FieldType;
 import org.apache.solr.schema.SchemaField;
+import org.apache.solr.schema.TrieField;
 import org.apache.solr.search.DocIterator;
 import org.apache.solr.search.DocList;
+import org.apache.solr.search.QParser;
 import org.apache.solr.search.SolrIndexReader;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
 
 public class SolandraComponent extends SearchComponent
 {
     private static AtomicBoolean hasSolandraSchema = new AtomicBoolean(false);
     private static final Logger logger = Logger.getLogger(SolandraComponent.class);
-    private final Random        random;
     private final static Map<String,Long> cacheCheck = new MapMaker().makeMap();
+    private final static Map<String,String> cacheMarker = new MapMaker().makeMap();
+    
+    // how often shard requests find what they need already cached
+    private final static AtomicLong termCacheHits = new AtomicLong();
+    private final static AtomicLong termCacheMisses = new AtomicLong();
+    private final static AtomicLong docCacheHits = new AtomicLong();
+    private final static AtomicLong docCacheMisses = new AtomicLong();
+    
+    // search every sub-index in this jvm when this node holds them all, not
+    // final so tests can compare both paths
+    static boolean inlineSearch = Boolean.valueOf(System.getProperty("solandra.search.inline", "false"));
+    private final static ExecutorService subIndexPool = Executors.newFixedThreadPool(Integer.valueOf(System.getProperty(
+            "solandra.search.threads", "16")), new NamedThreadFactory("SubIndexSearch"));
     
-    public SolandraComponent()
-    {
-        random = new Random(System.currentTimeMillis());
-    }
-
     public String getDescription()
     {
         return "Reopens Lucandra readers";
@@ -83,6 +113,35 @@ public class SolandraComponent extends SearchComponent
         return "1.0";
     }
 
+    @Override
+    public NamedList<Object> getStatistics()
+    {
+        NamedList<Object> stats = new SimpleOrderedMap<Object>();
+        
+        long[] affinity = ReplicaSelector.getAffinityCounts();
+        
+        stats.add("replicaAffinity", ReplicaSelector.affinity);
+        stats.add("preferredReplica", affinity[0]);
+        stats.add("fallbackReplica", affinity[1]);
+        addHitRatio(stats, "termCache", termCacheHits.get(), termCacheMisses.get());
+        addHitRatio(stats, "docCache", docCacheHits.get(), docCacheMisses.get());
+        
+        return stats;
+    }
+    
+    private static void addHitRatio(NamedList<Object> stats, String name, long hits, long misses)
+    {
+        stats.add(name + "Hits", hits);
+        stats.add(name + "Misses", misses);
+        stats.add(name + "HitRatio", hits + misses == 0 ? 0.0f : (float) hits / (hits + misses));
+    }
+
+    // Makes the next request for this index re-read the cache marker
+    public static void expireCacheCheck(String indexName)
+    {
+        cacheCheck.remove(indexName);
+    }
+    
     private boolean flushCache(String indexName) throws IOException
     {   
         //if(CassandraUtils.cacheInvalidationInterval == 0)
@@ -101,12 +160,20 @@ public class SolandraComponent extends SearchComponent
             
             SolandraComponent.cacheCheck.put(indexName, System.currentTimeMillis());
             
+            // Compare the marker to the last one we saw rather than to the
+            // wall clock, any change means a commit happened since
+            String marker = null;
+            if(rows != null && !rows.isEmpty() && rows.get(0).cf != null)
+                marker = ByteBufferUtil.string(rows.get(0).cf.getColumn(CassandraUtils.cachedColBytes).getSubColumn(CassandraUtils.cachedColBytes).value());
+            
+            String lastMarker = marker == null ? null : SolandraComponent.cacheMarker.put(indexName, marker);
             
-            if(lastCheck == null || rows == null || rows.isEmpty() || rows.get(0).cf == null ||             
-                    rows.get(0).cf.getColumn(CassandraUtils.cachedColBytes).getSubColumn(CassandraUtils.cachedColBytes).timestamp() >= lastCheck)
+            if(lastCheck == null || marker == null || !marker.equals(lastMarker))
             {
+                long generation = IndexReader.nextGeneration(indexName);
+                
                 if(logger.isDebugEnabled())
-                    logger.debug("Flushed cache: "+indexName);
+                    logger.debug("Flushed cache: "+indexName+" now at generation "+generation);
                 
                 return true;
             }
@@ -144,9 +211,17 @@ public class SolandraComponent extends SearchComponent
 
             reader.setIndexName(indexName);
             
-            if(flushCache(indexName))
+            boolean flushed = flushCache(indexName);
+            
+            SolrIndexSearcher searcher = setSearcher(rb, indexName, Collections.singletonList(indexName));
+            
+            if(searcher != null)
+                reader = (IndexReader) searcher.getReader().getWrappedReader();
+            else if(flushed)
                 reader.reopen();
             
+            prefetchTerms(rb, reader);
+            
             return;
         }
 
@@ -177,40 +252,329 @@ public class SolandraComponent extends SearchComponent
                 String subIndex = indexName+"~0";
                 reader.setIndexName(subIndex);
                 
-                if(flushCache(subIndex))
-                {
-                    reader.reopen();                
-                }
+                boolean flushed = flushCache(subIndex);
+                
+                SolrIndexSearcher searcher = setSearcher(rb, subIndex, Collections.singletonList(subIndex));
+                
+                if(searcher != null)
+                    reader = (IndexReader) searcher.getReader().getWrappedReader();
+                else if(flushed)
+                    reader.reopen();
+                
+                prefetchTerms(rb, reader);
+                
                 return;
             }
             
-            // assign shards
-            String[] shards = new String[numShards + 1];
+            // a query for one routing value only needs the shards it went to
+            int firstShard = 0;
+            int shardStep = 1;
+
+            String route = getRoute(rb, indexName);
 
-            for (int i = 0; i <= numShards; i++)
+            if (route != null)
+            {
+                firstShard = IndexManagerService.instance.getRoutedShard(indexName, route);
+                shardStep = IndexManagerService.instance.getRoutingShards(indexName);
+            }
+
+            List<Integer> subIndexes = new ArrayList<Integer>();
+            List<List<InetAddress>> replicas = new ArrayList<List<InetAddress>>();
+
+            for (int i = firstShard; i == firstShard || i <= numShards; i += shardStep)
             {
                 ByteBuffer subIndex = CassandraUtils.hashBytes((indexName + "~" + i).getBytes());
                 Token<?> t = StorageService.getPartitioner().getToken(subIndex);
                 List<InetAddress> addrs = Table.open(CassandraUtils.keySpace).getReplicationStrategy().getNaturalEndpoints(t);
 
-                // pick a replica at random
                 if (addrs.isEmpty())
                     throw new IOException("can't locate index");
 
-                InetAddress addr = addrs.get(random.nextInt(addrs.size()));
+                subIndexes.add(i);
+                replicas.add(addrs);
+            }
+
+            String lanes = subIndexes.size() == 1 ? String.valueOf(firstShard) : shardStep == 1 ? "*" : firstShard
+                    + "/" + shardStep;
+
+            // a debug request shows which sub-indexes it went to
+            if (rb.isDebug() && rb.rsp.getResponseHeader() != null)
+                rb.rsp.getResponseHeader().add("subIndexes", subIndexes);
+
+            if (inlineSearch && searchInline(rb, indexName, lanes, subIndexes, replicas))
+                return;
+
+            // assign shards
+            List<String> shards = new ArrayList<String>();
+
+            for (int j = 0; j < subIndexes.size(); j++)
+            {
+                int i = subIndexes.get(j);
+                InetAddress addr = ReplicaSelector.select(indexName + "~" + i, replicas.get(j));
                 String shard = addr.getHostAddress() + ":8983/solandra/" + indexName + "~" + i;
 
                 if(logger.isDebugEnabled())
                     logger.debug("Adding shard(" + indexName + "): " + shard);
 
-                shards[i] = shard;
+                shards.add(shard);
             }
 
             // assign to shards
-            rb.shards = shards;
+            rb.shards = shards.toArray(new String[shards.size()]);
         }
     }
 
+    /**
+     * Searches all the sub-indexes as the segments of one reader when they
+     * all have a replica here, which skips the distributed query and fetch
+     * phases. The cache checks and postings reads of the sub-indexes run in
+     * parallel, then the query is scored over the one reader in this thread,
+     * there is no per sub-index search to merge. Scores match the distributed
+     * path as long as GlobalSimilarity is on.
+     * 
+     * @return false if the request has to be distributed
+     */
+    private boolean searchInline(final ResponseBuilder rb, String indexName, String lanes, List<Integer> subIndexes,
+            List<List<InetAddress>> replicas) throws IOException
+    {
+        InetAddress local = FBUtilities.getLocalAddress();
+
+        for (List<InetAddress> addrs : replicas)
+            if (!addrs.contains(local))
+                return false;
+
+        List<String> names = new ArrayList<String>(subIndexes.size());
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(subIndexes.size());
+
+        for (Integer i : subIndexes)
+        {
+            final String subIndex = indexName + "~" + i;
+            names.add(subIndex);
+
+            tasks.add(new Callable<Object>() {
+                public Object call() throws IOException
+                {
+                    flushCache(subIndex);
+
+                    return null;
+                }
+            });
+        }
+
+        runAll(tasks);
+
+        SolrIndexSearcher searcher = setSearcher(rb, indexName + "~" + lanes, names);
+
+        if (searcher == null)
+            return false;
+
+        if (logger.isDebugEnabled())
+            logger.debug("Searching " + subIndexes.size() + " sub-indexes of " + indexName + " inline");
+
+        tasks.clear();
+
+        for (SolrIndexReader leaf : searcher.getReader().getLeafReaders())
+        {
+            final IndexReader reader = (IndexReader) leaf.getWrappedReader();
+
+            tasks.add(new Callable<Object>() {
+                public Object call() throws IOException
+                {
+                    prefetchTerms(rb, reader);
+
+                    return null;
+                }
+            });
+        }
+
+        runAll(tasks);
+
+        return true;
+    }
+
+    /**
+     * Points the request at a searcher of these sub-indexes as of their
+     * current generation, so Solr's caches can be used
+     * 
+     * @return the searcher or null if the request can't take one
+     */
+    private SolrIndexSearcher setSearcher(ResponseBuilder rb, String name, List<String> subIndexes) throws IOException
+    {
+        RefCounted<SolrIndexSearcher> searcher = SolandraSearchers.get(rb.req.getCore(), name, subIndexes);
+
+        if (SolandraRequests.setSearcher(rb.req, searcher))
+            return searcher.get();
+
+        searcher.decref();
+
+        return null;
+    }
+
+    private static void runAll(List<Callable<Object>> tasks) throws IOException
+    {
+        try
+        {
+            for (Future<Object> result : subIndexPool.invokeAll(tasks))
+                result.get();
+        }
+        catch (InterruptedException e)
+        {
+            throw new IOException(e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+
+            throw new IOException(e.getCause());
+        }
+    }
+
+    @Override
+    public void handleResponses(ResponseBuilder rb, ShardRequest sreq)
+    {
+        for (ShardResponse srsp : sreq.responses)
+        {
+            SolrResponse rsp = srsp.getSolrResponse();
+
+            ReplicaSelector.received(srsp.getShard(), rsp == null ? 0 : rsp.getElapsedTime(),
+                    srsp.getException() != null);
+        }
+    }
+
+    /**
+     * @return the routing value the query is limited to, from the route param
+     *         or a filter that is a single term or numeric value of the
+     *         routing field, as indexed, or null
+     */
+    private String getRoute(ResponseBuilder rb, String indexName)
+    {
+        String field = IndexManagerService.instance.getRoutingField(indexName);
+
+        if (field == null)
+            return null;
+
+        FieldType type = rb.req.getSchema().getFieldTypeNoEx(field);
+
+        String route = rb.req.getParams().get("route");
+
+        if (route != null)
+            return type == null ? route : type.toInternal(route);
+
+        String[] filters = rb.req.getParams().getParams(CommonParams.FQ);
+
+        // a tokenized value is hashed whole but queried by its tokens, a
+        // numeric one is queried by its full precision term
+        if (filters == null || type == null || (type.isTokenized() && !(type instanceof TrieField)))
+            return null;
+
+        for (String filter : filters)
+        {
+            Query query;
+            try
+            {
+                query = QParser.getParser(filter, null, rb.req).getQuery();
+            }
+            catch (ParseException e)
+            {
+                continue; // left for the query component to report
+            }
+
+            if (query instanceof NumericRangeQuery && ((NumericRangeQuery) query).getField().equals(field))
+            {
+                String numeric = getNumericTerm((NumericRangeQuery) query);
+
+                if (numeric != null)
+                    return numeric;
+            }
+
+            if (!(query instanceof TermQuery))
+                continue;
+
+            Term term = ((TermQuery) query).getTerm();
+
+            if (term.field().equals(field))
+                return term.text();
+        }
+
+        return null;
+    }
+
+    // the indexed term of a query for one numeric value, or null
+    private static String getNumericTerm(NumericRangeQuery query)
+    {
+        Number value = query.getMin();
+
+        if (value == null || !value.equals(query.getMax()) || !query.includesMin() || !query.includesMax())
+            return null;
+
+        if (value instanceof Integer)
+            return NumericUtils.intToPrefixCoded(value.intValue());
+
+        if (value instanceof Long)
+            return NumericUtils.longToPrefixCoded(value.longValue());
+
+        if (value instanceof Float)
+            return NumericUtils.intToPrefixCoded(NumericUtils.floatToSortableInt(value.floatValue()));
+
+        if (value instanceof Double)
+            return NumericUtils.longToPrefixCoded(NumericUtils.doubleToSortableLong(value.doubleValue()));
+
+        return null;
+    }
+
+    /**
+     * Loads the postings of every term in the query and its filters in one
+     * read so the scorers never have to go back to cassandra term by term
+     */
+    private void prefetchTerms(ResponseBuilder rb, IndexReader reader) throws IOException
+    {
+        List<Query> queries = new ArrayList<Query>();
+
+        if (rb.getQuery() != null)
+            queries.add(rb.getQuery());
+
+        if (rb.getFilters() != null)
+            queries.addAll(rb.getFilters());
+
+        Set<Term> terms = new HashSet<Term>();
+
+        for (Query query : queries)
+        {
+            try
+            {
+                Query rewritten = query.rewrite(reader);
+                while (rewritten != query)
+                {
+                    query = rewritten;
+                    rewritten = query.rewrite(reader);
+                }
+
+                query.extractTerms(terms);
+            }
+            catch (UnsupportedOperationException e)
+            {
+                // some queries can't list their terms, they will seek as usual
+            }
+        }
+
+        if (terms.isEmpty())
+            return;
+
+        // and their counts across the index, for GlobalSimilarity
+        String indexName = GlobalSimilarity.getIndexName(reader.getIndexName());
+        if (GlobalSimilarity.enabled && indexName != null)
+            GlobalStatistics.docFreqs(indexName, new ArrayList<Term>(terms));
+
+        int loaded = reader.getCache().termCache.loadTerms(terms);
+
+        termCacheHits.addAndGet(terms.size() - loaded);
+        termCacheMisses.addAndGet(loaded);
+
+        if (logger.isDebugEnabled())
+            logger.debug("Prefetched " + loaded + " of " + terms.size() + " query terms");
+    }
+
     public void process(ResponseBuilder rb) throws IOException
     {
         
@@ -228,6 +592,11 @@ public class SolandraComponent extends SearchComponent
 
         if (docIds.size() > 0)
         {
+            // the highlighter reads the term vector of each of these per doc
+            List<String> highlightFields = Collections.emptyList();
+            SolrHighlighter highligher = rb.req.getCore().getHighlighter();
+            if (highligher.isHighlightingEnabled(rb.req.getParams()))
+                highlightFields = Arrays.asList(highligher.getHighlightFields(rb.getQuery(), rb.req, null));
 
             List<ByteBuffer> fieldFilter = null;
             Set<String> returnFields = rb.rsp.getReturnFields();
@@ -242,13 +611,9 @@ public class SolandraComponent extends SearchComponent
                 }
 
                 // add highlight fields
-                SolrHighlighter highligher = rb.req.getCore().getHighlighter();
-                if (highligher.isHighlightingEnabled(rb.req.getParams()))
-                {
-                    for (String field : highligher.getHighlightFields(rb.getQuery(), rb.req, null))
-                        if (!returnFields.contains(field))
-                            fieldFilter.add(ByteBufferUtil.bytes(field));
-                }
+                for (String field : highlightFields)
+                    if (!returnFields.contains(field))
+                        fieldFilter.add(ByteBufferUtil.bytes(field));
                 // fetch unique key if one exists.
                 SchemaField keyField = rb.req.getSearcher().getSchema().getUniqueKeyField();
                 if (null != keyField)
@@ -256,10 +621,96 @@ public class SolandraComponent extends SearchComponent
                         fieldFilter.add(ByteBufferUtil.bytes(keyField.getName()));
             }
 
+            SolrIndexReader reader = rb.req.getSearcher().getReader();
+            SolrIndexReader[] leaves = reader.getLeafReaders();
+
+            if (!(reader.getWrappedReader() instanceof IndexReader) && leaves.length > 0
+                    && leaves[0].getWrappedReader() instanceof IndexReader)
+            {
+                loadInlineDocuments(reader, docIds, fieldFilter, highlightFields);
+                return;
+            }
+
+            if (reader.getWrappedReader() instanceof IndexReader)
+                countCached((IndexReader) reader.getWrappedReader(), docIds);
+
             FieldSelector selector = new SolandraFieldSelector(docIds, fieldFilter);
 
             //This will bulk load these docs
-            rb.req.getSearcher().getReader().document(docIds.get(0), selector);
+            reader.document(docIds.get(0), selector);
+
+            if (!highlightFields.isEmpty() && reader.getWrappedReader() instanceof IndexReader)
+                ((IndexReader) reader.getWrappedReader()).loadTermFreqVectors(docIds, highlightFields);
         }
     }
+
+    // bulk loads the docs and term vectors of each sub-index of an inline search in parallel
+    private void loadInlineDocuments(SolrIndexReader reader, List<Integer> docIds, final List<ByteBuffer> fieldFilter,
+            final List<String> highlightFields) throws IOException
+    {
+        SolrIndexReader[] leaves = reader.getLeafReaders();
+        int[] offsets = reader.getLeafOffsets();
+
+        Map<Integer, List<Integer>> leafDocs = new HashMap<Integer, List<Integer>>();
+
+        for (Integer docId : docIds)
+        {
+            int leaf = SolrIndexReader.readerIndex(docId, offsets);
+
+            List<Integer> docs = leafDocs.get(leaf);
+            if (docs == null)
+            {
+                docs = new ArrayList<Integer>();
+                leafDocs.put(leaf, docs);
+            }
+
+            docs.add(docId - offsets[leaf]);
+        }
+
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(leafDocs.size());
+
+        for (Map.Entry<Integer, List<Integer>> entry : leafDocs.entrySet())
+        {
+            final IndexReader leaf = (IndexReader) leaves[entry.getKey()].getWrappedReader();
+            final List<Integer> docs = entry.getValue();
+
+            countCached(leaf, docs);
+
+            tasks.add(new Callable<Object>() {
+                public Object call() throws IOException
+                {
+                    leaf.document(docs.get(0), new SolandraFieldSelector(docs, fieldFilter));
+
+                    return null;
+                }
+            });
+
+            if (highlightFields.isEmpty())
+                continue;
+
+            tasks.add(new Callable<Object>() {
+                public Object call() throws IOException
+                {
+                    leaf.loadTermFreqVectors(docs, highlightFields);
+
+                    return null;
+                }
+            });
+        }
+
+        runAll(tasks);
+    }
+
+    private void countCached(IndexReader reader, List<Integer> docIds)
+    {
+        Map<Integer, org.apache.lucene.document.Document> documents = reader.getCache().documents;
+
+        int cached = 0;
+        for (Integer docId : docIds)
+            if (documents.containsKey(docId))
+                cached++;
+
+        docCacheHits.addAndGet(cached);
+        docCacheMisses.addAndGet(docIds.size() - cached);
+    }
 }
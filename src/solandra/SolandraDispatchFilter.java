@@ -31,6 +31,9 @@ import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import lucandra.cluster.CassandraIndexManager;
+import lucandra.cluster.IndexManagerService;
+
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.util.NamedList;
 import org.apache.solr.common.util.SimpleOrderedMap;
@@ -120,6 +123,24 @@ public class SolandraDispatchFilter extends SolrDispatchFilter
                         xml += line + "\n";
                     }
 
+                    // Shard size, id order and routing can only be chosen
+                    // before the index has docs
+                    String shardSize = req.getParameter("shardSize");
+                    if (shardSize != null)
+                        IndexManagerService.instance.setShardSize(indexName, Integer.valueOf(shardSize));
+
+                    if (Boolean.valueOf(req.getParameter("timeOrdered")))
+                        IndexManagerService.instance.setTimeOrdered(indexName);
+
+                    String routingField = req.getParameter("routingField");
+                    if (routingField != null)
+                    {
+                        String routingShards = req.getParameter("routingShards");
+
+                        IndexManagerService.instance.setRouting(indexName, routingField, routingShards == null
+                                ? CassandraIndexManager.defaultRoutingShards : Integer.valueOf(routingShards));
+                    }
+
                     SolandraCoreContainer.writeSchema(indexName, xml);
 
                 }
@@ -127,13 +148,24 @@ public class SolandraDispatchFilter extends SolrDispatchFilter
                 {
                     resp.sendError(500);
                 }
+                catch (RuntimeException e)
+                {
+                    resp.sendError(400, e.getMessage());
+                }
                 return;
             }
         }
 
         SolandraCoreContainer.activeRequest.set(req);
         
-        super.doFilter(request, response, chain);
+        try
+        {
+            super.doFilter(request, response, chain);
+        }
+        finally
+        {
+            ReplicaSelector.settle();
+        }
     }
 
    
@@ -0,0 +1,51 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package solandra;
+
+import java.io.IOException;
+
+import org.apache.solr.handler.component.FacetComponent;
+import org.apache.solr.handler.component.ResponseBuilder;
+import org.apache.solr.request.SimpleFacets;
+import org.apache.solr.request.SolandraFacets;
+
+/**
+ * FacetComponent counting field facets with SolandraFacets, distributed
+ * requests are merged as before
+ */
+public class SolandraFacetComponent extends FacetComponent
+{
+    @Override
+    public void process(ResponseBuilder rb) throws IOException
+    {
+        if (rb.doFacets)
+        {
+            SimpleFacets facets = new SolandraFacets(rb.req, rb.getResults().docSet, rb.req.getParams(), rb);
+
+            rb.rsp.add("facet_counts", facets.getFacetCounts());
+        }
+    }
+
+    @Override
+    public String getDescription()
+    {
+        return "Solandra facets over term postings";
+    }
+}
@@ -0,0 +1,194 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package solandra;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import lucandra.IndexReader;
+import lucandra.cluster.CassandraIndexManager;
+import lucandra.cluster.IndexManagerService;
+
+import org.apache.cassandra.utils.Pair;
+import org.apache.log4j.Logger;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Fieldable;
+import org.apache.solr.common.SolrDocument;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.util.StrUtils;
+import org.apache.solr.core.SolandraCoreContainer;
+import org.apache.solr.core.SolandraCoreInfo;
+import org.apache.solr.handler.RequestHandlerBase;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrQueryResponse;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+
+/**
+ * Fetches docs by unique key without searching: the keys are looked up in
+ * one multiget and the docs they point to read in another, whichever
+ * sub-index they are in. Keys are read at QUORUM and docs at
+ * lucandra.write.consistency, as they are written.
+ *
+ * Takes the keys as id params and/or a comma separated ids param. A single
+ * id comes back as "doc", anything else as a "response" doc list.
+ */
+public class SolandraGetHandler extends RequestHandlerBase
+{
+    private static final Logger logger = Logger.getLogger(SolandraGetHandler.class);
+
+    @Override
+    public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception
+    {
+        SolrParams params = req.getParams();
+        IndexSchema schema = req.getSchema();
+        SchemaField keyField = schema.getUniqueKeyField();
+        SolandraCoreInfo coreInfo = SolandraCoreContainer.coreInfo.get();
+
+        if (coreInfo == null)
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Missing core name");
+
+        if (keyField == null)
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Schema has no unique key");
+
+        List<String> keys = new ArrayList<String>();
+
+        String[] id = params.getParams("id");
+        if (id != null)
+        {
+            for (String key : id)
+                keys.add(key);
+        }
+
+        String[] ids = params.getParams("ids");
+        if (ids != null)
+        {
+            for (String list : ids)
+                keys.addAll(StrUtils.splitSmart(list, ",", true));
+        }
+
+        long start = System.currentTimeMillis();
+
+        List<String> indexedKeys = new ArrayList<String>(keys.size());
+        for (String key : keys)
+            indexedKeys.add(keyField.getType().toInternal(key));
+
+        Long[] docIds = IndexManagerService.instance.getIds(coreInfo.indexName, indexedKeys);
+
+        List<Pair<String, Integer>> docs = new ArrayList<Pair<String, Integer>>(keys.size());
+        for (Long docId : docIds)
+        {
+            if (docId != null)
+                docs.add(new Pair<String, Integer>(coreInfo.indexName + "~"
+                        + CassandraIndexManager.getShardFromDocId(docId), CassandraIndexManager
+                        .getShardedDocId(docId)));
+        }
+
+        Document[] found = IndexReader.readDocuments(docs, getFieldNames(params));
+
+        SolrDocumentList list = new SolrDocumentList();
+        for (Document doc : found)
+        {
+            if (doc != null)
+                list.add(toSolrDocument(doc, schema));
+        }
+
+        if (logger.isDebugEnabled())
+            logger.debug("Got " + list.size() + " of " + keys.size() + " keys from " + coreInfo.indexName + " in "
+                    + (System.currentTimeMillis() - start) + "ms");
+
+        if (id != null && id.length == 1 && ids == null)
+        {
+            rsp.add("doc", list.isEmpty() ? null : list.get(0));
+        }
+        else
+        {
+            list.setNumFound(list.size());
+            list.setStart(0);
+            rsp.add("response", list);
+        }
+    }
+
+    // the stored fields to read, or null for all of them
+    static List<ByteBuffer> getFieldNames(SolrParams params)
+    {
+        String fl = params.get(CommonParams.FL);
+
+        if (fl == null)
+            return null;
+
+        List<ByteBuffer> fieldNames = new ArrayList<ByteBuffer>();
+        for (String field : StrUtils.splitSmart(fl, ", ", true))
+        {
+            if (field.length() == 0)
+                continue;
+
+            if (field.equals("*"))
+                return null;
+
+            fieldNames.add(ByteBuffer.wrap(field.getBytes()));
+        }
+
+        return fieldNames.isEmpty() ? null : fieldNames;
+    }
+
+    static SolrDocument toSolrDocument(Document doc, IndexSchema schema)
+    {
+        SolrDocument out = new SolrDocument();
+
+        for (Object o : doc.getFields())
+        {
+            Fieldable f = (Fieldable) o;
+            SchemaField sf = schema.getFieldOrNull(f.name());
+
+            out.addField(f.name(), sf == null ? f.stringValue() : sf.getType().toObject(f));
+        }
+
+        return out;
+    }
+
+    @Override
+    public String getDescription()
+    {
+        return "Solandra get by unique key";
+    }
+
+    @Override
+    public String getSource()
+    {
+        return null;
+    }
+
+    @Override
+    public String getSourceId()
+    {
+        return null;
+    }
+
+    @Override
+    public String getVersion()
+    {
+        return "1.0";
+    }
+}
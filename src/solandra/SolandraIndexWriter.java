@@ -39,7 +39,6 @@ import org.apache.cassandra.db.RowMutation;
 import org.apache.cassandra.db.filter.QueryPath;
 import org.apache.cassandra.thrift.ConsistencyLevel;
 import org.apache.cassandra.utils.ByteBufferUtil;
-import org.apache.cassandra.utils.FBUtilities;
 import org.apache.log4j.Logger;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.search.MatchAllDocsQuery;
@@ -50,6 +49,7 @@ import org.apache.solr.common.util.SimpleOrderedMap;
 import org.apache.solr.core.SolandraCoreContainer;
 import org.apache.solr.core.SolandraCoreInfo;
 import org.apache.solr.core.SolrCore;
+import org.apache.solr.schema.FieldType;
 import org.apache.solr.schema.SchemaField;
 import org.apache.solr.search.QueryParsing;
 import org.apache.solr.update.*;
@@ -95,6 +95,7 @@ public class SolandraIndexWriter extends UpdateHandler
                 public void run()
                 {
                     Map<String, Long> lastCoreFlush = new HashMap<String, Long>();
+                    Set<String> pendingFlush = new HashSet<String>();
 
                     while (true)
                     {
@@ -105,16 +106,7 @@ public class SolandraIndexWriter extends UpdateHandler
 
                             if (core != null)
                             {
-
-                                Long lastFlush = lastCoreFlush.get(core);
-                                if (lastFlush == null
-                                        || lastFlush <= (System.currentTimeMillis() - CassandraUtils.cacheInvalidationInterval))
-                                {
-                                    flush(core);
-                                    lastCoreFlush.put(core, System.currentTimeMillis());
-                                    if (logger.isDebugEnabled())
-                                        logger.debug("Flushed cache: " + core);
-                                }
+                                pendingFlush.add(core);
                             }
                             else
                             {
@@ -128,6 +120,22 @@ public class SolandraIndexWriter extends UpdateHandler
                                     }
                                 }
                             }
+
+                            // Flushes too close to the last one wait for the
+                            // next pass rather than being dropped
+                            for (Iterator<String> it = pendingFlush.iterator(); it.hasNext();)
+                            {
+                                core = it.next();
+
+                                Long lastFlush = lastCoreFlush.get(core);
+                                if (lastFlush == null
+                                        || lastFlush <= (System.currentTimeMillis() - CassandraUtils.cacheInvalidationInterval))
+                                {
+                                    flush(core);
+                                    lastCoreFlush.put(core, System.currentTimeMillis());
+                                    it.remove();
+                                }
+                            }
                         }
                         catch (InterruptedException e)
                         {
@@ -141,13 +149,10 @@ public class SolandraIndexWriter extends UpdateHandler
                     // Make sure all writes are in for this core
                     writer.commit(core, false);
 
-                    ByteBuffer cacheKey = CassandraUtils.hashKeyBytes((core).getBytes(), CassandraUtils.delimeterBytes,
-                            "cache".getBytes());
+                    writeCacheMarker(core);
 
-                    RowMutation rm = new RowMutation(CassandraUtils.keySpace, cacheKey);
-                    rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, CassandraUtils.cachedColBytes,
-                            CassandraUtils.cachedColBytes), FBUtilities.EMPTY_BYTE_BUFFER, System.nanoTime());
-                    CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rm);
+                    if (logger.isDebugEnabled())
+                        logger.debug("Flushed cache: " + core);
                 }
 
             });
@@ -206,47 +211,177 @@ public class SolandraIndexWriter extends UpdateHandler
 
                 rms = new RowMutation[3];
 
-                docId = IndexManagerService.instance.getNextId(coreInfo.indexName, key, rms);
+                docId = IndexManagerService.instance.getNextId(coreInfo.indexName, key, getRoute(cmd,
+                        coreInfo.indexName), rms);
 
                 if (logger.isDebugEnabled())
                     logger.debug("new document " + docId);
             }
 
-            int shard = CassandraIndexManager.getShardFromDocId(docId);
-            int shardedId = CassandraIndexManager.getShardedDocId(docId);
-            String indexName = coreInfo.indexName + "~" + shard;
+            writeDoc(cmd, docId, isUpdate, rms);
+
+            rc = 1;
+        }
+        finally
+        {
+            if (rc != 1)
+            {
+                numErrors.incrementAndGet();
+                numErrorsCumulative.incrementAndGet();
+            }
+        }
+
+        return rc;
 
-            // logger.info("adding doc to"+indexName);
+    }
 
-            if (logger.isDebugEnabled())
-                logger.debug("Adding " + shardedId + " to " + indexName);
+    /**
+     * Adds a batch of documents, reserving the ids of all new documents in one
+     * pass.
+     */
+    public int addDocs(List<AddUpdateCommand> cmds) throws IOException
+    {
+        if (idField == null)
+            throw new IOException("Solandra requires a unique field");
 
-            Term idTerm = this.idTerm.createTerm(cmd.indexedId);
+        addCommands.addAndGet(cmds.size());
+        addCommandsCumulative.addAndGet(cmds.size());
+        int added = 0;
 
-            if (isUpdate)
-                writer.updateDocument(indexName, idTerm, cmd.getLuceneDocument(schema), schema.getAnalyzer(),
-                        shardedId, false);
-            else
-                writer.addDocument(indexName, cmd.getLuceneDocument(schema), schema.getAnalyzer(), shardedId, false,
-                        rms);
+        try
+        {
+            SolandraCoreInfo coreInfo = SolandraCoreContainer.coreInfo.get();
+            String batchMode = SolandraCoreContainer.activeRequest.get().getParameter("batch");
+            boolean checkKeys = !coreInfo.bulk && (batchMode == null || !batchMode.equals("true"));
 
-            rc = 1;
+            // look up every key that may be an update in one read
+            Map<String, Long> knownIds = new HashMap<String, Long>();
+            if (checkKeys)
+            {
+                List<String> keys = new ArrayList<String>(cmds.size());
+                for (AddUpdateCommand cmd : cmds)
+                {
+                    if (!cmd.allowDups)
+                        keys.add(cmd.getIndexedId(schema));
+                }
+
+                if (!keys.isEmpty())
+                {
+                    Long[] ids = IndexManagerService.instance.getIds(coreInfo.indexName, keys);
+                    for (int i = 0; i < ids.length; i++)
+                    {
+                        if (ids[i] != null)
+                            knownIds.put(keys.get(i), ids[i]);
+                    }
+                }
+            }
+
+            // the last add of a key wins
+            Map<String, AddUpdateCommand> newDocs = new LinkedHashMap<String, AddUpdateCommand>();
+
+            for (AddUpdateCommand cmd : cmds)
+            {
+                String key = cmd.getIndexedId(schema);
+
+                Long docId = null;
+                if (checkKeys && !cmd.allowDups && !newDocs.containsKey(key))
+                    docId = knownIds.get(key);
+
+                if (docId != null)
+                {
+                    writeDoc(cmd, docId, true, null);
+                    added++;
+                }
+                else
+                {
+                    if (newDocs.remove(key) != null)
+                        added++;
+
+                    newDocs.put(key, cmd);
+                }
+            }
+
+            if (newDocs.isEmpty())
+                return added;
+
+            String[] routes = null;
+            if (IndexManagerService.instance.getRoutingField(coreInfo.indexName) != null)
+            {
+                routes = new String[newDocs.size()];
+
+                int i = 0;
+                for (AddUpdateCommand cmd : newDocs.values())
+                    routes[i++] = getRoute(cmd, coreInfo.indexName);
+            }
 
-            // Notify readers
-            tryCommit(indexName);
+            Map<Integer, List<RowMutation>> rowMutations = new HashMap<Integer, List<RowMutation>>();
+            long[] docIds = IndexManagerService.instance.getNextIds(coreInfo.indexName, newDocs.keySet().toArray(
+                    new String[] {}), routes, rowMutations);
 
+            int i = 0;
+            for (AddUpdateCommand cmd : newDocs.values())
+            {
+                // the id mutations of a shard go out with its first document
+                List<RowMutation> rms = rowMutations.remove(CassandraIndexManager.getShardFromDocId(docIds[i]));
+
+                writeDoc(cmd, docIds[i++], false, rms == null ? null : rms.toArray(new RowMutation[] {}));
+                added++;
+            }
+
+            if (logger.isDebugEnabled())
+                logger.debug("Added batch of " + cmds.size() + " documents, " + newDocs.size() + " new");
         }
         finally
         {
-            if (rc != 1)
+            if (added != cmds.size())
             {
-                numErrors.incrementAndGet();
-                numErrorsCumulative.incrementAndGet();
+                numErrors.addAndGet(cmds.size() - added);
+                numErrorsCumulative.addAndGet(cmds.size() - added);
             }
         }
 
-        return rc;
+        return added;
+    }
+
+    // The doc's value of the index's routing field, if it has one
+    private String getRoute(AddUpdateCommand cmd, String indexName)
+    {
+        String field = IndexManagerService.instance.getRoutingField(indexName);
+
+        if (field == null)
+            return null;
 
+        Object value = cmd.solrDoc != null ? cmd.solrDoc.getFieldValue(field) : cmd.doc == null ? null : cmd.doc
+                .get(field);
+
+        if (value == null)
+            return null;
+
+        // hashed as indexed, the same as queries on the field are
+        FieldType type = schema.getFieldTypeNoEx(field);
+
+        return type == null ? value.toString() : type.toInternal(value.toString());
+    }
+
+    private void writeDoc(AddUpdateCommand cmd, long docId, boolean isUpdate, RowMutation[] rms) throws IOException
+    {
+        int shard = CassandraIndexManager.getShardFromDocId(docId);
+        int shardedId = CassandraIndexManager.getShardedDocId(docId);
+        String indexName = SolandraCoreContainer.coreInfo.get().indexName + "~" + shard;
+
+        if (logger.isDebugEnabled())
+            logger.debug("Adding " + shardedId + " to " + indexName);
+
+        Term idTerm = this.idTerm.createTerm(cmd.indexedId);
+
+        if (isUpdate)
+            writer.updateDocument(indexName, idTerm, cmd.getLuceneDocument(schema), schema.getAnalyzer(), shardedId,
+                    false);
+        else
+            writer.addDocument(indexName, cmd.getLuceneDocument(schema), schema.getAnalyzer(), shardedId, false, rms);
+
+        // Notify readers
+        tryCommit(indexName);
     }
 
     public void close() throws IOException
@@ -266,9 +401,22 @@ public class SolandraIndexWriter extends UpdateHandler
 
         for (int i = 0; i <= maxShard; i++)
         {
+            String subIndex = indexName + "~" + i;
+
             if (logger.isDebugEnabled())
-                logger.debug("committing " + indexName + "~" + i);
-            commit(indexName + "~" + i, true);
+                logger.debug("committing " + subIndex);
+
+            if (cmd.waitSearcher)
+            {
+                // Caller expects to see this commit, so invalidate now
+                writer.commit(subIndex, true);
+                writeCacheMarker(subIndex);
+                SolandraComponent.expireCacheCheck(subIndex);
+            }
+            else
+            {
+                commit(subIndex, true);
+            }
         }
     }
 
@@ -279,6 +427,21 @@ public class SolandraIndexWriter extends UpdateHandler
         SolandraIndexWriter.flushQueue.add(indexName);
     }
 
+    // Tells readers on all nodes to drop their caches for this index
+    private static void writeCacheMarker(String indexName)
+    {
+        ByteBuffer cacheKey = CassandraUtils.hashKeyBytes(indexName.getBytes(), CassandraUtils.delimeterBytes, "cache"
+                .getBytes());
+
+        // readers compare the value, each marker's is new
+        long timestamp = CassandraUtils.createTimestamp();
+
+        RowMutation rm = new RowMutation(CassandraUtils.keySpace, cacheKey);
+        rm.add(new QueryPath(CassandraUtils.schemaInfoColumnFamily, CassandraUtils.cachedColBytes,
+                CassandraUtils.cachedColBytes), ByteBuffer.wrap(String.valueOf(timestamp).getBytes()), timestamp);
+        CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rm);
+    }
+
     public void delete(DeleteUpdateCommand cmd) throws IOException
     {
         String indexName = SolandraCoreContainer.coreInfo.get().indexName;
@@ -324,27 +487,28 @@ public class SolandraIndexWriter extends UpdateHandler
                     ByteBuffer idCol = col.getSubColumns().iterator().next().name();
                     Long id = Long.valueOf(ByteBufferUtil.string(idCol));
                     int shard = CassandraIndexManager.getShardFromDocId(id);
-                    int sid = CassandraIndexManager.getShardedDocId(id);
-
-                    ByteBuffer sidName = ByteBuffer.wrap(String.valueOf(sid).getBytes());
 
                     String subIndex = indexName + "~" + shard;
 
-                    // Delete all terms/fields/etc
+                    // Delete all terms/fields/etc, written out before the id
+                    // is freed so a reuse of it can't be wiped by them later
                     writer.deleteDocuments(subIndex, term, false);
+                    writer.commit(subIndex, true);
 
                     // Delete key -> docId lookup
                     RowMutation rm = new RowMutation(CassandraUtils.keySpace, keyKey);
-                    rm.delete(new QueryPath(CassandraUtils.schemaInfoColumnFamily, keyCol), System.nanoTime());
+                    rm.delete(new QueryPath(CassandraUtils.schemaInfoColumnFamily, keyCol), CassandraUtils
+                            .createTimestamp());
 
-                    // Delete docId so it can be reused
-                    // TODO: update shard info with this docid
-                    ByteBuffer idKey = CassandraUtils.hashKeyBytes(subIndex.getBytes(), CassandraUtils.delimeterBytes,
-                            "ids".getBytes());
-                    RowMutation rm2 = new RowMutation(CassandraUtils.keySpace, idKey);
-                    rm2.delete(new QueryPath(CassandraUtils.schemaInfoColumnFamily, sidName), System.nanoTime());
+                    // Delete docId so it can be reused, time ordered indexes
+                    // only drop it
+                    RowMutation[] rms = IndexManagerService.instance.deleteId(indexName, id);
 
-                    CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, rm, rm2);
+                    RowMutation[] mutations = new RowMutation[rms.length + 1];
+                    mutations[0] = rm;
+                    System.arraycopy(rms, 0, mutations, 1, rms.length);
+
+                    CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, mutations);
 
                     // Notify readers
                     tryCommit(subIndex);
@@ -461,6 +625,10 @@ public class SolandraIndexWriter extends UpdateHandler
         lst.add("cumulative_deletesById", deleteByIdCommandsCumulative.get());
         lst.add("cumulative_deletesByQuery", deleteByQueryCommandsCumulative.get());
         lst.add("cumulative_errors", numErrorsCumulative.get());
+
+        for (Map.Entry<String, Long> stat : IndexManagerService.instance.getReserveStatistics().entrySet())
+            lst.add(stat.getKey(), stat.getValue());
+
         return lst;
     }
 
@@ -38,11 +38,16 @@ public class SolandraInitializer extends Initializer {
     @Override
     public CoreContainer initialize() throws IOException, ParserConfigurationException, SAXException {
                       
-        CoreContainer cores = new SolandraCoreContainer(solrConfigFilename == null ? SolrConfig.DEFAULT_CONF_FILE : solrConfigFilename);
+        SolandraCoreContainer cores = new SolandraCoreContainer(solrConfigFilename == null ? SolrConfig.DEFAULT_CONF_FILE : solrConfigFilename);
              
         //Startup cassandra
         CassandraUtils.startup();  
         
+        // load the cores used most recently in the background
+        int preload = Integer.valueOf(System.getProperty("solandra.cores.preload", "0"));
+        if (preload > 0)
+            cores.preload(preload, Integer.valueOf(System.getProperty("solandra.cores.preload.threads", "4")));
+        
         return cores;
     }
 }
@@ -0,0 +1,137 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package solandra;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import lucandra.IndexReader;
+import lucandra.RecentDocsCollector;
+import lucandra.cluster.CassandraIndexManager;
+import lucandra.cluster.IndexManagerService;
+
+import org.apache.cassandra.utils.Pair;
+import org.apache.log4j.Logger;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.solr.common.SolrDocumentList;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.core.SolandraCoreContainer;
+import org.apache.solr.core.SolandraCoreInfo;
+import org.apache.solr.handler.RequestHandlerBase;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrQueryResponse;
+import org.apache.solr.search.QParser;
+
+/**
+ * Returns the newest docs matching a single term of a time ordered index,
+ * see CassandraIndexManager.setTimeOrdered.
+ *
+ * The sub-indexes fill in sequence, so they are read from the last one back
+ * and each one's postings newest first, stopping once there are rows docs.
+ */
+public class SolandraRecentHandler extends RequestHandlerBase
+{
+    private static final Logger logger = Logger.getLogger(SolandraRecentHandler.class);
+
+    @Override
+    public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception
+    {
+        SolrParams params = req.getParams();
+        SolandraCoreInfo coreInfo = SolandraCoreContainer.coreInfo.get();
+
+        if (coreInfo == null)
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Missing core name");
+
+        if (!IndexManagerService.instance.isTimeOrdered(coreInfo.indexName))
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, coreInfo.indexName
+                    + " is not time ordered");
+
+        String q = params.get(CommonParams.Q);
+        Query query = q == null ? null : QParser.getParser(q, null, req).getQuery();
+
+        if (!(query instanceof TermQuery))
+            throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "Query must be a single term: " + q);
+
+        int rows = params.getInt(CommonParams.ROWS, 10);
+        long start = System.currentTimeMillis();
+
+        List<Pair<String, Integer>> docs = new ArrayList<Pair<String, Integer>>(rows);
+
+        int lastShard = CassandraIndexManager.getShardFromDocId(IndexManagerService.instance
+                .getMaxId(coreInfo.indexName));
+
+        for (int shard = lastShard; shard >= 0 && docs.size() < rows; shard--)
+        {
+            String subIndex = coreInfo.indexName + "~" + shard;
+
+            RecentDocsCollector collector = new RecentDocsCollector(rows - docs.size());
+            collector.collectTerm(new IndexReader(subIndex), ((TermQuery) query).getTerm());
+
+            for (ScoreDoc doc : collector.topDocs().scoreDocs)
+                docs.add(new Pair<String, Integer>(subIndex, doc.doc));
+        }
+
+        Document[] found = IndexReader.readDocuments(docs, SolandraGetHandler.getFieldNames(params));
+
+        SolrDocumentList list = new SolrDocumentList();
+        for (Document doc : found)
+        {
+            if (doc != null)
+                list.add(SolandraGetHandler.toSolrDocument(doc, req.getSchema()));
+        }
+
+        if (logger.isDebugEnabled())
+            logger.debug("Got " + list.size() + " recent docs for " + q + " from " + coreInfo.indexName + " in "
+                    + (System.currentTimeMillis() - start) + "ms");
+
+        list.setNumFound(list.size());
+        list.setStart(0);
+        rsp.add("response", list);
+    }
+
+    @Override
+    public String getDescription()
+    {
+        return "Solandra newest docs of a time ordered index";
+    }
+
+    @Override
+    public String getSource()
+    {
+        return null;
+    }
+
+    @Override
+    public String getSourceId()
+    {
+        return null;
+    }
+
+    @Override
+    public String getVersion()
+    {
+        return "1.0";
+    }
+}
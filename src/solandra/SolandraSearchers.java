@@ -0,0 +1,245 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package solandra;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import lucandra.IndexReader;
+
+import com.google.common.collect.MapMaker;
+
+import org.apache.log4j.Logger;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.store.Directory;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+
+/**
+ * Keeps a SolrIndexSearcher for each sub-index, or set of sub-indexes searched
+ * together, with its readers pinned to the sub-indexes' generations. Solr's
+ * caches stay valid for as long as the generations do. When one moves a new
+ * searcher is opened and autowarmed from the old one, which closes once the
+ * requests still using it are done. Each searcher carries a full set of Solr
+ * caches, so only the most recently used solandra.searchers.max are kept.
+ */
+public class SolandraSearchers
+{
+    private static final Logger             logger    = Logger.getLogger(SolandraSearchers.class);
+
+    private static final Map<String, Entry> searchers = new MapMaker().makeMap();
+
+    // one per name, kept for as long as its entry or a thread opening one holds it
+    private static final ConcurrentMap<String, Object> locks = new MapMaker().weakValues().makeMap();
+
+    static int                              maxSearchers = Integer.valueOf(System.getProperty(
+                                                                 "solandra.searchers.max", "256"));
+
+    private static class Entry
+    {
+        final SolrCore                      core;
+        final List<String>                  subIndexes;
+        final long[]                        generations;
+        final Object                        lock;
+        final RefCounted<SolrIndexSearcher> holder;
+        boolean                             retired = false;
+        volatile long                       lastUsed = System.currentTimeMillis();
+
+        Entry(SolrCore core, List<String> subIndexes, long[] generations, Object lock,
+                final SolrIndexSearcher searcher)
+        {
+            this.core = core;
+            this.lock = lock;
+            this.subIndexes = subIndexes;
+            this.generations = generations;
+
+            holder = new RefCounted<SolrIndexSearcher>(searcher) {
+                protected void close()
+                {
+                    try
+                    {
+                        searcher.close();
+                    }
+                    catch (IOException e)
+                    {
+                        logger.warn("Error closing " + searcher, e);
+                    }
+                }
+            };
+
+            // the map's reference
+            holder.incref();
+        }
+
+        synchronized RefCounted<SolrIndexSearcher> acquire()
+        {
+            lastUsed = System.currentTimeMillis();
+
+            return retired ? null : holder.incref();
+        }
+
+        synchronized void retire()
+        {
+            retired = true;
+            holder.decref();
+        }
+
+        boolean matches(SolrCore core, List<String> subIndexes, long[] generations)
+        {
+            return this.core == core && this.subIndexes.equals(subIndexes)
+                    && Arrays.equals(this.generations, generations);
+        }
+    }
+
+    /**
+     * @return a searcher of the sub-indexes as of their current generation,
+     *         the caller must decref it when done
+     */
+    public static RefCounted<SolrIndexSearcher> get(SolrCore core, String name, List<String> subIndexes)
+            throws IOException
+    {
+        long[] generations = new long[subIndexes.size()];
+        for (int i = 0; i < generations.length; i++)
+            generations[i] = IndexReader.getGeneration(subIndexes.get(i));
+
+        Entry entry = searchers.get(name);
+
+        if (entry != null && entry.matches(core, subIndexes, generations))
+        {
+            RefCounted<SolrIndexSearcher> searcher = entry.acquire();
+
+            if (searcher != null)
+                return searcher;
+        }
+
+        synchronized (getLock(name))
+        {
+            entry = searchers.get(name);
+
+            if (entry != null && entry.matches(core, subIndexes, generations))
+                return entry.acquire();
+
+            SolrIndexSearcher searcher = open(core, name, subIndexes, generations);
+
+            // a new core has a new schema, nothing to carry over
+            if (entry != null && entry.core == core)
+            {
+                long start = System.currentTimeMillis();
+
+                searcher.warm(entry.holder.get());
+
+                if (logger.isDebugEnabled())
+                    logger.debug("Warmed " + searcher + " in " + (System.currentTimeMillis() - start) + "ms");
+            }
+
+            Entry current = new Entry(core, subIndexes, generations, getLock(name), searcher);
+            searchers.put(name, current);
+
+            if (entry != null)
+                entry.retire();
+
+            RefCounted<SolrIndexSearcher> acquired = current.acquire();
+
+            evict();
+
+            return acquired;
+        }
+    }
+
+    private static Object getLock(String name)
+    {
+        Object lock = locks.get(name);
+
+        if (lock == null)
+        {
+            Object newLock = new Object();
+            lock = locks.putIfAbsent(name, newLock);
+
+            if (lock == null)
+                lock = newLock;
+        }
+
+        return lock;
+    }
+
+    // retires the least recently used searchers past the limit
+    private static void evict()
+    {
+        while (searchers.size() > maxSearchers)
+        {
+            Map.Entry<String, Entry> oldest = null;
+
+            for (Map.Entry<String, Entry> e : searchers.entrySet())
+            {
+                if (oldest == null || e.getValue().lastUsed < oldest.getValue().lastUsed)
+                    oldest = e;
+            }
+
+            if (oldest == null)
+                return;
+
+            if (searchers.remove(oldest.getKey(), oldest.getValue()))
+            {
+                oldest.getValue().retire();
+
+                if (logger.isDebugEnabled())
+                    logger.debug("Evicted searcher of " + oldest.getKey());
+            }
+        }
+    }
+
+    private static SolrIndexSearcher open(SolrCore core, String name, List<String> subIndexes, long[] generations)
+    {
+        org.apache.lucene.index.IndexReader reader;
+
+        if (subIndexes.size() == 1)
+        {
+            reader = new IndexReader(subIndexes.get(0), generations[0]);
+        }
+        else
+        {
+            final org.apache.lucene.index.IndexReader[] readers = new org.apache.lucene.index.IndexReader[subIndexes
+                    .size()];
+
+            for (int i = 0; i < readers.length; i++)
+                readers[i] = new IndexReader(subIndexes.get(i), generations[i]);
+
+            // solr wants a directory, the sub-indexes share a mock one
+            reader = new MultiReader(readers, false) {
+                public Directory directory()
+                {
+                    return readers[0].directory();
+                }
+            };
+        }
+
+        SolrIndexSearcher searcher = new SolrIndexSearcher(core, core.getSchema(), "Solandra " + name, reader, false,
+                true);
+
+        if (GlobalSimilarity.enabled)
+            searcher.setSimilarity(new GlobalSimilarity(core.getSchema().getSimilarity()));
+
+        return searcher;
+    }
+}
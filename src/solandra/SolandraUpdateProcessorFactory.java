@@ -0,0 +1,141 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package solandra;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrQueryResponse;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.update.*;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.apache.solr.update.processor.UpdateRequestProcessorFactory;
+
+/**
+ * Solr hands documents to the update handler one at a time, so this collects
+ * the adds of a request and passes them to SolandraIndexWriter together, which
+ * lets it reserve all the new ids at once.
+ *
+ * Place it before RunUpdateProcessorFactory; buffered adds are written before
+ * any other command and when the request finishes.
+ */
+public class SolandraUpdateProcessorFactory extends UpdateRequestProcessorFactory
+{
+    private static final int maxBatchSize = 512;
+
+    public UpdateRequestProcessor getInstance(SolrQueryRequest req, SolrQueryResponse rsp, UpdateRequestProcessor next)
+    {
+        UpdateHandler updateHandler = req.getCore().getUpdateHandler();
+
+        if (!(updateHandler instanceof SolandraIndexWriter))
+            return next;
+
+        return new SolandraUpdateProcessor((SolandraIndexWriter) updateHandler, req.getSchema(), next);
+    }
+
+    private static class SolandraUpdateProcessor extends UpdateRequestProcessor
+    {
+        private final SolandraIndexWriter    writer;
+        private final IndexSchema            schema;
+        private final List<AddUpdateCommand> adds = new ArrayList<AddUpdateCommand>();
+
+        public SolandraUpdateProcessor(SolandraIndexWriter writer, IndexSchema schema, UpdateRequestProcessor next)
+        {
+            super(next);
+            this.writer = writer;
+            this.schema = schema;
+        }
+
+        @Override
+        public void processAdd(AddUpdateCommand cmd) throws IOException
+        {
+            // loaders reuse the command for the next document
+            AddUpdateCommand copy = new AddUpdateCommand();
+            copy.solrDoc = cmd.solrDoc;
+            copy.doc = DocumentBuilder.toDocument(cmd.getSolrInputDocument(), schema);
+            copy.indexedId = cmd.indexedId;
+            copy.allowDups = cmd.allowDups;
+            copy.overwritePending = cmd.overwritePending;
+            copy.overwriteCommitted = cmd.overwriteCommitted;
+            copy.updateTerm = cmd.updateTerm;
+            copy.commitWithin = cmd.commitWithin;
+
+            adds.add(copy);
+
+            if (adds.size() >= maxBatchSize)
+                flush();
+        }
+
+        @Override
+        public void processDelete(DeleteUpdateCommand cmd) throws IOException
+        {
+            flush();
+            super.processDelete(cmd);
+        }
+
+        @Override
+        public void processMergeIndexes(MergeIndexesCommand cmd) throws IOException
+        {
+            flush();
+            super.processMergeIndexes(cmd);
+        }
+
+        @Override
+        public void processCommit(CommitUpdateCommand cmd) throws IOException
+        {
+            flush();
+            super.processCommit(cmd);
+        }
+
+        @Override
+        public void processRollback(RollbackUpdateCommand cmd) throws IOException
+        {
+            flush();
+            super.processRollback(cmd);
+        }
+
+        @Override
+        public void finish() throws IOException
+        {
+            flush();
+            super.finish();
+        }
+
+        private void flush() throws IOException
+        {
+            if (adds.isEmpty())
+                return;
+
+            try
+            {
+                if (adds.size() == 1)
+                    writer.addDoc(adds.get(0));
+                else
+                    writer.addDocs(adds);
+            }
+            finally
+            {
+                adds.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.cassandra.thrift.ConsistencyLevel;
+import org.apache.lucene.analysis.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Field.Index;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.index.Term;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class DocFreqTests
+{
+    static String      indexName = String.valueOf(System.nanoTime());
+    static IndexWriter writer    = new IndexWriter();
+
+    @BeforeClass
+    public static void setUpBeforeClass()
+    {
+        // start cassandra
+        CassandraUtils.startup();
+    }
+
+    private static String createIndex(boolean counted)
+    {
+        String subIndex = indexName + (counted ? "~counted" : "~uncounted") + System.nanoTime();
+
+        if (counted)
+            CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, IndexWriter.markCounted(subIndex));
+
+        return subIndex;
+    }
+
+    private static void add(String subIndex, int docNumber, String... tags) throws IOException
+    {
+        Document doc = new Document();
+        doc.add(new Field("id", String.valueOf(docNumber), Store.YES, Index.NOT_ANALYZED));
+
+        for (String tag : tags)
+            doc.add(new Field("tag", tag, Store.YES, Index.NOT_ANALYZED));
+
+        writer.addDocument(subIndex, doc, new KeywordAnalyzer(), docNumber, false, null);
+    }
+
+    private static Integer docFreq(String subIndex, String tag) throws IOException
+    {
+        return new TermCache(subIndex).getDocFreq(new Term("tag", tag));
+    }
+
+    @Test
+    public void testIncrement() throws IOException
+    {
+        String subIndex = createIndex(true);
+
+        add(subIndex, 1, "a", "b");
+        add(subIndex, 2, "a");
+        writer.commit(subIndex, true);
+
+        add(subIndex, 3, "a", "b");
+        writer.commit(subIndex, true);
+
+        assertEquals(Integer.valueOf(3), docFreq(subIndex, "a"));
+        assertEquals(Integer.valueOf(2), docFreq(subIndex, "b"));
+        assertNull(docFreq(subIndex, "c"));
+
+        assertEquals(3, new IndexReader(subIndex).docFreq(new Term("tag", "a")));
+    }
+
+    @Test
+    public void testDecrement() throws IOException
+    {
+        String subIndex = createIndex(true);
+
+        add(subIndex, 1, "a", "b");
+        add(subIndex, 2, "a");
+        writer.commit(subIndex, true);
+
+        writer.deleteDocuments(subIndex, new Term("id", "1"), true);
+
+        assertEquals(Integer.valueOf(1), docFreq(subIndex, "a"));
+        assertEquals(Integer.valueOf(0), docFreq(subIndex, "b"));
+    }
+
+    @Test
+    public void testClampAtZero() throws IOException
+    {
+        String subIndex = createIndex(true);
+
+        add(subIndex, 1, "a");
+        writer.commit(subIndex, true);
+
+        // both deletes find the doc, so it is taken off twice
+        writer.deleteDocuments(subIndex, new Term("id", "1"), false);
+        writer.deleteDocuments(subIndex, new Term("id", "1"), false);
+        writer.commit(subIndex, true);
+
+        assertEquals(Integer.valueOf(0), docFreq(subIndex, "a"));
+
+        add(subIndex, 2, "a");
+        writer.commit(subIndex, true);
+
+        assertEquals(Integer.valueOf(1), docFreq(subIndex, "a"));
+    }
+
+    @Test
+    public void testUncountedUsesPostings() throws IOException
+    {
+        String subIndex = createIndex(false);
+
+        add(subIndex, 1, "a");
+        add(subIndex, 2, "a");
+        writer.commit(subIndex, true);
+
+        TermCache termCache = new TermCache(subIndex);
+
+        assertNull(termCache.getDocFreq(new Term("tag", "a")));
+        assertFalse(termCache.isCounted());
+        assertEquals(-1, termCache.getDocFreqs(Arrays.asList(new Term("tag", "a")))[0]);
+
+        assertEquals(2, new IndexReader(subIndex).docFreq(new Term("tag", "a")));
+    }
+
+    @Test
+    public void testMissingTermIsRemembered() throws IOException
+    {
+        String subIndex = createIndex(true);
+
+        add(subIndex, 1, "a");
+        writer.commit(subIndex, true);
+
+        TermCache termCache = new TermCache(subIndex);
+
+        assertNull(termCache.getDocFreq(new Term("tag", "b")));
+        assertTrue(termCache.isCounted());
+        assertEquals(Integer.valueOf(-1), termCache.docFreqs.get(new Term("tag", "b")));
+    }
+}
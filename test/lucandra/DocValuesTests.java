@@ -0,0 +1,155 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.lucene.analysis.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.Field.Index;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.search.FieldCache;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class DocValuesTests
+{
+    static String      indexName = String.valueOf(System.nanoTime());
+    static IndexWriter writer    = new IndexWriter();
+
+    @BeforeClass
+    public static void setUpBeforeClass()
+    {
+        // start cassandra
+        CassandraUtils.startup();
+
+        // dv is also kept as doc-values, tag only as postings
+        CassandraUtils.docValuesFields.add("dv");
+    }
+
+    private static void add(String subIndex, int docNumber, String... values) throws IOException
+    {
+        Document doc = new Document();
+        doc.add(new Field("id", String.valueOf(docNumber), Store.YES, Index.NOT_ANALYZED));
+
+        for (String value : values)
+        {
+            doc.add(new Field("dv", value, Store.NO, Index.NOT_ANALYZED));
+            doc.add(new Field("tag", value, Store.NO, Index.NOT_ANALYZED));
+        }
+
+        writer.addDocument(subIndex, doc, new KeywordAnalyzer(), docNumber, false, null);
+    }
+
+    // each term of the field and the docs it is in, by walking the field
+    private static Map<String, List<Integer>> getPostings(IndexReader reader, String field) throws IOException
+    {
+        Map<String, List<Integer>> postings = new TreeMap<String, List<Integer>>();
+
+        TermEnum terms = reader.terms(new Term(field, ""));
+        TermDocs termDocs = reader.termDocs();
+
+        do
+        {
+            Term term = terms.term();
+
+            if (term == null || !term.field().equals(field))
+                break;
+
+            List<Integer> docs = new ArrayList<Integer>();
+
+            termDocs.seek(terms);
+            while (termDocs.next())
+                docs.add(termDocs.doc());
+
+            postings.put(term.text(), docs);
+        }
+        while (terms.next());
+
+        return postings;
+    }
+
+    @Test
+    public void testFacetTermsMatch() throws IOException
+    {
+        String subIndex = indexName + "~facet";
+
+        add(subIndex, 1, "red", "blue");
+        add(subIndex, 2, "blue");
+        add(subIndex, 3, "green", "red");
+        add(subIndex, 5000, "blue");
+        writer.commit(subIndex, true);
+
+        IndexReader reader = new IndexReader(subIndex);
+
+        assertTrue(reader.terms(new Term("dv", "")) instanceof LucandraDocValuesTermEnum);
+        assertFalse(reader.terms(new Term("tag", "")) instanceof LucandraDocValuesTermEnum);
+
+        Map<String, List<Integer>> docValues = getPostings(reader, "dv");
+
+        assertEquals(3, docValues.size());
+        assertEquals(getPostings(reader, "tag"), docValues);
+
+        writer.deleteDocuments(subIndex, new Term("id", "2"), true);
+
+        reader = new IndexReader(subIndex).reopen();
+
+        docValues = getPostings(reader, "dv");
+
+        assertFalse(docValues.get("blue").contains(2));
+        assertEquals(getPostings(reader, "tag"), docValues);
+    }
+
+    @Test
+    public void testSortOrderMatches() throws IOException
+    {
+        String subIndex = indexName + "~sort";
+
+        add(subIndex, 0, "m");
+        add(subIndex, 1, "c");
+        add(subIndex, 2, "x");
+        add(subIndex, 4, "a");
+        add(subIndex, 4097, "k");
+        writer.commit(subIndex, true);
+
+        IndexReader reader = new IndexReader(subIndex);
+
+        FieldCache.StringIndex docValues = FieldCache.DEFAULT.getStringIndex(reader, "dv");
+        FieldCache.StringIndex postings = FieldCache.DEFAULT.getStringIndex(reader, "tag");
+
+        assertArrayEquals(postings.lookup, docValues.lookup);
+        assertArrayEquals(postings.order, docValues.order);
+
+        assertEquals("k", docValues.lookup[docValues.order[4097]]);
+    }
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package lucandra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.lucene.index.Term;
+import org.junit.Test;
+
+public class TermBlockTests
+{
+    // 40 terms so the block has several restarts, every other one missing
+    private TermBlock createBlock(boolean last)
+    {
+        List<ByteBuffer> names = new ArrayList<ByteBuffer>();
+        List<LucandraTermInfo[]> docs = new ArrayList<LucandraTermInfo[]>();
+
+        for (int i = 0; i < 80; i += 2)
+        {
+            names.add(name(i));
+            docs.add(new LucandraTermInfo[] { new LucandraTermInfo(i) });
+        }
+
+        return TermBlock.create(name(0), name(79), names, docs, last);
+    }
+
+    private ByteBuffer name(int i)
+    {
+        return CassandraUtils.createColumnName(term(i));
+    }
+
+    private Term term(int i)
+    {
+        return new Term("title", String.format("term%03d", i));
+    }
+
+    @Test
+    public void testSeek()
+    {
+        TermBlock block = createBlock(false);
+
+        assertEquals(40, block.size());
+
+        TermBlock.Cursor cursor = block.seek(name(34));
+        assertEquals(17, cursor.position());
+        assertEquals(term(34), cursor.term());
+
+        // between two terms lands on the later one
+        cursor = block.seek(name(35));
+        assertEquals(18, cursor.position());
+        assertEquals(term(36), cursor.term());
+
+        cursor = block.seek(name(79));
+        assertFalse(cursor.hasTerm());
+    }
+
+    @Test
+    public void testCursorWalk()
+    {
+        TermBlock block = createBlock(false);
+        TermBlock.Cursor cursor = block.seek(name(10));
+
+        // across every restart to the end
+        for (int i = 10; i < 80; i += 2)
+        {
+            assertTrue(cursor.hasTerm());
+            assertEquals(term(i), cursor.term());
+            assertEquals(i, cursor.docs()[0].docId);
+
+            cursor.next();
+        }
+
+        assertFalse(cursor.hasTerm());
+        assertFalse(cursor.next());
+    }
+
+    @Test
+    public void testGet()
+    {
+        TermBlock block = createBlock(false);
+
+        assertEquals(32, block.get(name(32))[0].docId);
+        assertNull(block.get(name(33)));
+        assertNull(block.get(name(90)));
+    }
+
+    @Test
+    public void testCovers()
+    {
+        TermBlock block = createBlock(false);
+
+        assertTrue(block.covers(name(0)));
+        assertTrue(block.covers(name(78)));
+        assertFalse(block.covers(name(79)));
+        assertFalse(block.covers(name(90)));
+
+        // nothing follows the last block so it answers for everything after
+        block = createBlock(true);
+
+        assertTrue(block.covers(name(79)));
+        assertTrue(block.covers(name(90)));
+    }
+
+    @Test
+    public void testEmpty()
+    {
+        TermBlock block = TermBlock.create(name(0), name(0), Collections.<ByteBuffer> emptyList(), Collections
+                .<LucandraTermInfo[]> emptyList(), true);
+
+        assertEquals(0, block.size());
+        assertFalse(block.seek(name(0)).hasTerm());
+        assertNull(block.get(name(0)));
+        assertTrue(block.covers(name(50)));
+    }
+}
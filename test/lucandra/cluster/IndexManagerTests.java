@@ -32,6 +32,8 @@ import java.util.concurrent.atomic.AtomicInteger;
 import lucandra.CassandraUtils;
 import lucandra.dht.RandomPartitioner;
 
+import org.apache.cassandra.thrift.ConsistencyLevel;
+
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -77,6 +79,25 @@ public class IndexManagerTests
 
     }
 
+    private class LocalCassandraIndexManager extends CassandraIndexManager
+    {
+        public LocalCassandraIndexManager(int shardsAtOnce)
+        {
+            super(shardsAtOnce);
+        }
+
+        public String getToken()
+        {
+            return "local";
+        }
+
+        // only the last of four sub-indexes is held here
+        protected boolean isLocalShard(String subIndex)
+        {
+            return subIndex.endsWith("~3");
+        }
+    }
+
     @BeforeClass
     public static void setUpBeforeClass()
     {
@@ -236,4 +257,132 @@ public class IndexManagerTests
 
     }
 
+    @Test
+    public void testReservesAheadOfDemand() throws Exception
+    {
+        String name = String.valueOf(System.nanoTime());
+        CassandraIndexManager idx = new CassandraIndexManager(4);
+
+        Set<Long> all = new HashSet<Long>();
+
+        for (int i = 0; i < 4 * CassandraIndexManager.reserveSlabSize; i++)
+        {
+            assertTrue(all.add(idx.getNextId(name, "a" + i)));
+
+            // give the background reservation time to keep up
+            if (i % 256 == 0)
+                Thread.sleep(200);
+        }
+
+        Map<String, Long> stats = idx.getReserveStatistics();
+
+        // only the very first add waits, later slabs are reserved before
+        // they are needed
+        assertTrue(stats.toString(), stats.get("reserveStalls") <= 2);
+        assertTrue(stats.toString(), stats.get("reserveRounds") > stats.get("reserveStalls"));
+    }
+
+    @Test
+    public void testDeletedIdIsReused() throws Exception
+    {
+        String name = String.valueOf(System.nanoTime());
+        CassandraIndexManager idx = new CassandraIndexManager(4);
+
+        Long deleted = null;
+        for (int i = 0; i < 20; i++)
+        {
+            long id = idx.getNextId(name, "d" + i);
+
+            // the first id of a slab also holds its reservation
+            int offset = CassandraIndexManager.getShardedDocId(id);
+
+            if (deleted == null && offset % CassandraIndexManager.reserveSlabSize != 0)
+                deleted = id;
+        }
+
+        assertNotNull(deleted);
+
+        CassandraUtils.robustInsert(ConsistencyLevel.QUORUM, idx.deleteId(name, deleted));
+
+        // a manager with nothing reserved yet takes the free ids first
+        CassandraIndexManager other = new CassandraIndexManager(4);
+
+        assertEquals(deleted.longValue(), other.getNextId(name, "reused"));
+        assertTrue(deleted.longValue() != other.getNextId(name, "next"));
+    }
+
+    @Test
+    public void testConcurrentIdsAreUnique() throws Exception
+    {
+        final String name = String.valueOf(System.nanoTime());
+        final CassandraIndexManager idx = new CassandraIndexManager(4);
+
+        ExecutorService svc = Executors.newFixedThreadPool(16);
+
+        List<Callable<List<Long>>> callables = new ArrayList<Callable<List<Long>>>();
+        for (int i = 0; i < 16; i++)
+        {
+            final int thread = i;
+
+            callables.add(new Callable<List<Long>>() {
+                public List<Long> call() throws IOException
+                {
+                    List<Long> ids = new ArrayList<Long>();
+
+                    for (int j = 0; j < 2000; j++)
+                        ids.add(idx.getNextId(name, "t" + thread + "i" + j));
+
+                    return ids;
+                }
+            });
+        }
+
+        // the threads all take from this node's reserves
+        Set<Long> all = new HashSet<Long>();
+        for (Future<List<Long>> result : svc.invokeAll(callables))
+        {
+            for (Long id : result.get())
+                assertTrue(id + " handed out twice", all.add(id));
+        }
+
+        svc.shutdown();
+
+        assertEquals(16 * 2000, all.size());
+    }
+
+    @Test
+    public void testPreferLocalShards() throws IOException
+    {
+        String localIndexName = String.valueOf(System.nanoTime());
+
+        // another node starts four shards
+        new CassandraIndexManager(4).getNextId(localIndexName, "first");
+
+        CassandraIndexManager idx;
+
+        System.setProperty("shards.prefer.local", "true");
+        try
+        {
+            idx = new LocalCassandraIndexManager(2);
+        }
+        finally
+        {
+            System.clearProperty("shards.prefer.local");
+        }
+
+        Map<Integer, Integer> shardCounts = new HashMap<Integer, Integer>();
+
+        for (int i = 0; i < 4 * CassandraIndexManager.reserveSlabSize; i++)
+        {
+            int shard = CassandraIndexManager.getShardFromDocId(idx.getNextId(localIndexName, "l" + i));
+
+            Integer count = shardCounts.get(shard);
+            shardCounts.put(shard, count == null ? 1 : count + 1);
+        }
+
+        // the local shard first, then the first other one to fill the quota
+        assertEquals(shardCounts.toString(), 2, shardCounts.size());
+        assertTrue(shardCounts.toString(), shardCounts.containsKey(3));
+        assertTrue(shardCounts.toString(), shardCounts.containsKey(0));
+    }
 }
@@ -0,0 +1,191 @@
+/**
+ * Copyright T Jake Luciani
+ *
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package solandra;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import lucandra.CassandraUtils;
+
+import org.apache.cassandra.gms.Gossiper;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class ReplicaSelectorTests
+{
+    static
+    {
+        // scores fade fast enough to watch
+        System.setProperty("solandra.replica.halflife.ms", "100");
+    }
+
+    @BeforeClass
+    public static void setUpBeforeClass()
+    {
+        // start cassandra
+        CassandraUtils.startup();
+    }
+
+    private static List<InetAddress> getAddrs(String... hosts) throws UnknownHostException
+    {
+        InetAddress[] addrs = new InetAddress[hosts.length];
+
+        for (int i = 0; i < hosts.length; i++)
+            addrs[i] = InetAddress.getByName(hosts[i]);
+
+        return Arrays.asList(addrs);
+    }
+
+    private static void respond(InetAddress addr, long elapsed, boolean failed)
+    {
+        ReplicaSelector.received(addr.getHostAddress() + ":8983/solandra/test~0", elapsed, failed);
+    }
+
+    // how many of n selections go to addr
+    private static int count(List<InetAddress> addrs, InetAddress addr, int n)
+    {
+        int picked = 0;
+
+        for (int i = 0; i < n; i++)
+        {
+            if (ReplicaSelector.select("test~0", addrs).equals(addr))
+                picked++;
+        }
+
+        return picked;
+    }
+
+    @Test
+    public void testFasterPreferred() throws Exception
+    {
+        List<InetAddress> addrs = getAddrs("10.1.0.1", "10.1.0.2");
+
+        for (int i = 0; i < 10; i++)
+        {
+            respond(addrs.get(0), 10, false);
+            respond(addrs.get(1), 200, false);
+        }
+
+        // the slow one only gets probes
+        int slow = count(addrs, addrs.get(1), 1000);
+        assertTrue("slow picked " + slow, slow < 100);
+    }
+
+    @Test
+    public void testFailurePenalized() throws Exception
+    {
+        List<InetAddress> addrs = getAddrs("10.2.0.1", "10.2.0.2");
+
+        respond(addrs.get(0), 5, false);
+        respond(addrs.get(1), 5, false);
+
+        // a quick failure counts as a slow response
+        respond(addrs.get(1), 5, true);
+
+        int failed = count(addrs, addrs.get(1), 1000);
+        assertTrue("failed picked " + failed, failed < 100);
+
+        // but it is still probed now and then
+        assertTrue("failed never probed", failed > 0);
+    }
+
+    @Test
+    public void testPenaltyDecays() throws Exception
+    {
+        List<InetAddress> addrs = getAddrs("10.3.0.1", "10.3.0.2");
+
+        respond(addrs.get(1), 5, true);
+
+        assertTrue(count(addrs, addrs.get(1), 1000) < 100);
+
+        // after a few half lives unheard from it is as good as the other
+        Thread.sleep(2000);
+
+        int recovered = count(addrs, addrs.get(1), 1000);
+        assertTrue("recovered picked " + recovered, recovered > 300);
+    }
+
+    @Test
+    public void testAffinity() throws Exception
+    {
+        List<InetAddress> addrs = getAddrs("10.4.0.1", "10.4.0.2", "10.4.0.3");
+
+        for (InetAddress addr : addrs)
+            Gossiper.instance.initializeNodeUnsafe(addr, 1);
+
+        ReplicaSelector.affinity = true;
+        try
+        {
+            InetAddress preferred = ReplicaSelector.select("affinity~0", addrs);
+
+            List<InetAddress> reversed = new ArrayList<InetAddress>(addrs);
+            Collections.reverse(reversed);
+
+            for (int i = 0; i < 100; i++)
+            {
+                assertEquals(preferred, ReplicaSelector.select("affinity~0", addrs));
+                assertEquals(preferred, ReplicaSelector.select("affinity~0", reversed));
+            }
+
+            // sub-indexes don't all prefer the same replica
+            Set<InetAddress> used = new HashSet<InetAddress>();
+            for (int i = 0; i < 30; i++)
+                used.add(ReplicaSelector.select("affinity~" + i, addrs));
+
+            assertTrue(used.size() > 1);
+
+            // another replica dying changes nothing
+            for (InetAddress addr : addrs)
+            {
+                if (!addr.equals(preferred))
+                {
+                    Gossiper.instance.convict(addr);
+                    break;
+                }
+            }
+
+            assertEquals(preferred, ReplicaSelector.select("affinity~0", addrs));
+
+            // the preferred one dying moves it to a live one
+            Gossiper.instance.convict(preferred);
+
+            InetAddress fallback = ReplicaSelector.select("affinity~0", addrs);
+            assertFalse(fallback.equals(preferred));
+
+            for (int i = 0; i < 100; i++)
+                assertEquals(fallback, ReplicaSelector.select("affinity~0", addrs));
+        }
+        finally
+        {
+            ReplicaSelector.affinity = false;
+        }
+    }
+}
@@ -20,6 +20,8 @@
 package solandra;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -28,10 +30,16 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import lucandra.CassandraUtils;
+import lucandra.IndexReader;
+
+import org.apache.cassandra.utils.FBUtilities;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -39,11 +47,22 @@ import org.junit.Test;
 
 import org.apache.log4j.Logger;
 import org.apache.solr.client.solrj.SolrQuery;
+import org.apache.solr.client.solrj.SolrServerException;
 import org.apache.solr.client.solrj.impl.CommonsHttpSolrServer;
+import org.apache.solr.client.solrj.response.FacetField;
 import org.apache.solr.client.solrj.response.QueryResponse;
 import org.apache.solr.common.SolrDocument;
 import org.apache.solr.common.SolrDocumentList;
 import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.params.SolrParams;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.core.SolandraCoreContainer;
+import org.apache.solr.core.SolrConfig;
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.handler.component.SolandraSearchHandler;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
 
 public class SolandraTests
 {
@@ -56,6 +75,11 @@ public class SolandraTests
     static String[]              subIndexes = new String[] { "", "one", "two", "three" };
 
     static String                otherIndexName = String.valueOf(System.nanoTime());
+    static String                routedIndexName = String.valueOf(System.nanoTime());
+    static String                timeOrderedIndexName = String.valueOf(System.nanoTime());
+    static String                routedNumericIndexName = String.valueOf(System.nanoTime());
+    static String                shardSizedIndexName = String.valueOf(System.nanoTime());
+    static String                globalIdfIndexName = String.valueOf(System.nanoTime());
     static CommonsHttpSolrServer otherClient;
 
     
@@ -188,6 +212,12 @@ public class SolandraTests
 
                 testUpdateDocument(solrClient);
                 logger.info("testUpdateDocument");
+
+                testGet(solrClient);
+                logger.info("testGet");
+
+                testAddBatch(solrClient);
+                logger.info("testAddBatch");
             }
         }
     }
@@ -384,6 +414,20 @@ public class SolandraTests
         assertEquals(4, resultList.getNumFound());
 
         assertEquals(1, r.getFacetFields().size());
+
+        FacetField title = r.getFacetField("title");
+        assertEquals(4, title.getValueCount());
+
+        for (FacetField.Count count : title.getValues())
+            assertEquals(1, count.getCount());
+
+        // ties come back in index order
+        r = solrClient.query(q.setFacetLimit(2));
+
+        title = r.getFacetField("title");
+        assertEquals(2, title.getValueCount());
+        assertEquals("test1", title.getValues().get(0).getName());
+        assertEquals("test2", title.getValues().get(1).getName());
     }
 
     
@@ -439,6 +483,62 @@ public class SolandraTests
         assertEquals(0, r.getResults().getNumFound());
     }
 
+    public void testGet(CommonsHttpSolrServer solrClient) throws Exception
+    {
+        SolrQuery q = new SolrQuery().setQueryType("/get");
+
+        QueryResponse r = solrClient.query(q.setParam("id", "http://www.test.com"));
+        assertEquals("test1", ((SolrDocument) r.getResponse().get("doc")).getFieldValue("title"));
+
+        q = new SolrQuery().setQueryType("/get").setParam("ids", "http://www.test2.com,http://www.test5.com");
+
+        r = solrClient.query(q);
+        assertEquals(1, r.getResults().getNumFound());
+        assertEquals("test2", r.getResults().get(0).getFieldValue("title"));
+
+        // a search for one key goes straight to its sub-index
+        r = solrClient.query(new SolrQuery().setQuery("url:\"http://www.test3.com\""));
+        assertEquals(1, r.getResults().getNumFound());
+    }
+
+    public void testAddBatch(CommonsHttpSolrServer solrClient) throws Exception
+    {
+        List<SolrInputDocument> docs = new ArrayList<SolrInputDocument>();
+
+        for (int i = 0; i < 20; i++)
+        {
+            SolrInputDocument doc = new SolrInputDocument();
+
+            // the last one repeats the first
+            doc.addField("title", "batch" + (i % 19));
+            doc.addField("url", "http://www.batch" + (i % 19) + ".com");
+            doc.addField("text", "this is a batchtest " + i + " of Solandra");
+            doc.addField("price", i);
+
+            docs.add(doc);
+        }
+
+        solrClient.add(docs);
+        solrClient.commit(true, true);
+
+        SolrQuery q = new SolrQuery().setQuery("text:batchtest").addField("*").addField("score");
+
+        QueryResponse r = solrClient.query(q);
+        assertEquals(19, r.getResults().getNumFound());
+
+        r = solrClient.query(new SolrQuery().setQuery("text:19"));
+        assertEquals(1, r.getResults().getNumFound());
+        assertEquals("http://www.batch0.com", r.getResults().get(0).getFieldValue("url"));
+
+        for (int i = 0; i < 19; i++)
+            solrClient.deleteById("http://www.batch" + i + ".com");
+
+        solrClient.commit(true, true);
+
+        r = solrClient.query(q);
+        assertEquals(0, r.getResults().getNumFound());
+    }
+
     public void testWildcardSearch(CommonsHttpSolrServer solrClient) throws Exception
     {
         SolrQuery q = new SolrQuery().setQuery("url:[* TO *]").addField("*").addField("score");
@@ -856,7 +956,501 @@ public class SolandraTests
      
         assertEquals(7, r.getResults().getNumFound());              
     }
-    
 
+    @Test
+    public void testRoutedIndex() throws Exception
+    {
+        URL url = new URL("http://localhost:" + port + "/solandra/schema/" + routedIndexName
+                + "?routingField=customer&routingShards=4");
+
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setDoOutput(true);
+        OutputStreamWriter wr = new OutputStreamWriter(conn.getOutputStream());
+        wr.write(schemaXml.replace("</fields>",
+                "<field name=\"customer\" type=\"string\" indexed=\"true\" stored=\"true\"/>\n</fields>"));
+        wr.flush();
+        wr.close();
+
+        assertEquals(200, conn.getResponseCode());
+
+        CommonsHttpSolrServer solrClient = getSolrClient(routedIndexName);
+
+        String[] customers = new String[] { "acme", "globex", "initech" };
+        for (int i = 0; i < 9; i++)
+        {
+            SolrInputDocument doc = new SolrInputDocument();
+            doc.addField("customer", customers[i % customers.length]);
+            doc.addField("title", customers[i % customers.length]);
+            doc.addField("url", "http://www.routed.com/" + i);
+            doc.addField("text", "routed document " + i);
+
+            solrClient.add(doc);
+        }
+
+        solrClient.commit(true, true);
+
+        QueryResponse r = solrClient.query(new SolrQuery().setQuery("*:*").setParam("debugQuery", "true"));
+        assertEquals(9, r.getResults().getNumFound());
+
+        // one lane per routing shard
+        List<?> all = getSubIndexes(r);
+        assertTrue(all.toString(), all.size() >= 4);
+
+        // only asks the shards acme went to
+        r = solrClient.query(new SolrQuery().setQuery("text:routed").addFilterQuery("customer:acme").setParam(
+                "debugQuery", "true"));
+        assertEquals(3, r.getResults().getNumFound());
+
+        List<?> acme = getSubIndexes(r);
+        assertEquals(1, acme.size());
+        assertTrue(all.containsAll(acme));
+
+        r = solrClient.query(new SolrQuery().setQuery("title:globex").setParam("route", "globex").setParam(
+                "debugQuery", "true"));
+        assertEquals(3, r.getResults().getNumFound());
+
+        List<?> globex = getSubIndexes(r);
+        assertEquals(1, globex.size());
+        assertTrue(all.containsAll(globex));
+
+        // more than one value needs every shard
+        r = solrClient.query(new SolrQuery().setQuery("text:routed").addFilterQuery(
+                "customer:acme OR customer:globex").setParam("debugQuery", "true"));
+        assertEquals(6, r.getResults().getNumFound());
+        assertEquals(all, getSubIndexes(r));
+
+        // as does a filter on another field
+        r = solrClient.query(new SolrQuery().setQuery("text:routed").addFilterQuery("title:acme").setParam(
+                "debugQuery", "true"));
+        assertEquals(3, r.getResults().getNumFound());
+        assertEquals(all, getSubIndexes(r));
+    }
+
+    // the sub-indexes a debug request went to
+    private List<?> getSubIndexes(QueryResponse r)
+    {
+        List<?> subIndexes = (List<?>) r.getResponseHeader().get("subIndexes");
+        assertTrue(r.getResponseHeader().toString(), subIndexes != null);
+
+        return subIndexes;
+    }
+
+    @Test
+    public void testRoutedNumericIndex() throws Exception
+    {
+        URL url = new URL("http://localhost:" + port + "/solandra/schema/" + routedNumericIndexName
+                + "?routingField=price&routingShards=5");
+
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setDoOutput(true);
+        OutputStreamWriter wr = new OutputStreamWriter(conn.getOutputStream());
+        wr.write(schemaXml);
+        wr.flush();
+        wr.close();
+
+        assertEquals(200, conn.getResponseCode());
+
+        CommonsHttpSolrServer solrClient = getSolrClient(routedNumericIndexName);
+
+        for (int i = 0; i < 8; i++)
+        {
+            SolrInputDocument doc = new SolrInputDocument();
+            doc.addField("price", i);
+            doc.addField("url", "http://www.numeric.com/" + i);
+            doc.addField("text", "numeric document " + i);
+
+            solrClient.add(doc);
+        }
+
+        solrClient.commit(true, true);
+
+        // routed by the indexed value, however the query writes it
+        for (int i = 0; i < 8; i++)
+        {
+            QueryResponse r = solrClient.query(new SolrQuery().setQuery("text:numeric").addFilterQuery(
+                    "price:0" + i).setParam("debugQuery", "true"));
+            assertEquals(1, r.getResults().getNumFound());
+            assertEquals(1, getSubIndexes(r).size());
+        }
+    }
+
+    @Test
+    public void testTimeOrderedIndex() throws Exception
+    {
+        URL url = new URL("http://localhost:" + port + "/solandra/schema/" + timeOrderedIndexName
+                + "?timeOrdered=true");
+
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setDoOutput(true);
+        OutputStreamWriter wr = new OutputStreamWriter(conn.getOutputStream());
+        wr.write(schemaXml);
+        wr.flush();
+        wr.close();
+
+        assertEquals(200, conn.getResponseCode());
+
+        CommonsHttpSolrServer solrClient = getSolrClient(timeOrderedIndexName);
+
+        for (int i = 0; i < 5; i++)
+        {
+            SolrInputDocument doc = new SolrInputDocument();
+            doc.addField("title", "ordered");
+            doc.addField("url", "http://www.ordered.com/" + i);
+            doc.addField("text", "ordered document " + i);
+
+            solrClient.add(doc);
+        }
+
+        solrClient.commit(true, true);
+
+        QueryResponse r = solrClient.query(new SolrQuery().setQuery("text:ordered"));
+        assertEquals(5, r.getResults().getNumFound());
+
+        // ids of a time ordered index are dropped, not freed
+        solrClient.deleteById("http://www.ordered.com/2");
+        solrClient.commit(true, true);
+
+        r = solrClient.query(new SolrQuery().setQuery("text:ordered"));
+        assertEquals(4, r.getResults().getNumFound());
+
+        // newest first, without the deleted doc
+        r = solrClient.query(new SolrQuery().setQueryType("/recent").setQuery("text:ordered").setRows(3));
+        assertEquals(3, r.getResults().getNumFound());
+        assertEquals("http://www.ordered.com/4", r.getResults().get(0).getFieldValue("url"));
+        assertEquals("http://www.ordered.com/3", r.getResults().get(1).getFieldValue("url"));
+        assertEquals("http://www.ordered.com/1", r.getResults().get(2).getFieldValue("url"));
+
+        r = solrClient.query(new SolrQuery().setQueryType("/recent").setQuery("text:ordered").setRows(10));
+        assertEquals(4, r.getResults().getNumFound());
+    }
+
+    @Test
+    public void testShardSizedIndex() throws Exception
+    {
+        URL url = new URL("http://localhost:" + port + "/solandra/schema/" + shardSizedIndexName);
+
+        HttpURLConnection conn = (HttpURLConnection) new URL(url + "?shardSize=4096").openConnection();
+        conn.setDoOutput(true);
+        OutputStreamWriter wr = new OutputStreamWriter(conn.getOutputStream());
+        wr.write(schemaXml);
+        wr.flush();
+        wr.close();
+
+        assertEquals(200, conn.getResponseCode());
+
+        BufferedReader rd = new BufferedReader(new InputStreamReader(url.openStream()));
+        String line;
+        String xml = "";
+        while ((line = rd.readLine()) != null)
+            xml += line + "\n";
+
+        rd.close();
+
+        assertTrue(xml.contains("documentsPerSubIndex=\"4096\""));
+
+        CommonsHttpSolrServer solrClient = getSolrClient(shardSizedIndexName);
+
+        for (int i = 0; i < 10; i++)
+        {
+            SolrInputDocument doc = new SolrInputDocument();
+            doc.addField("url", "http://www.sized.com/" + i);
+            doc.addField("text", "sized document " + i);
+
+            solrClient.add(doc);
+        }
+
+        solrClient.commit(true, true);
+
+        QueryResponse r = solrClient.query(new SolrQuery().setQuery("text:sized"));
+        assertEquals(10, r.getResults().getNumFound());
+    }
+
+    @Test
+    public void testGlobalIdf() throws Exception
+    {
+        // title a goes to sub-index 1 and title b to sub-index 0
+        URL url = new URL("http://localhost:" + port + "/solandra/schema/" + globalIdfIndexName
+                + "?routingField=title&routingShards=2");
+
+        HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+        conn.setDoOutput(true);
+        OutputStreamWriter wr = new OutputStreamWriter(conn.getOutputStream());
+        wr.write(schemaXml);
+        wr.flush();
+        wr.close();
+
+        assertEquals(200, conn.getResponseCode());
+
+        CommonsHttpSolrServer solrClient = getSolrClient(globalIdfIndexName);
+
+        String[][] docs = new String[][] { { "a", "shared words here" }, { "a", "shared other" },
+                { "a", "shared more" }, { "a", "shared again" }, { "b", "shared words here" },
+                { "b", "different stuff" } };
+
+        for (int i = 0; i < docs.length; i++)
+        {
+            SolrInputDocument doc = new SolrInputDocument();
+            doc.addField("title", docs[i][0]);
+            doc.addField("url", "http://www.idf.com/" + i);
+            doc.addField("text", docs[i][1]);
+
+            solrClient.add(doc);
+        }
+
+        solrClient.commit(true, true);
+
+        QueryResponse r = solrClient.query(new SolrQuery().setQuery("text:shared").addField("url").addField(
+                "score"));
+        assertEquals(5, r.getResults().getNumFound());
 
+        // the same text scores the same in both, though shared is far
+        // rarer in sub-index 0
+        Map<String, Float> scores = new HashMap<String, Float>();
+        for (SolrDocument doc : r.getResults())
+            scores.put((String) doc.getFieldValue("url"), (Float) doc.getFieldValue("score"));
+
+        assertEquals(scores.get("http://www.idf.com/0"), scores.get("http://www.idf.com/4"), 0.0001f);
+    }
+
+    @Test
+    public void testInlineSearch() throws Exception
+    {
+        CommonsHttpSolrServer solrClient = getSolrClient(globalIdfIndexName);
+
+        SolrQuery[] queries = new SolrQuery[] {
+                new SolrQuery().setQuery("text:shared").addField("url").addField("score"),
+                new SolrQuery().setQuery("text:shared OR text:words").addField("url").addField("score"),
+                new SolrQuery().setQuery("text:shared").addFilterQuery("title:a").addField("url").addField("score"),
+                new SolrQuery().setQuery("*:*").addField("url").addField("score") };
+
+        for (SolrQuery q : queries)
+        {
+            Map<String, Float> distributed = getScores(solrClient.query(q));
+
+            SolandraComponent.inlineSearch = true;
+            Map<String, Float> inline;
+            try
+            {
+                inline = getScores(solrClient.query(q));
+            }
+            finally
+            {
+                SolandraComponent.inlineSearch = false;
+            }
+
+            assertTrue(distributed.size() > 0);
+            assertEquals(distributed.keySet(), inline.keySet());
+
+            for (Map.Entry<String, Float> e : distributed.entrySet())
+                assertEquals(e.getValue(), inline.get(e.getKey()), 0.0001f);
+        }
+    }
+
+    @Test
+    public void testInProcessShards() throws Exception
+    {
+        CommonsHttpSolrServer solrClient = getSolrClient(globalIdfIndexName);
+
+        // the first sub-index by a name that isn't this node's, so over http
+        String local = FBUtilities.getLocalAddress().getHostAddress();
+        String mixed = "localhost:" + port + "/solandra/" + globalIdfIndexName + "~0," + local + ":" + port
+                + "/solandra/" + globalIdfIndexName + "~1";
+
+        SolrQuery[] queries = new SolrQuery[] {
+                new SolrQuery().setQuery("text:shared").addField("url").addField("score"),
+                new SolrQuery().setQuery("text:shared OR text:words").addField("url").addField("score").addSortField(
+                        "url", SolrQuery.ORDER.desc),
+                new SolrQuery().setQuery("text:shared").addField("url").addField("score").setFacet(true)
+                        .addFacetField("title").setHighlight(true).addHighlightField("text"),
+                // a shard's facet error fails the merge, an unknown handler fails the shard
+                new SolrQuery().setQuery("text:shared").setFacet(true).addFacetField("nosuchfield"),
+                new SolrQuery().setQuery("text:shared").setParam("shards.qt", "nosuchhandler") };
+
+        for (SolrQuery q : queries)
+        {
+            String inProcess = describe(solrClient, q);
+
+            SolandraSearchHandler.inProcess = false;
+            String http;
+            try
+            {
+                http = describe(solrClient, q);
+            }
+            finally
+            {
+                SolandraSearchHandler.inProcess = true;
+            }
+
+            String both = describe(solrClient, new ModifiableSolrParams(q).set("shards", mixed));
+
+            assertEquals(inProcess, http);
+            assertEquals(inProcess, both);
+        }
+    }
+
+    // what a response says, or the error it failed with
+    private String describe(CommonsHttpSolrServer solrClient, SolrParams q) throws Exception
+    {
+        QueryResponse r;
+        try
+        {
+            r = solrClient.query(q);
+        }
+        catch (SolrServerException e)
+        {
+            Throwable cause = e.getCause();
+
+            return "error " + (cause instanceof SolrException ? ((SolrException) cause).code() : cause);
+        }
+
+        StringBuilder sb = new StringBuilder("found " + r.getResults().getNumFound());
+
+        // shards are told apart by name, so docs scoring the same may come in
+        // either order
+        List<String> tied = new ArrayList<String>();
+        Object lastScore = null;
+
+        for (SolrDocument doc : r.getResults())
+        {
+            Object score = doc.getFieldValue("score");
+
+            if (score == null || !score.equals(lastScore))
+            {
+                Collections.sort(tied);
+                sb.append(tied);
+                tied.clear();
+            }
+
+            tied.add(doc.getFieldValue("url") + ":" + score);
+            lastScore = score;
+        }
+
+        Collections.sort(tied);
+        sb.append(tied);
+
+        if (r.getFacetFields() != null)
+        {
+            for (FacetField field : r.getFacetFields())
+                sb.append(" ").append(field.getName()).append("=").append(field.getValues());
+        }
+
+        if (r.getHighlighting() != null)
+            sb.append(" ").append(new TreeMap<String, Map<String, List<String>>>(r.getHighlighting()));
+
+        return sb.toString();
+    }
+
+    @Test
+    public void testSearcherSwap() throws Exception
+    {
+        SolrCore core = new SolandraCoreContainer(SolrConfig.DEFAULT_CONF_FILE).getCore(globalIdfIndexName);
+        List<String> subIndexes = Arrays.asList(globalIdfIndexName + "~0");
+
+        try
+        {
+            RefCounted<SolrIndexSearcher> first = SolandraSearchers.get(core, "swap", subIndexes);
+            RefCounted<SolrIndexSearcher> again = SolandraSearchers.get(core, "swap", subIndexes);
+            assertSame(first.get(), again.get());
+            again.decref();
+
+            // held by us and the map
+            assertEquals(2, first.getRefcount());
+
+            IndexReader.nextGeneration(subIndexes.get(0));
+
+            RefCounted<SolrIndexSearcher> second = SolandraSearchers.get(core, "swap", subIndexes);
+            assertNotSame(first.get(), second.get());
+
+            // the map let the old one go
+            assertEquals(1, first.getRefcount());
+            first.decref();
+            assertEquals(0, first.getRefcount());
+
+            second.decref();
+            assertEquals(1, second.getRefcount());
+        }
+        finally
+        {
+            core.close();
+        }
+    }
+
+    @Test
+    public void testSearcherEviction() throws Exception
+    {
+        SolrCore core = new SolandraCoreContainer(SolrConfig.DEFAULT_CONF_FILE).getCore(globalIdfIndexName);
+        int maxSearchers = SolandraSearchers.maxSearchers;
+
+        try
+        {
+            SolandraSearchers.maxSearchers = 1;
+
+            RefCounted<SolrIndexSearcher> first = SolandraSearchers.get(core, "evict0", Arrays
+                    .asList(globalIdfIndexName + "~0"));
+            first.decref();
+            assertEquals(1, first.getRefcount());
+
+            Thread.sleep(10);
+
+            RefCounted<SolrIndexSearcher> second = SolandraSearchers.get(core, "evict1", Arrays
+                    .asList(globalIdfIndexName + "~1"));
+            second.decref();
+
+            // the older searcher is closed, the newer kept
+            assertEquals(0, first.getRefcount());
+            assertEquals(1, second.getRefcount());
+        }
+        finally
+        {
+            SolandraSearchers.maxSearchers = maxSearchers;
+            core.close();
+        }
+    }
+
+    @Test
+    public void testConcurrentCoreLoad() throws Exception
+    {
+        final String coreName = String.valueOf(System.nanoTime());
+        SolandraCoreContainer.writeSchema(coreName, schemaXml);
+
+        final SolandraCoreContainer cores = new SolandraCoreContainer(SolrConfig.DEFAULT_CONF_FILE);
+        final CyclicBarrier barrier = new CyclicBarrier(2);
+
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+
+        try
+        {
+            List<Future<SolrCore>> loads = new ArrayList<Future<SolrCore>>();
+
+            for (int i = 0; i < 2; i++)
+            {
+                loads.add(pool.submit(new Callable<SolrCore>() {
+                    public SolrCore call() throws Exception
+                    {
+                        barrier.await();
+
+                        return cores.readSchema(coreName);
+                    }
+                }));
+            }
+
+            assertSame(loads.get(0).get(), loads.get(1).get());
+            assertSame(loads.get(0).get(), cores.readSchema(coreName));
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    private Map<String, Float> getScores(QueryResponse r)
+    {
+        Map<String, Float> scores = new HashMap<String, Float>();
+        for (SolrDocument doc : r.getResults())
+            scores.put((String) doc.getFieldValue("url"), (Float) doc.getFieldValue("score"));
+
+        assertEquals(r.getResults().getNumFound(), scores.size());
+
+        return scores;
+    }
 }